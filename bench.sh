@@ -0,0 +1,22 @@
+#!/usr/bin/env bash
+
+# Runs the hot path benchmarks and writes the scores to bench/<version>.csv. Pass --baseline=bench/<other version>.csv
+# to compare with a previous run; the exit code is 1 if a benchmark got more than --max-regression=PCT (10) slower.
+
+set -e
+
+ROOT="$(cd $(dirname "$0") && pwd)"
+cd "$ROOT"
+
+rm -rf ./bin/
+mkdir -p bin bench
+javac -cp 'lib/*' $(find src -name "*.java") $(find test -name "*.java") -d bin
+cp src/log4j.properties bin
+
+java \
+    -Xmx1G \
+    -Xms1G \
+    -cp '.:lib/*:bin' \
+    nl.melp.linkchecker.HotPathBenchmark \
+    --result="bench/$(git describe --always --dirty).csv" \
+    $@
@@ -0,0 +1,243 @@
+package nl.melp.linkchecker;
+
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.slf4j.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodySubscribers;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fetches urls with the non-blocking java.net.http client, so a handful of threads can serve thousands of requests
+ * in flight. Response bodies are only read if links are extracted from them, and then only up to the maximum document
+ * size.
+ */
+public class AsyncFetcher extends Fetcher {
+	/**
+	 * A response body, of which only the first bytes may have been read.
+	 */
+	static class Body {
+		private static final Body empty = new Body(new byte[0], false);
+
+		private final byte[] bytes;
+		private final boolean truncated;
+
+		Body(byte[] bytes, boolean truncated) {
+			this.bytes = bytes;
+			this.truncated = truncated;
+		}
+
+		byte[] getBytes() {
+			return bytes;
+		}
+
+		/**
+		 * Whether the body was longer than the maximum document size, and the rest of it was not downloaded.
+		 */
+		boolean isTruncated() {
+			return truncated;
+		}
+	}
+
+	/**
+	 * Collects a body up to a maximum size. A longer body is cut off there: the subscription is cancelled, which
+	 * aborts the download, and the body is marked as truncated.
+	 */
+	static class BoundedBodySubscriber implements HttpResponse.BodySubscriber<Body> {
+		private final int maxSize;
+		private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		private final CompletableFuture<Body> body = new CompletableFuture<>();
+		private Flow.Subscription subscription;
+
+		BoundedBodySubscriber(long maxSize) {
+			this.maxSize = (int)Math.min(maxSize, Integer.MAX_VALUE - 8);
+		}
+
+		@Override
+		public CompletionStage<Body> getBody() {
+			return body;
+		}
+
+		@Override
+		public void onSubscribe(Flow.Subscription subscription) {
+			this.subscription = subscription;
+			subscription.request(1);
+		}
+
+		@Override
+		public void onNext(List<ByteBuffer> buffers) {
+			for (ByteBuffer buffer : buffers) {
+				// the client's buffers may be direct or read only, so they're copied
+				byte[] chunk = new byte[Math.min(buffer.remaining(), maxSize - bytes.size())];
+				buffer.get(chunk);
+				bytes.write(chunk, 0, chunk.length);
+				if (buffer.hasRemaining()) {
+					subscription.cancel();
+					body.complete(new Body(bytes.toByteArray(), true));
+					return;
+				}
+			}
+			subscription.request(1);
+		}
+
+		@Override
+		public void onError(Throwable throwable) {
+			body.completeExceptionally(throwable);
+		}
+
+		@Override
+		public void onComplete() {
+			body.complete(new Body(bytes.toByteArray(), false));
+		}
+	}
+
+	private static class ResponseAdapter extends BasicHttpResponse implements CloseableHttpResponse {
+		ResponseAdapter(HttpResponse<Body> response) {
+			super(HttpVersion.HTTP_1_1, response.statusCode(), null);
+			response.headers().map().forEach((name, values) -> values.forEach(value -> addHeader(name, value)));
+
+			// repeatable, so the body can be digested before it's parsed
+			setEntity(new ByteArrayEntity(response.body().getBytes()));
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	private final Logger logger;
+	private final RunConfig config;
+	private final ExecutorService ioExecutor;
+	private final HttpClient httpClient;
+
+	public AsyncFetcher(Logger logger, RunConfig config, Extractor extractor, URIResolver resolver) {
+		super(logger, config, extractor, resolver);
+		this.logger = logger;
+		this.config = config;
+
+		AtomicInteger counter = new AtomicInteger(0);
+		this.ioExecutor = Executors.newFixedThreadPool(config.getNumThreads(), runnable -> {
+			Thread t = new Thread(runnable);
+			t.setDaemon(true);
+			t.setName("http-io-" + counter.incrementAndGet());
+			return t;
+		});
+		this.httpClient = config.createAsyncHttpClient(ioExecutor);
+	}
+
+	public CompletableFuture<Result> fetchAsync(URI url) {
+		return fetchAsync(url, null);
+	}
+
+	/**
+	 * @param validators The validators stored for the url, to only download it if it changed, or null.
+	 */
+	public CompletableFuture<Result> fetchAsync(URI url, Validators validators) {
+		final HttpRequest request;
+		try {
+			HttpRequest.Builder builder = HttpRequest.newBuilder(url)
+				.timeout(Duration.ofMillis(config.getTtfbTimeoutMs()))
+				.GET();
+			if (validators != null) {
+				if (validators.getEtag() != null) {
+					builder.header("If-None-Match", validators.getEtag());
+				}
+				if (validators.getLastModified() != null) {
+					builder.header("If-Modified-Since", validators.getLastModified());
+				}
+			}
+			request = builder.build();
+		} catch (IllegalArgumentException e) {
+			logger.warn(String.format("Error opening url %s (%s: %s)", url, e.getClass().getCanonicalName(), e.getMessage()));
+			return CompletableFuture.completedFuture(new Result(url, 0, null, null));
+		}
+
+		logger.trace("OPENING " + url);
+		if (shouldProbe(url)) {
+			return probe(url, method -> execute(url, method)).thenApply(statusCode -> createProbeResult(url, statusCode));
+		}
+
+		final boolean extract = config.shouldExtractLinks(url);
+		final long start = System.nanoTime();
+		CompletableFuture<HttpResponse<Body>> sent = httpClient.sendAsync(
+			request,
+			info -> {
+				// called when the headers are in; the client has no hooks for the phases before that
+				config.getMetrics().recordSince(Metrics.Phase.TTFB, start);
+				return extract && info.statusCode() == 200 ? new BoundedBodySubscriber(config.getMaxDocumentSize()) : BodySubscribers.replacing(Body.empty);
+			}
+		);
+		Watchdog.Watch watch = watch(sent);
+		return sent
+			.whenComplete((response, e) -> watch.close())
+			.thenApply(response -> {
+				logger.trace("Got status " + response.statusCode() + " at " + url);
+				if (response.statusCode() == 304 && validators != null) {
+					return Result.notModified(url);
+				}
+				if (response.body().isTruncated()) {
+					logger.debug("Stopped reading {} after {} bytes", url, response.body().getBytes().length);
+				}
+				ResponseAdapter adapter = new ResponseAdapter(response);
+				try {
+					return createResult(url, response.statusCode(), adapter, adapter.getEntity(), validators);
+				} catch (IOException e) {
+					return new Result(url, 0, null, null);
+				}
+			})
+			.exceptionally(e -> {
+				logger.debug("Error fetching {}: {}", url, e.getMessage());
+				return new Result(url, 0, null, null);
+			});
+	}
+
+	/**
+	 * Cancelling the future of a request aborts it. The client enforces the time to first byte itself, with the
+	 * timeout of the request, so only the deadline of the whole request is left to the watchdog.
+	 */
+	private Watchdog.Watch watch(CompletableFuture<?> sent) {
+		Watchdog.Watch watch = config.getWatchdog().watch(() -> sent.cancel(true));
+		watch.headersReceived();
+		return watch;
+	}
+
+	private CompletableFuture<Integer> execute(URI url, ProbeMethod method) {
+		HttpRequest.Builder request = HttpRequest.newBuilder(url).timeout(Duration.ofMillis(config.getTtfbTimeoutMs()));
+		if (method == ProbeMethod.HEAD) {
+			request.method("HEAD", HttpRequest.BodyPublishers.noBody());
+		} else if (method == ProbeMethod.RANGE) {
+			request.header("Range", "bytes=0-0");
+		}
+
+		CompletableFuture<HttpResponse<Void>> sent = httpClient.sendAsync(request.build(), HttpResponse.BodyHandlers.discarding());
+		Watchdog.Watch watch = watch(sent);
+		return sent
+			.whenComplete((response, e) -> watch.close())
+			.thenApply(response -> {
+				logger.trace("Got status " + response.statusCode() + " at " + url + " (" + method + ")");
+				response.headers().firstValue("Retry-After").ifPresent(value -> setProbeRetryAfter(url, retryAfterMs(value)));
+				return response.statusCode();
+			})
+			.exceptionally(e -> 0);
+	}
+
+	public void shutdown() {
+		ioExecutor.shutdown();
+	}
+}
@@ -0,0 +1,123 @@
+package nl.melp.linkchecker;
+
+/**
+ * A limit on the number of requests at the same time that adapts to how the requests went. It grows while requests
+ * succeed and shrink when they are dropped, i.e. when they fail or get a response that says the server is overloaded.
+ * Implementations are not thread safe; the HostScheduler only uses them while holding its lock.
+ */
+public interface ConcurrencyLimit {
+	int MIN_LIMIT = 1;
+	int INITIAL_LIMIT = 10;
+
+	enum Algorithm {
+		AIMD,
+		GRADIENT;
+
+		/**
+		 * @param max The upper bound of the limit, which is also the limit if it's smaller than the initial limit.
+		 */
+		public ConcurrencyLimit create(int max) {
+			return switch (this) {
+				case AIMD -> new Aimd(max);
+				case GRADIENT -> new Gradient(max);
+			};
+		}
+	}
+
+	int getLimit();
+
+	/**
+	 * @param rttNanos The time the request took.
+	 * @param inFlight The number of requests in flight when it completed, including this one.
+	 * @param dropped  Whether the request failed or the server said it was overloaded.
+	 */
+	void onSample(long rttNanos, int inFlight, boolean dropped);
+
+	/**
+	 * Additive increase, multiplicative decrease: the limit grows by one for every limit's worth of successful
+	 * requests, so about one per round trip, and is cut by a tenth for every dropped request. It only reacts to drops,
+	 * not to latency.
+	 */
+	class Aimd implements ConcurrencyLimit {
+		private static final double BACKOFF = 0.9;
+		private final int max;
+		private double limit;
+
+		Aimd(int max) {
+			this.max = max;
+			this.limit = Math.min(INITIAL_LIMIT, max);
+		}
+
+		@Override
+		public int getLimit() {
+			return (int)limit;
+		}
+
+		@Override
+		public void onSample(long rttNanos, int inFlight, boolean dropped) {
+			if (dropped) {
+				limit = Math.max(MIN_LIMIT, limit * BACKOFF);
+			} else if (inFlight * 2 >= limit) {
+				// only grow while the limit is what holds the requests back
+				limit = Math.min(max, limit + 1 / limit);
+			}
+		}
+	}
+
+	/**
+	 * Compares the recent latency to a baseline that drops to the lowest recent latency right away, and only rises when
+	 * the latency stays up for hundreds of round trips. While they are about the same, the limit grows by the square
+	 * root of itself per round trip; when the recent latency goes up, because requests queue up at the server, the
+	 * limit shrinks proportionally. Dropped requests cut it by a tenth, like with AIMD.
+	 */
+	class Gradient implements ConcurrencyLimit {
+		private static final double BACKOFF = 0.9;
+		private static final double TOLERANCE = 1.5;
+		private static final int SHORT_WINDOW = 10;
+		/**
+		 * In round trips, i.e. a limit's worth of samples.
+		 */
+		private static final int LONG_WINDOW = 600;
+
+		private final int max;
+		private double limit;
+		private double shortRtt = 0;
+		private double longRtt = 0;
+
+		Gradient(int max) {
+			this.max = max;
+			this.limit = Math.min(INITIAL_LIMIT, max);
+		}
+
+		@Override
+		public int getLimit() {
+			return (int)limit;
+		}
+
+		@Override
+		public void onSample(long rttNanos, int inFlight, boolean dropped) {
+			if (dropped) {
+				// timeouts say nothing about the latency, so they're left out of the averages
+				limit = Math.max(MIN_LIMIT, limit * BACKOFF);
+				return;
+			}
+
+			if (longRtt == 0) {
+				shortRtt = rttNanos;
+				longRtt = rttNanos;
+			} else {
+				shortRtt += (rttNanos - shortRtt) * 2 / (SHORT_WINDOW + 1);
+				longRtt += (rttNanos - longRtt) * 2 / (LONG_WINDOW + 1) / limit;
+			}
+			longRtt = Math.min(longRtt, shortRtt);
+			if (inFlight * 2 < limit) {
+				return;
+			}
+
+			double gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * longRtt / shortRtt));
+			double target = limit * gradient + Math.sqrt(limit);
+			// every sample moves it a limit'th of the way, so the whole way per round trip
+			limit = Math.max(MIN_LIMIT, Math.min(max, limit + (target - limit) / limit));
+		}
+	}
+}
@@ -0,0 +1,39 @@
+package nl.melp.linkchecker;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts requests and the connections opened to serve them, so the share of requests that reused a pooled
+ * connection can be reported.
+ */
+public class ConnectionStats {
+	private final LongAdder requests = new LongAdder();
+	private final LongAdder connectionsOpened = new LongAdder();
+
+	public void requestSent() {
+		requests.increment();
+	}
+
+	public void connectionOpened() {
+		connectionsOpened.increment();
+	}
+
+	public long getRequests() {
+		return requests.sum();
+	}
+
+	public long getConnectionsOpened() {
+		return connectionsOpened.sum();
+	}
+
+	/**
+	 * The percentage of requests that were sent over a connection that was already open.
+	 */
+	public float getReuseRate() {
+		long requests = getRequests();
+		if (requests == 0) {
+			return 0;
+		}
+		return Math.max(0, (float)(requests - getConnectionsOpened()) / requests * 100);
+	}
+}
@@ -1,38 +1,161 @@
 package nl.melp.linkchecker;
 
 import nl.melp.linkchecker.URIResolver.InvalidURIException;
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
-import org.apache.http.client.config.RequestConfig;
+import org.apache.http.HttpResponse;
+import org.apache.http.NoHttpResponseException;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpHead;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.entity.InputStreamEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.slf4j.Logger;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.net.ConnectException;
+import java.net.SocketException;
 import java.net.URI;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Date;
 import java.util.LinkedHashSet;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 
 public class Fetcher {
-	private static final int timeout = 30;
+	/**
+	 * The ETag and Last-Modified headers of a page, which are sent back as If-None-Match and If-Modified-Since to only
+	 * download the page again if it changed, and the digest of its body, to not extract the links of a page that was
+	 * downloaded again but didn't change.
+	 */
+	public static class Validators {
+		private final String etag;
+		private final String lastModified;
+		private final String digest;
 
-	private static final RequestConfig requestConfig = RequestConfig.custom()
-		.setConnectTimeout(timeout * 1000)
-		.setConnectionRequestTimeout(timeout * 1000)
-		.setSocketTimeout(timeout * 1000)
-		.build();
+		public Validators(String etag, String lastModified) {
+			this(etag, lastModified, null);
+		}
+
+		public Validators(String etag, String lastModified, String digest) {
+			this.etag = etag;
+			this.lastModified = lastModified;
+			this.digest = digest;
+		}
+
+		/**
+		 * @return The validators of the response, or null if it has none.
+		 */
+		public static Validators of(HttpResponse response) {
+			Header etag = response.getFirstHeader("ETag");
+			Header lastModified = response.getFirstHeader("Last-Modified");
+			if (etag == null && lastModified == null) {
+				return null;
+			}
+			return new Validators(etag == null ? null : etag.getValue(), lastModified == null ? null : lastModified.getValue());
+		}
+
+		public String getEtag() {
+			return etag;
+		}
+
+		public String getLastModified() {
+			return lastModified;
+		}
+
+		public String getDigest() {
+			return digest;
+		}
+
+		/**
+		 * @return The validators of the response, if any, with the digest of its body.
+		 */
+		static Validators withDigest(Validators validators, String digest) {
+			return new Validators(validators == null ? null : validators.getEtag(), validators == null ? null : validators.getLastModified(), digest);
+		}
+
+		/**
+		 * The values as one string, separated by newlines, which header values can't contain.
+		 */
+		public String encode() {
+			return (etag == null ? "" : etag) + "\n" + (lastModified == null ? "" : lastModified) + "\n" + (digest == null ? "" : digest);
+		}
+
+		public static Validators decode(String encoded) {
+			int separator = encoded.indexOf('\n');
+			// validators stored by earlier versions have no digest
+			int digestSeparator = encoded.indexOf('\n', separator + 1);
+			String etag = encoded.substring(0, separator);
+			String lastModified = digestSeparator < 0 ? encoded.substring(separator + 1) : encoded.substring(separator + 1, digestSeparator);
+			String digest = digestSeparator < 0 ? "" : encoded.substring(digestSeparator + 1);
+			return new Validators(etag.isEmpty() ? null : etag, lastModified.isEmpty() ? null : lastModified, digest.isEmpty() ? null : digest);
+		}
+	}
 
 	public static class Result {
 		private final URI uri;
 		private final int statusCode;
 		private final Set<URI> referredLinks;
 		private final Set<String> invalidLinks;
+		private final Validators validators;
+		private final boolean notModified;
+		private final boolean cached;
+		private final long retryAfterMs;
 
 		public Result(URI uri, int statusCode, Set<URI> referredLinks, Set<String> invalidLinks) {
+			this(uri, statusCode, referredLinks, invalidLinks, null);
+		}
+
+		public Result(URI uri, int statusCode, Set<URI> referredLinks, Set<String> invalidLinks, Validators validators) {
+			this(uri, statusCode, referredLinks, invalidLinks, validators, false, false, -1);
+		}
+
+		private Result(URI uri, int statusCode, Set<URI> referredLinks, Set<String> invalidLinks, Validators validators, boolean notModified, boolean cached, long retryAfterMs) {
 			this.uri = uri;
 			this.statusCode = statusCode;
 			this.referredLinks = referredLinks;
 			this.invalidLinks = invalidLinks;
+			this.validators = validators;
+			this.notModified = notModified;
+			this.cached = cached;
+			this.retryAfterMs = retryAfterMs;
+		}
+
+		/**
+		 * The result of a page that didn't change since its validators were stored. Its links are the stored ones.
+		 */
+		public static Result notModified(URI uri) {
+			return notModified(uri, null);
+		}
+
+		/**
+		 * @param validators The validators of the response, to store in place of the old ones, or null to keep those.
+		 */
+		public static Result notModified(URI uri, Validators validators) {
+			return new Result(uri, 200, null, new LinkedHashSet<>(), validators, true, false, -1);
+		}
+
+		/**
+		 * The result of an external url whose status was taken from the ResultCache in stead of fetching it.
+		 */
+		public static Result cached(URI uri, int statusCode) {
+			return new Result(uri, statusCode, new LinkedHashSet<>(), new LinkedHashSet<>(), null, false, true, -1);
 		}
 
 		public URI getUri() {
@@ -50,12 +173,81 @@ public class Fetcher {
 		public Set<String> getInvalidLinks() {
 			return invalidLinks;
 		}
+
+		/**
+		 * @return The validators of a page whose links were extracted, or null.
+		 */
+		public Validators getValidators() {
+			return validators;
+		}
+
+		public boolean isNotModified() {
+			return notModified;
+		}
+
+		public boolean isCached() {
+			return cached;
+		}
+
+		/**
+		 * @return The time the server asked to wait before trying again with a Retry-After header, or -1.
+		 */
+		public long getRetryAfterMs() {
+			return retryAfterMs;
+		}
+	}
+
+	/**
+	 * Digests the body while it's read, so it can be compared with the digest stored for the page without keeping a
+	 * copy of the body.
+	 */
+	static class DigestingEntity extends HttpEntityWrapper {
+		private final MessageDigest digest;
+		private InputStream content;
+
+		DigestingEntity(HttpEntity entity) {
+			super(entity);
+			try {
+				digest = MessageDigest.getInstance("SHA-256");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		@Override
+		public InputStream getContent() throws IOException {
+			if (content == null) {
+				content = new DigestInputStream(super.getContent(), digest);
+			}
+			return content;
+		}
+
+		/**
+		 * @return The digest of the part of the body that was read.
+		 */
+		String getDigest() {
+			return Base64.getEncoder().withoutPadding().encodeToString(digest.digest());
+		}
+	}
+
+	/**
+	 * The request methods used to check the status of urls whose body is not needed, from cheapest to most expensive.
+	 */
+	protected enum ProbeMethod {
+		HEAD,
+		RANGE,
+		GET
 	}
 
 	private final Logger logger;
 	private final RunConfig config;
 	private final Extractor extractor;
 	private final URIResolver resolver;
+	private final Map<String, ProbeMethod> probeMethods = new ConcurrentHashMap<>();
+	/**
+	 * The Retry-After of urls being probed, until their result is created.
+	 */
+	private final Map<URI, Long> probeRetryAfterMs = new ConcurrentHashMap<>();
 
 	public Fetcher(Logger logger, RunConfig config, Extractor extractor, URIResolver resolver) {
 		this.logger = logger;
@@ -65,32 +257,296 @@ public class Fetcher {
 	}
 
 	public Result fetch(CloseableHttpClient httpClient, URI url) {
-		var request = new HttpGet(url);
-		request.setConfig(requestConfig);
-		try (CloseableHttpResponse response = httpClient.execute(request)) {
-			int statusCode = response.getStatusLine().getStatusCode();
-
-			logger.trace("Got status " + statusCode + " at " + url);
-
-			HttpEntity responseEntity = response.getEntity();
-			Set<URI> links = new LinkedHashSet<>();
-			Set<String> invalidLinks = new LinkedHashSet<>();
-
-			if (config.shouldExtractLinks(url)) {
-				for (String link : extractor.extract(url, statusCode, response, responseEntity)) {
-					try {
-						final URI target = resolver.resolveUri(url, link);
-						if (target != null) {
-							links.add(target);
-						}
-					} catch (InvalidURIException e) {
-						invalidLinks.add(link);
-					}
+		return fetch(httpClient, url, null);
+	}
+
+	/**
+	 * @param validators The validators stored for the url, to only download it if it changed, or null.
+	 */
+	public Result fetch(CloseableHttpClient httpClient, URI url, Validators validators) {
+		if (shouldProbe(url)) {
+			int statusCode = probe(url, method -> CompletableFuture.completedFuture(execute(httpClient, url, method))).join();
+			return createProbeResult(url, statusCode);
+		}
+
+		for (int attempt = 1; ; attempt++) {
+			var request = new HttpGet(url);
+			request.setConfig(config.getRequestConfig());
+			if (validators != null) {
+				if (validators.getEtag() != null) {
+					request.setHeader("If-None-Match", validators.getEtag());
+				}
+				if (validators.getLastModified() != null) {
+					request.setHeader("If-Modified-Since", validators.getLastModified());
+				}
+			}
+			config.getConnectionStats().requestSent();
+			Watchdog.Watch watch = config.getWatchdog().watch(request::abort);
+			try (watch; CloseableHttpResponse response = httpClient.execute(request)) {
+				watch.headersReceived();
+				int statusCode = response.getStatusLine().getStatusCode();
+
+				logger.trace("Got status " + statusCode + " at " + url);
+
+				if (statusCode == 304 && validators != null) {
+					dispose(url, response);
+					return Result.notModified(url);
+				}
+				Result result = createResult(url, statusCode, response, response.getEntity(), validators);
+				dispose(url, response);
+				if (watch.isExpired()) {
+					// the extractor stops at the error of the aborted body, with only part of the links
+					return new Result(url, 0, null, null);
+				}
+				return result;
+			} catch (ConnectException e) {
+				return new Result(url, 0, null, null);
+			} catch (NoHttpResponseException | SocketException e) {
+				// Some servers drop the connection after a response without a body, such as a 304, which the pool
+				// can't tell until it's reused. Depending on the timing, the reused connection fails without a
+				// response, or with a reset or broken pipe while the request is sent. This is a GET, which may be
+				// repeated by definition, and a server that changes state on a GET has every link fetched on every
+				// run anyway. It's tried once more, and only within the deadline.
+				if (attempt > 1 || watch.isExpired()) {
+					return new Result(url, 0, null, null);
 				}
+			} catch (IOException e) {
+				return new Result(url, 0, null, null);
 			}
-			return new Result(url, statusCode, links, invalidLinks);
-		} catch (IOException e) {
+		}
+	}
+
+	protected boolean shouldProbe(URI url) {
+		return config.useHeadRequests() && !config.shouldExtractLinks(url);
+	}
+
+	/**
+	 * Determine the status of an url without downloading its body. HEAD is tried first; if the host doesn't support
+	 * it, or HEAD reports an error, a GET for the first byte is used and finally a plain GET. The method that works is
+	 * remembered per host, so following requests to that host skip the methods known not to work.
+	 */
+	protected CompletableFuture<Integer> probe(URI url, Function<ProbeMethod, CompletableFuture<Integer>> execute) {
+		final String host = url.getAuthority();
+		final ProbeMethod method = probeMethods.getOrDefault(host, ProbeMethod.HEAD);
+
+		return execute.apply(method).thenCompose(statusCode -> {
+			if (method == ProbeMethod.HEAD && statusCode >= 400) {
+				// HEAD is either not supported or can't be trusted to report the same status as GET; verify.
+				return execute.apply(ProbeMethod.RANGE).thenCompose(verified -> {
+					if (isUnsupportedMethod(statusCode) || (verified > 0 && verified < 400)) {
+						rememberProbeMethod(host, ProbeMethod.RANGE);
+					}
+					return probeRangeResult(host, verified, execute);
+				});
+			} else if (method == ProbeMethod.RANGE) {
+				return probeRangeResult(host, statusCode, execute);
+			}
+			return CompletableFuture.completedFuture(statusCode);
+		});
+	}
+
+	private CompletableFuture<Integer> probeRangeResult(String host, int statusCode, Function<ProbeMethod, CompletableFuture<Integer>> execute) {
+		if (isUnsupportedMethod(statusCode)) {
+			rememberProbeMethod(host, ProbeMethod.GET);
+			return execute.apply(ProbeMethod.GET);
+		} else if (statusCode == 416) {
+			// an empty body can't satisfy the range; only a plain GET will tell.
+			return execute.apply(ProbeMethod.GET);
+		}
+		return CompletableFuture.completedFuture(statusCode == 206 ? 200 : statusCode);
+	}
+
+	private void rememberProbeMethod(String host, ProbeMethod method) {
+		if (probeMethods.put(host, method) != method) {
+			logger.debug("Using {} requests to check urls at {}", method, host);
+		}
+	}
+
+	private static boolean isUnsupportedMethod(int statusCode) {
+		return statusCode == 405 || statusCode == 501;
+	}
+
+	protected Result createProbeResult(URI url, int statusCode) {
+		Long retryAfterMs = probeRetryAfterMs.remove(url);
+		if (statusCode == 0) {
 			return new Result(url, 0, null, null);
 		}
+		return new Result(url, statusCode, new LinkedHashSet<>(), new LinkedHashSet<>(), null, false, false, retryAfterMs != null ? retryAfterMs : -1);
+	}
+
+	/**
+	 * Keep the Retry-After of a probe's response for its result; probes only pass on the status code.
+	 */
+	protected void setProbeRetryAfter(URI url, long retryAfterMs) {
+		if (retryAfterMs >= 0) {
+			probeRetryAfterMs.put(url, retryAfterMs);
+		}
+	}
+
+	private int execute(CloseableHttpClient httpClient, URI url, ProbeMethod method) {
+		for (int attempt = 1; ; attempt++) {
+			HttpRequestBase request = method == ProbeMethod.HEAD ? new HttpHead(url) : new HttpGet(url);
+			if (method == ProbeMethod.RANGE) {
+				request.setHeader("Range", "bytes=0-0");
+			}
+			request.setConfig(config.getRequestConfig());
+			config.getConnectionStats().requestSent();
+			Watchdog.Watch watch = config.getWatchdog().watch(request::abort);
+			try (watch; CloseableHttpResponse response = httpClient.execute(request)) {
+				watch.headersReceived();
+				int statusCode = response.getStatusLine().getStatusCode();
+				logger.trace("Got status " + statusCode + " at " + url + " (" + method + ")");
+				setProbeRetryAfter(url, retryAfterMs(response));
+				dispose(url, response);
+				return statusCode;
+			} catch (ConnectException e) {
+				return 0;
+			} catch (NoHttpResponseException | SocketException e) {
+				// Probes reuse connections a lot more often, and some servers drop the connection after a HEAD request.
+				if (attempt > 1 || watch.isExpired()) {
+					return 0;
+				}
+			} catch (IOException e) {
+				return 0;
+			}
+		}
+	}
+
+	/**
+	 * Closing a response whose body wasn't read to the end closes its connection. Whatever is left of small bodies
+	 * (error pages, redirects, the rest of a page the extractor stopped reading) is read instead, so the connection
+	 * goes back to the pool. Bodies larger than the max drain size are not worth the bandwidth and are aborted.
+	 */
+	private void dispose(URI url, CloseableHttpResponse response) throws IOException {
+		HttpEntity entity = response.getEntity();
+		if (entity == null || !entity.isStreaming()) {
+			return;
+		}
+
+		long maxDrainSize = config.getMaxDrainSize();
+		if (entity.getContentLength() <= maxDrainSize) {
+			try {
+				InputStream content = entity.getContent();
+				byte[] buffer = new byte[(int)Math.min(8192, maxDrainSize + 1)];
+				long drained = 0;
+				int read;
+				while (drained <= maxDrainSize && (read = content.read(buffer)) >= 0) {
+					drained += read;
+				}
+				if (drained <= maxDrainSize) {
+					// at the end of the body; closing the stream releases the connection for reuse
+					content.close();
+					return;
+				}
+			} catch (IOException e) {
+				logger.trace("Could not drain response body of {}: {}", url, e.getMessage());
+			}
+		}
+		logger.trace("Closing connection for {}, response body is too large to drain", url);
+		response.close();
+	}
+
+	/**
+	 * @param stored The validators stored for the url, or null. If the body has the same digest, the links aren't
+	 *               extracted, or if the body could only be read once, not resolved, and the page is not modified.
+	 */
+	protected Result createResult(URI url, int statusCode, CloseableHttpResponse response, HttpEntity responseEntity, Validators stored) throws IOException {
+		Set<URI> links = new LinkedHashSet<>();
+		Set<String> invalidLinks = new LinkedHashSet<>();
+		Validators validators = null;
+
+		if (config.shouldExtractLinks(url)) {
+			long start = System.nanoTime();
+			HttpEntity content = responseEntity;
+			String digest = null;
+			if (statusCode == 200) {
+				validators = Validators.of(response);
+				if (config.useRevalidation() && responseEntity != null && !responseEntity.isRepeatable() && stored != null && stored.getDigest() != null) {
+					content = buffer(responseEntity);
+				}
+				if (config.useRevalidation() && content != null && content.isRepeatable()) {
+					// the body is in memory, so it's digested first and only parsed if it changed
+					DigestingEntity digesting = new DigestingEntity(content);
+					digesting.getContent().transferTo(OutputStream.nullOutputStream());
+					digest = digesting.getDigest();
+					if (isUnchanged(stored, digest)) {
+						config.getMetrics().recordSince(Metrics.Phase.PARSE, start);
+						// the server may send new validators for the same body, which are the ones to send next time
+						return Result.notModified(url, Validators.withDigest(validators, digest));
+					}
+				} else if (config.useRevalidation() && content != null) {
+					content = new DigestingEntity(content);
+				}
+			}
+			Set<String> extracted = extractor.extract(url, statusCode, response, content);
+			if (content instanceof DigestingEntity) {
+				digest = ((DigestingEntity)content).getDigest();
+				if (isUnchanged(stored, digest)) {
+					// parsed, but the links don't need to be resolved and stored again
+					config.getMetrics().recordSince(Metrics.Phase.PARSE, start);
+					return Result.notModified(url, Validators.withDigest(validators, digest));
+				}
+			}
+			if (digest != null) {
+				validators = Validators.withDigest(validators, digest);
+			}
+
+			URIResolver.Base base = resolver.base(url);
+			for (String link : extracted) {
+				try {
+					final URI target = resolver.resolveUri(base, link);
+					if (target != null) {
+						links.add(target);
+					}
+				} catch (InvalidURIException e) {
+					invalidLinks.add(link);
+				}
+			}
+			config.getMetrics().recordSince(Metrics.Phase.PARSE, start);
+		}
+		return new Result(url, statusCode, links, invalidLinks, validators, false, false, retryAfterMs(response));
+	}
+
+	/**
+	 * Reads a body into memory if it's no longer than the maximum document size, so a page with a stored digest is
+	 * digested before it's parsed. A longer body is read on as it's parsed.
+	 */
+	private HttpEntity buffer(HttpEntity entity) throws IOException {
+		long maxSize = config.getMaxDocumentSize();
+		if (entity.getContentLength() > maxSize) {
+			return entity;
+		}
+		InputStream in = entity.getContent();
+		byte[] bytes = in.readNBytes((int)Math.min(maxSize, Integer.MAX_VALUE - 9) + 1);
+		AbstractHttpEntity buffered;
+		if (bytes.length > maxSize) {
+			buffered = new InputStreamEntity(new SequenceInputStream(new ByteArrayInputStream(bytes), in));
+		} else {
+			buffered = new ByteArrayEntity(bytes);
+		}
+		buffered.setContentType(entity.getContentType());
+		return buffered;
+	}
+
+	private static boolean isUnchanged(Validators stored, String digest) {
+		return stored != null && digest.equals(stored.getDigest());
+	}
+
+	/**
+	 * The Retry-After header of the response in milliseconds, which is either a number of seconds or a date, or -1.
+	 */
+	static long retryAfterMs(HttpResponse response) {
+		Header header = response.getFirstHeader("Retry-After");
+		return header == null ? -1 : retryAfterMs(header.getValue());
+	}
+
+	static long retryAfterMs(String value) {
+		value = value.trim();
+		try {
+			return Math.max(0, TimeUnit.SECONDS.toMillis(Long.parseLong(value)));
+		} catch (NumberFormatException e) {
+			Date date = DateUtils.parseDate(value);
+			return date == null ? -1 : Math.max(0, date.getTime() - System.currentTimeMillis());
+		}
 	}
 }
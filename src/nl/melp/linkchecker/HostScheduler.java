@@ -0,0 +1,282 @@
+package nl.melp.linkchecker;
+
+import nl.melp.linkchecker.Fetcher.Result;
+import org.slf4j.Logger;
+
+import java.net.URI;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Decides when urls are fetched. Each host has its own queue, a minimum interval between the start of two requests
+ * and a maximum number of requests at the same time. Urls for a host that has to wait don't hold up urls for other
+ * hosts, so throughput grows with the number of hosts rather than being bound by the slowest politeness rule.
+ *
+ * With an adaptive algorithm, each host gets a limit that follows the latency and the failures of its fetches, with
+ * the maximum per host as upper bound. A fetch that fails or gets a 429, 503 or 504 shrinks the limit. The number of
+ * requests for all hosts together is the sum of their limits, up to the overall maximum; one slow or overloaded host
+ * doesn't hold up the others.
+ */
+public class HostScheduler {
+	private static final int MAX_HOST_LIMITS = 10000;
+
+	private static class Task {
+		private final URI url;
+		private final Supplier<? extends CompletableFuture<?>> fetch;
+		private final CompletableFuture<Object> done = new CompletableFuture<>();
+		private long startNanos;
+
+		Task(URI url, Supplier<? extends CompletableFuture<?>> fetch) {
+			this.url = url;
+			this.fetch = fetch;
+		}
+	}
+
+	private static class Host {
+		private final String name;
+		private final ConcurrencyLimit limit;
+		private final Deque<Task> pending = new ArrayDeque<>();
+		private int active = 0;
+		private long nextStartNanos = 0;
+		private boolean ready = false;
+		private boolean waiting = false;
+
+		Host(String name, ConcurrencyLimit limit) {
+			this.name = name;
+			this.limit = limit;
+		}
+	}
+
+	private final Logger logger;
+	private final int maxActive;
+	private final int maxPerHost;
+	private final long intervalNanos;
+	private final ConcurrencyLimit.Algorithm algorithm;
+	private final ScheduledExecutorService timer;
+
+	private final Map<String, Host> hosts = new HashMap<>();
+	/**
+	 * The limits of hosts outlive their queue, which is removed whenever it's empty.
+	 */
+	private final Map<String, ConcurrencyLimit> hostLimits = new LinkedHashMap<>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, ConcurrencyLimit> eldest) {
+			return size() > MAX_HOST_LIMITS;
+		}
+	};
+	private final Deque<Host> ready = new ArrayDeque<>();
+	private int active = 0;
+	private int pending = 0;
+	private boolean dispatching = false;
+	private boolean redispatch = false;
+
+	/**
+	 * @param maxActive  The maximum number of requests at the same time, for all hosts together.
+	 * @param maxPerHost The maximum number of requests at the same time per host, or 0 for no limit.
+	 * @param intervalMs The minimum time between the start of two requests to the same host.
+	 */
+	public HostScheduler(Logger logger, int maxActive, int maxPerHost, long intervalMs) {
+		this(logger, maxActive, maxPerHost, intervalMs, null);
+	}
+
+	/**
+	 * @param algorithm The algorithm that adapts the limits, or null to keep them fixed.
+	 */
+	public HostScheduler(Logger logger, int maxActive, int maxPerHost, long intervalMs, ConcurrencyLimit.Algorithm algorithm) {
+		this.logger = logger;
+		this.maxActive = maxActive;
+		this.maxPerHost = maxPerHost > 0 ? maxPerHost : Integer.MAX_VALUE;
+		this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMs);
+		this.algorithm = algorithm;
+		this.timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread t = new Thread(runnable);
+			t.setDaemon(true);
+			t.setName("host-scheduler");
+			return t;
+		});
+	}
+
+	/**
+	 * Queue an url. The fetch is started as soon as its host and the overall limit allow; it must return a future
+	 * that completes when the url is processed.
+	 *
+	 * @return A future that completes like the fetch's future.
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> CompletableFuture<T> submit(URI url, Supplier<CompletableFuture<T>> fetch) {
+		Task task = new Task(url, fetch);
+		synchronized (this) {
+			Host host = hosts.computeIfAbsent(url.getHost() == null ? "" : url.getHost(), this::createHost);
+			host.pending.add(task);
+			pending++;
+			update(host);
+		}
+		dispatch();
+		return (CompletableFuture<T>)task.done;
+	}
+
+	/**
+	 * The number of urls that are queued or being fetched.
+	 */
+	public synchronized int size() {
+		return active + pending;
+	}
+
+	/**
+	 * Wait until fewer than max urls are queued or being fetched, so the caller doesn't turn a whole frontier into
+	 * queued tasks ahead of the fetches.
+	 */
+	public synchronized void awaitSizeBelow(int max) throws InterruptedException {
+		while (active + pending >= max) {
+			wait();
+		}
+	}
+
+	/**
+	 * The current maximum number of requests at the same time to the host.
+	 */
+	public synchronized int getLimit(String host) {
+		if (algorithm == null) {
+			return maxPerHost;
+		}
+		ConcurrencyLimit hostLimit = hostLimits.get(host);
+		return hostLimit != null ? hostLimit.getLimit() : Math.min(ConcurrencyLimit.INITIAL_LIMIT, maxPerHost());
+	}
+
+	public void shutdown() {
+		timer.shutdownNow();
+	}
+
+	private void dispatch() {
+		synchronized (this) {
+			if (dispatching) {
+				// fetches that complete right away call back in here; let the running loop pick up their slots.
+				redispatch = true;
+				return;
+			}
+			dispatching = true;
+		}
+
+		boolean idle = false;
+		try {
+			while (true) {
+				List<Task> start = new ArrayList<>();
+				synchronized (this) {
+					while (active < maxActive && !ready.isEmpty()) {
+						Host host = ready.poll();
+						host.ready = false;
+
+						Task task = host.pending.poll();
+						pending--;
+						task.startNanos = System.nanoTime();
+						start.add(task);
+						host.active++;
+						host.nextStartNanos = System.nanoTime() + intervalNanos;
+						active++;
+
+						update(host);
+					}
+					if (start.isEmpty() && !redispatch) {
+						dispatching = false;
+						idle = true;
+						return;
+					}
+					redispatch = false;
+				}
+
+				// started outside of the lock, so slow fetch setup doesn't hold up other threads.
+				for (Task task : start) {
+					CompletableFuture<?> fetched;
+					try {
+						fetched = task.fetch.get();
+					} catch (RuntimeException e) {
+						fetched = CompletableFuture.failedFuture(e);
+					}
+					fetched.whenComplete((result, e) -> complete(task, result, e));
+				}
+			}
+		} finally {
+			if (!idle) {
+				synchronized (this) {
+					dispatching = false;
+				}
+			}
+		}
+	}
+
+	private void complete(Task task, Object result, Throwable e) {
+		synchronized (this) {
+			Host host = hosts.get(task.url.getHost() == null ? "" : task.url.getHost());
+			if (host.limit != null) {
+				int statusCode = result instanceof Result ? ((Result)result).getStatusCode() : -1;
+				boolean dropped = e != null || statusCode == 0 || statusCode == 429 || statusCode == 503 || statusCode == 504;
+				host.limit.onSample(System.nanoTime() - task.startNanos, host.active, dropped);
+			}
+			host.active--;
+			active--;
+			notifyAll();
+			update(host);
+
+			if (host.active == 0 && host.pending.isEmpty() && !host.waiting && host.nextStartNanos <= System.nanoTime()) {
+				hosts.remove(host.name);
+			}
+		}
+		dispatch();
+
+		if (e != null) {
+			task.done.completeExceptionally(e);
+		} else {
+			task.done.complete(result);
+		}
+	}
+
+	private Host createHost(String name) {
+		ConcurrencyLimit hostLimit = null;
+		if (algorithm != null) {
+			hostLimit = hostLimits.computeIfAbsent(name, h -> algorithm.create(maxPerHost()));
+		}
+		return new Host(name, hostLimit);
+	}
+
+	/**
+	 * The upper bound of the limit of a host, which is the overall maximum if there's no maximum per host.
+	 */
+	private int maxPerHost() {
+		return Math.min(maxPerHost, maxActive);
+	}
+
+	/**
+	 * Put the host in the ready queue if it may start its next request now, or set a timer for when it may.
+	 */
+	private void update(Host host) {
+		if (host.ready || host.waiting || host.pending.isEmpty() || host.active >= (host.limit != null ? host.limit.getLimit() : maxPerHost)) {
+			return;
+		}
+
+		long wait = host.nextStartNanos - System.nanoTime();
+		if (wait > 0) {
+			host.waiting = true;
+			logger.trace("Waiting {}ms for {}", TimeUnit.NANOSECONDS.toMillis(wait), host.name);
+			timer.schedule(() -> {
+				synchronized (this) {
+					host.waiting = false;
+					update(host);
+				}
+				dispatch();
+			}, wait, TimeUnit.NANOSECONDS);
+		} else {
+			host.ready = true;
+			ready.add(host);
+		}
+	}
+}
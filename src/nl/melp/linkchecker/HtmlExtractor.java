@@ -6,10 +6,10 @@ import org.apache.http.client.methods.CloseableHttpResponse;
 import org.jsoup.Jsoup;
 import org.jsoup.nodes.Document;
 import org.jsoup.nodes.Element;
-import org.jsoup.select.Elements;
 import org.slf4j.Logger;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
 import java.util.LinkedHashSet;
 import java.util.Set;
@@ -29,12 +29,8 @@ public class HtmlExtractor implements Extractor {
 
 		if (statusCode == 200) {
 			if (contentType.startsWith("text/html")) {
-				Document d = Jsoup.parse(responseEntity.getContent(), "UTF-8", url.toString());
-				Elements links = d.select("a[href]");
-				logger.trace("Found " + links.size() + " on " + url);
-				for (Element link : links) {
-					referred.add(link.attr("href"));
-				}
+				extractLinks(url, responseEntity.getContent(), referred);
+				logger.trace("Found " + referred.size() + " on " + url);
 			} else {
 				logger.trace("Not following links in content type " + contentType);
 			}
@@ -47,6 +43,12 @@ public class HtmlExtractor implements Extractor {
 			logger.debug("Skipping {}, content-type: {}", url, contentType);
 		}
 		return referred;
+	}
 
+	protected void extractLinks(URI url, InputStream content, Set<String> referred) throws IOException {
+		Document d = Jsoup.parse(content, "UTF-8", url.toString());
+		for (Element link : d.select("a[href]")) {
+			referred.add(link.attr("href"));
+		}
 	}
 }
@@ -1,22 +1,29 @@
 package nl.melp.linkchecker;
 
 import nl.melp.linkchecker.Fetcher.Result;
+import nl.melp.linkchecker.Fetcher.Validators;
+import com.sun.net.httpserver.HttpServer;
 import nl.melp.redis.Redis;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.net.ConnectException;
 import java.net.URI;
 import java.security.KeyManagementException;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -24,31 +31,57 @@ import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class LinkChecker {
 	private static final Logger logger = LoggerFactory.getLogger(LinkChecker.class);
+	private static final long CLAIM_INTERVAL_MS = 100;
 	private final BlockingDeque<CloseableHttpClient> clients;
+	private final CloseableHttpClient sharedClient;
+	final HostScheduler scheduler;
 	final Status status;
 	private final RunConfig config;
 	private final ExecutorService executor;
 	private final ScheduledExecutorService loggerService;
 	private final Fetcher fetcher;
-	private int timeout = 30;
+	private final AsyncFetcher asyncFetcher;
 	private final Set<ExecutorService> executorServices;
 	private final LogMonitor logMonitor;
+	private final RetryPolicy retryPolicy;
+	private final AtomicInteger numRetries = new AtomicInteger();
 
 	public LinkChecker(RunConfig config, Status status, Fetcher fetcher) {
 		this.fetcher = fetcher;
+		this.asyncFetcher = fetcher instanceof AsyncFetcher ? (AsyncFetcher) fetcher : null;
 		this.status = status;
 		this.config = config;
+		this.retryPolicy = config.createRetryPolicy();
 
-		AtomicInteger counter = new AtomicInteger(0);
-		this.executor = Executors.newFixedThreadPool(config.getNumThreads(), runnable -> {
-			Thread t = new Thread(runnable);
-			t.setName("http-client-" + counter.incrementAndGet());
-			return t;
-		});
+		if (asyncFetcher != null) {
+			// the fetcher's own I/O threads do the work, so no worker threads or clients are needed.
+			this.executor = null;
+			this.sharedClient = null;
+			this.clients = null;
+		} else if (config.useVirtualThreads()) {
+			this.executor = newVirtualThreadPerTaskExecutor();
+			this.sharedClient = config.createHttpClient();
+			this.clients = null;
+		} else {
+			AtomicInteger counter = new AtomicInteger(0);
+			this.executor = Executors.newFixedThreadPool(config.getNumThreads(), runnable -> {
+				Thread t = new Thread(runnable);
+				t.setName("http-client-" + counter.incrementAndGet());
+				return t;
+			});
+			this.sharedClient = null;
+
+			this.clients = new LinkedBlockingDeque<>(config.getNumThreads());
+			for (int i = 0; i < config.getNumThreads(); i++) {
+				clients.offer(config.createHttpClient());
+			}
+		}
+		this.scheduler = new HostScheduler(logger, config.getConcurrency(), config.getMaxPerHost(), config.getDelayMs(), config.getAdaptiveConcurrency());
 		this.loggerService = Executors.newScheduledThreadPool(1, runnable -> {
 			Thread t = new Thread(runnable);
 			t.setDaemon(true);
@@ -56,100 +89,313 @@ public class LinkChecker {
 			return t;
 		});
 
-		this.clients = new LinkedBlockingDeque<>(config.getNumThreads());
-		for (int i = 0; i < config.getNumThreads(); i++) {
-			clients.offer(config.createHttpClient());
-		}
-
 		executorServices = new HashSet<>();
-		logMonitor = new LogMonitor(logger, this.status);
+		logMonitor = new LogMonitor(logger, this.status, config.getConnectionStats(), config.getMetrics());
 
-		executorServices.add(executor);
+		if (executor != null) {
+			executorServices.add(executor);
+		}
 		executorServices.add(loggerService);
 	}
 
 	public void run() throws InterruptedException {
-		HashMap<Future<?>, Long> startedAt = new HashMap<>();
+		Metrics metrics = config.getMetrics();
+		metrics.register();
+		HttpServer metricsServer = null;
+		if (config.getMetricsPort() > 0) {
+			try {
+				metricsServer = metrics.serve(config.getMetricsPort());
+				logger.info("Serving metrics at http://localhost:" + config.getMetricsPort() + "/metrics");
+			} catch (IOException e) {
+				logger.warn("Could not serve metrics on port " + config.getMetricsPort() + ": " + e.getMessage());
+			}
+		}
 		loggerService.scheduleAtFixedRate(logMonitor::log, 0, 5, TimeUnit.SECONDS);
 
+		if (!config.getSitemaps().isEmpty()) {
+			// not closed, as that would shut down the pool the fetches share
+			new Sitemaps(logger, config, status).seed(config.createHttpClient(), config.getSitemaps());
+		}
+
+		if (status instanceof WorkQueue) {
+			runClaimed((WorkQueue) status);
+		} else {
+			runQueued();
+		}
+
+		status.flush();
+		if (status.externalResults != null) {
+			logger.info(String.format(
+				"External result cache: %d of %d lookups hit (%.1f%%)",
+				status.externalResults.numHits(),
+				status.externalResults.numLookups(),
+				status.externalResults.getHitRate()
+			));
+		}
+		scheduler.shutdown();
+		executorServices.forEach(ExecutorService::shutdown);
+		if (asyncFetcher != null) {
+			asyncFetcher.shutdown();
+		}
+		if (config.getWatchdog().getNumAborted() > 0) {
+			logger.info("Aborted " + config.getWatchdog().getNumAborted() + " requests that passed their deadline");
+		}
+		if (numRetries.get() > 0) {
+			logger.info("Retried " + numRetries.get() + " transient results");
+		}
+		if (!metrics.summary().isEmpty()) {
+			logger.info(metrics.summary());
+		}
+		if (metricsServer != null) {
+			metricsServer.stop(0);
+		}
+		metrics.unregister();
+	}
+
+	private static class Submitted {
+		private final URI url;
+		private final long startedAtMs;
+
+		Submitted(URI url, long startedAtMs) {
+			this.url = url;
+			this.startedAtMs = startedAtMs;
+		}
+	}
+
+	/**
+	 * The longest an url can take: a probe makes up to three requests and a dropped connection is tried once more,
+	 * each within the request timeout, for every retry, plus the delays before the retries.
+	 */
+	private long getMaxFetchMs() {
+		long attempts = retryPolicy.getMaxRetries() + 1;
+		return attempts * 4 * config.getRequestTimeoutMs() + (attempts - 1) * config.getMaxRetryDelayMs();
+	}
+
+	/**
+	 * The number of urls the scheduler may hold. More than the concurrency, so hosts that have to wait don't leave
+	 * the others without work.
+	 */
+	int getMaxScheduled() {
+		return 4 * config.getConcurrency();
+	}
+
+	/**
+	 * Fetch the urls in the queue of the status, including those added while running, until all are done. Only a few
+	 * times the concurrency are handed to the scheduler at a time, so the rest of the queue doesn't take up memory as
+	 * tasks and futures.
+	 */
+	private void runQueued() throws InterruptedException {
+		Map<Future<?>, Submitted> started = new LinkedHashMap<>();
+		long maxFetchMs = getMaxFetchMs();
+		int maxScheduled = getMaxScheduled();
+
 		int i = 0;
 		AtomicInteger size = new AtomicInteger(status.urls.size());
 		for (final URI url : status.urls) {
-			CloseableHttpClient httpClient = clients.take();
-			startedAt.put(executor.submit(
-				() -> {
-					try {
-						// give the system some rest (if configured)
-						if (this.config.getDelayMs() > 0) {
-							Thread.sleep(this.config.getDelayMs());
-						}
-						logger.trace("OPENING " + url);
-						status.add(fetcher.fetch(httpClient, url));
-					} catch (IllegalArgumentException e) {
-						logger.warn(String.format("Error opening url %s (%s: %s); referred to by (at least) %s", url, e.getClass().getCanonicalName(), e.getMessage(), new HashSet<>(status.reverseLinks.getOrDefault(url, null))), e);
-						status.add(new Result(url, 0, null, null));
-					} catch (InterruptedException e) {
-						e.printStackTrace();
-						Thread.currentThread().interrupt();
-						status.add(new Result(url, 0, null, null));
-					} finally {
-						clients.offer(httpClient);
-					}
-				}
-			), System.currentTimeMillis());
+			scheduler.awaitSizeBelow(maxScheduled);
+			started.put(submit(url), new Submitted(url, System.currentTimeMillis()));
 
 			i ++;
 			if (i < size.get()) {
-				if (i % config.getNumThreads() == 0) {
+				if (i % config.getConcurrency() == 0) {
 					Set<Future<?>> remove = new LinkedHashSet<>();
-					startedAt.keySet().forEach((r) -> {
+					started.keySet().forEach((r) -> {
 						if (r.isDone()) {
 							remove.add(r);
 						}
 					});
-					remove.forEach(startedAt::remove);
+					remove.forEach(started::remove);
 				}
 			} else {
+				status.flush();
 				size.set(status.urls.size());
 
 				if (i == size.get()) {
 					Set<Future<?>> remove = new LinkedHashSet<>();
 
 					logger.debug("Queue drained, resolving futures");
-					startedAt.keySet().forEach((r) -> {
-						if (!r.isCancelled() && startedAt.get(r) - System.currentTimeMillis() >= timeout * 1000) {
-							r.cancel(false);
-						} else if (startedAt.get(r) - System.currentTimeMillis() >= timeout * 2 * 1000) {
+					for (Map.Entry<Future<?>, Submitted> entry : started.entrySet()) {
+						Future<?> r = entry.getKey();
+						long remainingMs = entry.getValue().startedAtMs + maxFetchMs - System.currentTimeMillis();
+						try {
+							r.get(Math.max(0, remainingMs), TimeUnit.MILLISECONDS);
+						} catch (TimeoutException e) {
+							// every request has a deadline, so this only happens if something else hangs
+							logger.warn("Gave up on {} after {}s", entry.getValue().url, maxFetchMs / 1000);
 							r.cancel(true);
-						} else {
-							if (!r.isCancelled()) {
-								try {
-									r.get();
-								} catch (InterruptedException | ExecutionException e) {
-									e.printStackTrace();
-								}
-								remove.add(r);
-							}
+							store(new Result(entry.getValue().url, 0, null, null));
+						} catch (InterruptedException | ExecutionException e) {
+							e.printStackTrace();
 						}
-					});
-					remove.forEach(startedAt::remove);
+						remove.add(r);
+						if (status.urls.size() > i) {
+							// the fetch found new urls; get those going rather than wait for every queued url first
+							break;
+						}
+					}
+					remove.forEach(started::remove);
+
+					// make sure all links found by the resolved futures are in the queue before it's considered empty
+					status.flush();
 				}
 			}
 		}
+	}
 
-		executorServices.forEach(ExecutorService::shutdown);
+	/**
+	 * Fetch the urls claimed from a queue shared with other processes, until none are left and no process is still
+	 * fetching one, as that may add more.
+	 */
+	private void runClaimed(WorkQueue queue) throws InterruptedException {
+		AtomicInteger inFlight = new AtomicInteger(0);
+
+		while (true) {
+			// only this thread adds to the number in flight, so the capacity can only grow while claiming
+			int capacity = config.getConcurrency() - inFlight.get();
+			List<URI> claimed = capacity > 0 ? queue.claim(capacity) : Collections.emptyList();
+			if (claimed.isEmpty() && capacity > 0) {
+				// the urls to claim may be waiting in the buffered results of this process
+				status.flush();
+				claimed = queue.claim(capacity);
+			}
+			inFlight.addAndGet(claimed.size());
+
+			for (URI url : claimed) {
+				submit(url).whenComplete((ignored, e) -> {
+					if (e != null) {
+						logger.error("Error fetching " + url, e);
+						queue.abandon(url);
+					}
+					synchronized (inFlight) {
+						inFlight.decrementAndGet();
+						inFlight.notifyAll();
+					}
+				});
+			}
+
+			if (claimed.isEmpty()) {
+				if (inFlight.get() == 0 && queue.isDrained()) {
+					break;
+				}
+				synchronized (inFlight) {
+					inFlight.wait(CLAIM_INTERVAL_MS);
+				}
+			}
+		}
+	}
+
+	private CompletableFuture<Void> submit(URI url) {
+		Integer cached = status.getCachedStatus(url);
+		if (cached != null) {
+			store(Result.cached(url, cached));
+			return CompletableFuture.completedFuture(null);
+		}
+		return submit(url, 0);
+	}
+
+	/**
+	 * Fetch the url and store the result, unless the retry policy says it may be transient; then the url is fetched
+	 * again after a delay, which doesn't take up a thread or a slot of the scheduler.
+	 */
+	private CompletableFuture<Void> submit(URI url, int retries) {
+		return scheduler.submit(url, () -> fetch(url)).thenCompose(result -> {
+			long delay = retryPolicy.getDelayMs(result, retries);
+			if (delay < 0) {
+				store(result);
+				return CompletableFuture.completedFuture(null);
+			}
+			logger.debug("Retrying {} in {}ms after status {}", url, delay, result.getStatusCode());
+			numRetries.incrementAndGet();
+			return CompletableFuture.completedFuture(null)
+				.thenComposeAsync(ignored -> submit(url, retries + 1), CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS));
+		});
+	}
+
+	/**
+	 * @return The result, which the scheduler adapts its limits to.
+	 */
+	private CompletableFuture<Result> fetch(URI url) {
+		if (asyncFetcher != null) {
+			Validators validators = status.getValidators(url);
+			long start = System.nanoTime();
+			return (validators == null ? asyncFetcher.fetchAsync(url) : asyncFetcher.fetchAsync(url, validators))
+				.thenApply(result -> {
+					config.getMetrics().recordSince(Metrics.Phase.FETCH, start);
+					return result;
+				})
+				.whenComplete((ignored, e) -> {
+					if (e != null) {
+						logger.error("Error processing result for " + url, e);
+					}
+				});
+		}
+
+		return CompletableFuture.supplyAsync(
+			() -> {
+				CloseableHttpClient httpClient = null;
+				try {
+					httpClient = acquireClient();
+					logger.trace("OPENING " + url);
+					Validators validators = status.getValidators(url);
+					long start = System.nanoTime();
+					Result result = validators == null ? fetcher.fetch(httpClient, url) : fetcher.fetch(httpClient, url, validators);
+					config.getMetrics().recordSince(Metrics.Phase.FETCH, start);
+					return result;
+				} catch (IllegalArgumentException e) {
+					logger.warn(String.format("Error opening url %s (%s: %s)", url, e.getClass().getCanonicalName(), e.getMessage()), e);
+					return new Result(url, 0, null, null);
+				} catch (InterruptedException e) {
+					e.printStackTrace();
+					Thread.currentThread().interrupt();
+					return new Result(url, 0, null, null);
+				} finally {
+					releaseClient(httpClient);
+				}
+			},
+			executor
+		);
+	}
+
+	private void store(Result result) {
+		if (!result.isCached()) {
+			config.getMetrics().countResponse(result.getUri(), result.getStatusCode());
+		}
+		long start = System.nanoTime();
+		status.add(result);
+		config.getMetrics().recordSince(Metrics.Phase.STORE, start);
+	}
+
+	private CloseableHttpClient acquireClient() throws InterruptedException {
+		// the scheduler never runs more fetches than there are clients, so this doesn't block
+		return sharedClient != null ? sharedClient : clients.take();
+	}
+
+	private void releaseClient(CloseableHttpClient httpClient) {
+		if (httpClient != null && httpClient != sharedClient) {
+			clients.offer(httpClient);
+		}
+	}
+
+	private static ExecutorService newVirtualThreadPerTaskExecutor() {
+		// Looked up reflectively so the project still compiles on JDKs that predate virtual threads.
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("--virtual-threads requires Java 21 or later", e);
+		}
 	}
 
 	public static void main(String[] rawArgs) throws InterruptedException, IOException, KeyManagementException, NoSuchAlgorithmException, KeyStoreException {
 		final RunConfig config = new RunConfig(logger, rawArgs);
 
-		try (Redis.Managed redis = config.connect()) {
-			Status status = config.createStatus(redis);
-			LinkChecker linkChecker = new LinkChecker(config, status, new Fetcher(logger, config, new HtmlExtractor(logger), new URIResolver(logger)));
-			linkChecker.run();
-			config.report(redis, linkChecker);
-		} catch (ConnectException e) {
-			throw new RuntimeException(String.format("Error connecting to redis at %s:%s", config.getRedisHost(), config.getRedisPort()), e);
+		if (!config.useRedisBackend()) {
+			run(config, null);
+		} else {
+			try (Redis.Managed redis = config.connect()) {
+				run(config, redis);
+			} catch (ConnectException e) {
+				throw new RuntimeException(String.format("Error connecting to redis at %s:%s", config.getRedisHost(), config.getRedisPort()), e);
+			}
 		}
 
 		if (!config.hasFlag("resume") && !config.hasFlag("reset") && !config.hasFlag("report")) {
@@ -157,6 +403,19 @@ public class LinkChecker {
 		}
 	}
 
+	private static void run(RunConfig config, Redis redis) throws InterruptedException, IOException {
+		Status status = config.createStatus(redis);
+		Fetcher fetcher = config.useAsyncFetcher()
+			? new AsyncFetcher(logger, config, config.createExtractor(), new URIResolver(logger))
+			: new Fetcher(logger, config, config.createExtractor(), new URIResolver(logger));
+		LinkChecker linkChecker = new LinkChecker(config, status, fetcher);
+		linkChecker.run();
+		config.report(redis, linkChecker);
+		if (status instanceof Closeable) {
+			((Closeable)status).close();
+		}
+	}
+
 	public static boolean isErrorStatus(int v) {
 		return v <= 0 || v >= 400;
 	}
@@ -6,12 +6,16 @@ public class LogMonitor {
 	private final Logger logger;
 	private final long startTimeMs;
 	private final Status status;
+	private final ConnectionStats connectionStats;
+	private final Metrics metrics;
 
-	public LogMonitor(Logger logger, Status status) {
+	public LogMonitor(Logger logger, Status status, ConnectionStats connectionStats, Metrics metrics) {
 		this.startTimeMs = System.currentTimeMillis();
 
 		this.logger = logger;
 		this.status = status;
+		this.connectionStats = connectionStats;
+		this.metrics = metrics;
 	}
 
 	public void log() {
@@ -28,9 +32,24 @@ public class LogMonitor {
 				logger.warn("Memory consumption is high. This might cause instability. Consider increasing available memory with -Xmx and -Xms flags");
 			}
 
+			StringBuilder details = new StringBuilder();
+			if (connectionStats.getRequests() > 0) {
+				details.append(String.format(", connection reuse: %.1f%%", connectionStats.getReuseRate()));
+			}
+			if (status.externalResults != null && status.externalResults.numLookups() > 0) {
+				details.append(String.format(", cache hits: %.1f%%", status.externalResults.getHitRate()));
+			}
+			if (status.numNotModified() > 0) {
+				details.append(", not modified: ").append(status.numNotModified());
+			}
+			String phases = metrics.summary();
+			if (!phases.isEmpty()) {
+				details.append(", ").append(phases);
+			}
+
 			logger.info(
 				String.format(
-					"[%.1f%%] (%d of %d remaining); (run time %ds, avg %d/s, mem usage: %d MB of %d MB (%.2f%%))",
+					"[%.1f%%] (%d of %d remaining); (run time %ds, avg %d/s, mem usage: %d MB of %d MB (%.2f%%)%s)",
 					((float)size / status.numQueueud()) * 100,
 					status.numPending(),
 					status.numQueueud(),
@@ -38,7 +57,8 @@ public class LogMonitor {
 					size / (dt > 0 ? dt : 1),
 					memUsed / 1024 / 1024,
 					memTotal / 1024 / 1024,
-					memUsagePct
+					memUsagePct,
+					details
 				)
 			);
 		} catch (Exception e) {
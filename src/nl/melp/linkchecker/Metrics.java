@@ -0,0 +1,359 @@
+package nl.melp.linkchecker;
+
+import com.sun.net.httpserver.HttpServer;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency histograms of the phases of checking an url, and the number of responses by status class and by host. They
+ * are registered in JMX while the link checker runs, and served in the Prometheus text format with --metrics-port.
+ */
+public class Metrics {
+	public enum Phase {
+		/**
+		 * Resolving the host name of a new connection.
+		 */
+		DNS,
+		/**
+		 * Opening a new connection, not counting the TLS handshake.
+		 */
+		CONNECT,
+		TLS,
+		/**
+		 * From sending a request to receiving the headers of the response.
+		 */
+		TTFB,
+		/**
+		 * Extracting and resolving the links of a page.
+		 */
+		PARSE,
+		/**
+		 * Adding the result to the status.
+		 */
+		STORE,
+		/**
+		 * Fetching an url, from the start of the first request to the result, before it's stored.
+		 */
+		FETCH;
+
+		String label() {
+			return name().toLowerCase(Locale.ROOT);
+		}
+	}
+
+	private static final int MAX_HOSTS = 1000;
+	private static final String OTHER_HOSTS = "other";
+	private static final String OBJECT_NAME = "nl.melp.linkchecker:type=Metrics";
+	/**
+	 * The metrics that are registered, guarded by the class; link checkers that run in the same JVM take turns.
+	 */
+	private static Metrics registered = null;
+
+	/**
+	 * Upper bounds of the buckets, in seconds.
+	 */
+	static final double[] BUCKETS = {0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60};
+
+	public static class Histogram {
+		private final LongAdder[] counts = new LongAdder[BUCKETS.length + 1];
+		private final LongAdder sumNanos = new LongAdder();
+
+		Histogram() {
+			for (int i = 0; i < counts.length; i++) {
+				counts[i] = new LongAdder();
+			}
+		}
+
+		void record(long nanos) {
+			double seconds = nanos / 1_000_000_000.0;
+			int bucket = 0;
+			while (bucket < BUCKETS.length && seconds > BUCKETS[bucket]) {
+				bucket++;
+			}
+			counts[bucket].increment();
+			sumNanos.add(nanos);
+		}
+
+		public long getCount() {
+			long count = 0;
+			for (LongAdder c : counts) {
+				count += c.sum();
+			}
+			return count;
+		}
+
+		public double getMeanMs() {
+			long count = getCount();
+			return count == 0 ? 0 : sumNanos.sum() / 1_000_000.0 / count;
+		}
+
+		/**
+		 * @return The upper bound of the bucket the quantile falls in, in milliseconds, or infinity if that's the last.
+		 */
+		public double getQuantileMs(double quantile) {
+			long count = getCount();
+			if (count == 0) {
+				return 0;
+			}
+			long rank = (long)Math.ceil(quantile * count);
+			long seen = 0;
+			for (int i = 0; i < BUCKETS.length; i++) {
+				seen += counts[i].sum();
+				if (seen >= rank) {
+					return BUCKETS[i] * 1000;
+				}
+			}
+			return Double.POSITIVE_INFINITY;
+		}
+	}
+
+	private final Map<Phase, Histogram> phases = new EnumMap<>(Phase.class);
+	/**
+	 * Index 0 counts the urls that got no response at all, 1 to 5 the status classes.
+	 */
+	private final LongAdder[] statusClasses = new LongAdder[6];
+	private final Map<String, LongAdder[]> hosts = new ConcurrentHashMap<>();
+
+	public Metrics() {
+		for (Phase phase : Phase.values()) {
+			phases.put(phase, new Histogram());
+		}
+		for (int i = 0; i < statusClasses.length; i++) {
+			statusClasses[i] = new LongAdder();
+		}
+	}
+
+	public Histogram get(Phase phase) {
+		return phases.get(phase);
+	}
+
+	public void record(Phase phase, long nanos) {
+		phases.get(phase).record(nanos);
+	}
+
+	/**
+	 * Record the time since startNanos, as returned by System.nanoTime().
+	 */
+	public void recordSince(Phase phase, long startNanos) {
+		record(phase, System.nanoTime() - startNanos);
+	}
+
+	public void countResponse(URI url, int statusCode) {
+		statusClasses[statusCode >= 100 && statusCode < 600 ? statusCode / 100 : 0].increment();
+
+		String host = url.getHost() == null ? "" : url.getHost();
+		LongAdder[] counts = hosts.get(host);
+		if (counts == null) {
+			// a crawl that spans many external hosts shouldn't grow this without bounds
+			counts = hosts.computeIfAbsent(hosts.size() < MAX_HOSTS ? host : OTHER_HOSTS, k -> new LongAdder[]{new LongAdder(), new LongAdder()});
+		}
+		counts[0].increment();
+		if (LinkChecker.isErrorStatus(statusCode)) {
+			counts[1].increment();
+		}
+	}
+
+	private static String statusClass(int i) {
+		return i == 0 ? "none" : i + "xx";
+	}
+
+	/**
+	 * A line for the progress log, with the mean duration of every phase that was recorded.
+	 */
+	public String summary() {
+		List<String> parts = new ArrayList<>();
+		for (Phase phase : Phase.values()) {
+			Histogram histogram = phases.get(phase);
+			if (histogram.getCount() > 0) {
+				parts.add(String.format(Locale.ROOT, "%s %.1f", phase.label(), histogram.getMeanMs()));
+			}
+		}
+		return parts.isEmpty() ? "" : "mean ms per phase: " + String.join(", ", parts);
+	}
+
+	/**
+	 * The metrics in version 0.0.4 of the Prometheus text format.
+	 */
+	public String toPrometheus() {
+		StringBuilder out = new StringBuilder();
+		out.append("# HELP linkchecker_phase_seconds Time spent in each phase of checking an url.\n");
+		out.append("# TYPE linkchecker_phase_seconds histogram\n");
+		for (Phase phase : Phase.values()) {
+			Histogram histogram = phases.get(phase);
+			long cumulative = 0;
+			for (int i = 0; i <= BUCKETS.length; i++) {
+				cumulative += histogram.counts[i].sum();
+				String le = i < BUCKETS.length ? Double.toString(BUCKETS[i]) : "+Inf";
+				out.append("linkchecker_phase_seconds_bucket{phase=\"").append(phase.label()).append("\",le=\"").append(le).append("\"} ").append(cumulative).append('\n');
+			}
+			out.append("linkchecker_phase_seconds_sum{phase=\"").append(phase.label()).append("\"} ").append(histogram.sumNanos.sum() / 1_000_000_000.0).append('\n');
+			out.append("linkchecker_phase_seconds_count{phase=\"").append(phase.label()).append("\"} ").append(cumulative).append('\n');
+		}
+
+		out.append("# HELP linkchecker_responses_total Responses by status class; \"none\" if there was no response.\n");
+		out.append("# TYPE linkchecker_responses_total counter\n");
+		for (int i = 0; i < statusClasses.length; i++) {
+			out.append("linkchecker_responses_total{class=\"").append(statusClass(i)).append("\"} ").append(statusClasses[i].sum()).append('\n');
+		}
+
+		out.append("# HELP linkchecker_host_responses_total Responses by host, and whether they were errors.\n");
+		out.append("# TYPE linkchecker_host_responses_total counter\n");
+		hosts.forEach((host, counts) -> {
+			String label = host.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+			out.append("linkchecker_host_responses_total{host=\"").append(label).append("\",result=\"ok\"} ").append(counts[0].sum() - counts[1].sum()).append('\n');
+			out.append("linkchecker_host_responses_total{host=\"").append(label).append("\",result=\"error\"} ").append(counts[1].sum()).append('\n');
+		});
+		return out.toString();
+	}
+
+	/**
+	 * The values shown as attributes in JMX.
+	 */
+	Map<String, Object> attributes() {
+		Map<String, Object> attributes = new LinkedHashMap<>();
+		for (Phase phase : Phase.values()) {
+			Histogram histogram = phases.get(phase);
+			attributes.put(phase.label() + ".count", histogram.getCount());
+			attributes.put(phase.label() + ".meanMs", histogram.getMeanMs());
+			attributes.put(phase.label() + ".p50Ms", histogram.getQuantileMs(0.5));
+			attributes.put(phase.label() + ".p99Ms", histogram.getQuantileMs(0.99));
+		}
+		for (int i = 0; i < statusClasses.length; i++) {
+			attributes.put("responses." + statusClass(i), statusClasses[i].sum());
+		}
+		hosts.forEach((host, counts) -> {
+			attributes.put("host." + host + ".responses", counts[0].sum());
+			attributes.put("host." + host + ".errors", counts[1].sum());
+		});
+		return attributes;
+	}
+
+	private class MBean implements DynamicMBean {
+		@Override
+		public Object getAttribute(String attribute) throws AttributeNotFoundException {
+			Object value = attributes().get(attribute);
+			if (value == null) {
+				throw new AttributeNotFoundException(attribute);
+			}
+			return value;
+		}
+
+		/**
+		 * All attributes are read only, so there are none to set.
+		 */
+		@Override
+		public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+			throw new AttributeNotFoundException("No writable attribute " + attribute.getName());
+		}
+
+		@Override
+		public AttributeList getAttributes(String[] names) {
+			Map<String, Object> attributes = attributes();
+			AttributeList list = new AttributeList();
+			for (String name : names) {
+				if (attributes.containsKey(name)) {
+					list.add(new Attribute(name, attributes.get(name)));
+				}
+			}
+			return list;
+		}
+
+		@Override
+		public AttributeList setAttributes(AttributeList attributes) {
+			return new AttributeList();
+		}
+
+		@Override
+		public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+			throw new ReflectionException(new NoSuchMethodException(actionName), "No operation " + actionName);
+		}
+
+		@Override
+		public MBeanInfo getMBeanInfo() {
+			List<MBeanAttributeInfo> infos = new ArrayList<>();
+			attributes().forEach((name, value) -> infos.add(new MBeanAttributeInfo(name, value.getClass().getName(), name, true, false, false)));
+			return new MBeanInfo(Metrics.class.getName(), "Link checker metrics", infos.toArray(new MBeanAttributeInfo[0]), null, null, null);
+		}
+	}
+
+	/**
+	 * Register the metrics in the platform MBean server, in place of those of an earlier link checker in this JVM.
+	 */
+	public void register() {
+		synchronized (Metrics.class) {
+			try {
+				MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+				ObjectName name = new ObjectName(OBJECT_NAME);
+				if (server.isRegistered(name)) {
+					server.unregisterMBean(name);
+				}
+				server.registerMBean(new MBean(), name);
+				registered = this;
+			} catch (JMException e) {
+				throw new IllegalStateException("Could not register the metrics in JMX", e);
+			}
+		}
+	}
+
+	/**
+	 * Unregister the metrics, unless other metrics were registered since.
+	 */
+	public void unregister() {
+		synchronized (Metrics.class) {
+			if (registered != this) {
+				return;
+			}
+			try {
+				MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+				ObjectName name = new ObjectName(OBJECT_NAME);
+				if (server.isRegistered(name)) {
+					server.unregisterMBean(name);
+				}
+				registered = null;
+			} catch (JMException e) {
+				throw new IllegalStateException("Could not unregister the metrics from JMX", e);
+			}
+		}
+	}
+
+	/**
+	 * Serve the metrics at http://localhost:PORT/metrics, for Prometheus to scrape.
+	 */
+	public HttpServer serve(int port) throws IOException {
+		HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		server.createContext("/metrics", exchange -> {
+			byte[] body = toPrometheus().getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().add("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+			exchange.sendResponseHeaders(200, body.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(body);
+			}
+		});
+		server.start();
+		return server;
+	}
+}
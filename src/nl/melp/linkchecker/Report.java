@@ -0,0 +1,283 @@
+package nl.melp.linkchecker;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Receives the results of a crawl one at a time, as Status.report() walks the storage, and writes them right away, so
+ * a report of millions of urls doesn't need more memory than one of ten.
+ */
+public abstract class Report implements Closeable {
+	public enum Format {
+		TEXT,
+		JSONL,
+		CSV,
+		JUNIT;
+
+		public static Format of(String name) {
+			return valueOf(name.toUpperCase(Locale.ROOT));
+		}
+
+		public Report create(Writer out) {
+			return switch (this) {
+				case TEXT -> new Text(out);
+				case JSONL -> new JsonLines(out);
+				case CSV -> new Csv(out);
+				case JUNIT -> new JUnit(out);
+			};
+		}
+	}
+
+	/**
+	 * The invalid links found on a page.
+	 */
+	public abstract void invalid(URI page, Set<String> links);
+
+	/**
+	 * @param referers The pages that link to the url, or null if it's not an error.
+	 */
+	public abstract void status(URI url, int statusCode, Iterable<URI> referers);
+
+	/**
+	 * Called after all statuses are reported.
+	 *
+	 * @param numInvalid The number of pages with invalid links.
+	 */
+	public abstract void summary(int numSuccess, int numErr, int numInvalid, int numChecked);
+
+	/**
+	 * A report written to a stream. IOExceptions are rethrown unchecked, as the report is written from callbacks.
+	 */
+	private abstract static class Output extends Report {
+		private final Writer out;
+
+		Output(Writer out) {
+			this.out = out;
+		}
+
+		protected void write(String s) {
+			try {
+				out.write(s);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			out.flush();
+		}
+	}
+
+	/**
+	 * The plain text report that is printed by default.
+	 */
+	static class Text extends Output {
+		Text(Writer out) {
+			super(out);
+		}
+
+		@Override
+		public void invalid(URI page, Set<String> links) {
+			write(String.format("INVALID url ocurred at: %s - referred by following urls\n", page));
+			for (String link : links) {
+				write(String.format(" + %s\n", link));
+			}
+		}
+
+		@Override
+		public void status(URI url, int statusCode, Iterable<URI> referers) {
+			if (referers == null) {
+				write(String.format("[OK] at %s%n", url));
+				return;
+			}
+			write(String.format("[%d] at %s (referred by following urls:)\n", statusCode, url));
+			for (URI referredBy : referers) {
+				write(String.format(" + %s\n", referredBy));
+			}
+		}
+
+		@Override
+		public void summary(int numSuccess, int numErr, int numInvalid, int numChecked) {
+			write(String.format("Success: %d, Errors: %d, Invalids: %d%n", numSuccess, numErr, numInvalid));
+			write(String.format("Total number of resolved statuses: %d%n", numChecked));
+		}
+	}
+
+	/**
+	 * One JSON object per line, with a "type" of "invalid", "status" or "summary".
+	 */
+	static class JsonLines extends Output {
+		JsonLines(Writer out) {
+			super(out);
+		}
+
+		static String quote(String s) {
+			StringBuilder quoted = new StringBuilder(s.length() + 2).append('"');
+			for (int i = 0; i < s.length(); i++) {
+				char c = s.charAt(i);
+				switch (c) {
+					case '"' -> quoted.append("\\\"");
+					case '\\' -> quoted.append("\\\\");
+					case '\n' -> quoted.append("\\n");
+					case '\r' -> quoted.append("\\r");
+					case '\t' -> quoted.append("\\t");
+					default -> {
+						if (c < 0x20) {
+							quoted.append(String.format("\\u%04x", (int)c));
+						} else {
+							quoted.append(c);
+						}
+					}
+				}
+			}
+			return quoted.append('"').toString();
+		}
+
+		private static String array(Iterable<?> values) {
+			List<String> quoted = new ArrayList<>();
+			for (Object value : values) {
+				quoted.add(quote(value.toString()));
+			}
+			return "[" + String.join(",", quoted) + "]";
+		}
+
+		@Override
+		public void invalid(URI page, Set<String> links) {
+			write("{\"type\":\"invalid\",\"url\":" + quote(page.toString()) + ",\"links\":" + array(links) + "}\n");
+		}
+
+		@Override
+		public void status(URI url, int statusCode, Iterable<URI> referers) {
+			write("{\"type\":\"status\",\"url\":" + quote(url.toString()) + ",\"status\":" + statusCode
+				+ (referers == null ? "" : ",\"error\":true,\"referers\":" + array(referers)) + "}\n");
+		}
+
+		@Override
+		public void summary(int numSuccess, int numErr, int numInvalid, int numChecked) {
+			write(String.format("{\"type\":\"summary\",\"success\":%d,\"errors\":%d,\"invalids\":%d,\"checked\":%d}\n", numSuccess, numErr, numInvalid, numChecked));
+		}
+	}
+
+	/**
+	 * One row per link: "error" rows for every page that refers to the url, "ok" rows without a referer, and
+	 * "invalid" rows with the invalid link in the url column and the page it's on as the referer.
+	 */
+	static class Csv extends Output {
+		Csv(Writer out) {
+			super(out);
+			write("type,url,status,referer\r\n");
+		}
+
+		static String field(String s) {
+			if (s.indexOf(',') < 0 && s.indexOf('"') < 0 && s.indexOf('\n') < 0 && s.indexOf('\r') < 0) {
+				return s;
+			}
+			return "\"" + s.replace("\"", "\"\"") + "\"";
+		}
+
+		private void row(String type, String url, String status, String referer) {
+			write(type + "," + field(url) + "," + status + "," + field(referer) + "\r\n");
+		}
+
+		@Override
+		public void invalid(URI page, Set<String> links) {
+			for (String link : links) {
+				row("invalid", link, "", page.toString());
+			}
+		}
+
+		@Override
+		public void status(URI url, int statusCode, Iterable<URI> referers) {
+			if (referers == null) {
+				row("ok", url.toString(), Integer.toString(statusCode), "");
+				return;
+			}
+			boolean any = false;
+			for (URI referer : referers) {
+				row("error", url.toString(), Integer.toString(statusCode), referer.toString());
+				any = true;
+			}
+			if (!any) {
+				// e.g. a start url
+				row("error", url.toString(), Integer.toString(statusCode), "");
+			}
+		}
+
+		@Override
+		public void summary(int numSuccess, int numErr, int numInvalid, int numChecked) {
+		}
+	}
+
+	/**
+	 * A JUnit XML test suite with a test case per url, so CI servers show the broken links as failed tests. The
+	 * numbers aren't known until the end, so they're in the system-out of the suite in stead of its attributes.
+	 */
+	static class JUnit extends Output {
+		JUnit(Writer out) {
+			super(out);
+			write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<testsuite name=\"linkchecker\">\n");
+		}
+
+		static String escape(String s) {
+			StringBuilder escaped = new StringBuilder(s.length());
+			for (int i = 0; i < s.length(); i++) {
+				char c = s.charAt(i);
+				switch (c) {
+					case '&' -> escaped.append("&amp;");
+					case '<' -> escaped.append("&lt;");
+					case '>' -> escaped.append("&gt;");
+					case '"' -> escaped.append("&quot;");
+					case '\n', '\t', '\r' -> escaped.append("&#").append((int)c).append(';');
+					default -> {
+						// not allowed in XML 1.0 at all
+						if (c >= 0x20) {
+							escaped.append(c);
+						}
+					}
+				}
+			}
+			return escaped.toString();
+		}
+
+		private static String className(URI url) {
+			return url.getHost() == null ? "" : url.getHost();
+		}
+
+		@Override
+		public void invalid(URI page, Set<String> links) {
+			for (String link : links) {
+				write("  <testcase classname=\"" + escape(className(page)) + "\" name=\"" + escape(link) + "\">\n");
+				write("    <failure message=\"invalid url\">at " + escape(page.toString()) + "</failure>\n");
+				write("  </testcase>\n");
+			}
+		}
+
+		@Override
+		public void status(URI url, int statusCode, Iterable<URI> referers) {
+			String testCase = "  <testcase classname=\"" + escape(className(url)) + "\" name=\"" + escape(url.toString()) + "\"";
+			if (referers == null) {
+				write(testCase + "/>\n");
+				return;
+			}
+			write(testCase + ">\n    <failure message=\"" + statusCode + "\">referred by:");
+			for (URI referer : referers) {
+				write("\n" + escape(referer.toString()));
+			}
+			write("</failure>\n  </testcase>\n");
+		}
+
+		@Override
+		public void summary(int numSuccess, int numErr, int numInvalid, int numChecked) {
+			write(String.format("  <system-out>Success: %d, Errors: %d, Invalids: %d, Checked: %d</system-out>\n", numSuccess, numErr, numInvalid, numChecked));
+			write("</testsuite>\n");
+		}
+	}
+}
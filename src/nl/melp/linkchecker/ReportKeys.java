@@ -0,0 +1,103 @@
+package nl.melp.linkchecker;
+
+import nl.melp.redis.Redis;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.StreamSupport;
+
+/**
+ * Writes the reported statuses and their referers to the reporting keys in Redis, besides passing them on to a
+ * report. The writes are sent in pipelined batches rather than a round trip each.
+ */
+public class ReportKeys extends Report {
+	public static final String STATUSES = LinkChecker.class.getCanonicalName() + ".report.statuses";
+	public static final String REFERERS = LinkChecker.class.getCanonicalName() + ".report.referers";
+	private static final int BATCH_SIZE = 500;
+	/**
+	 * An invalid link can be on many pages, which are reported one at a time.
+	 */
+	private static final String APPEND_REFERER = String.join("\n",
+		"local referers = redis.call('HGET', KEYS[1], ARGV[1])",
+		"if referers then",
+		"  redis.call('HSET', KEYS[1], ARGV[1], referers .. '\\n' .. ARGV[2])",
+		"else",
+		"  redis.call('HSET', KEYS[1], ARGV[1], ARGV[2])",
+		"end"
+	);
+
+	private final Redis redis;
+	private final Report report;
+	private final String appendReferer;
+	private final List<String[]> commands = new ArrayList<>();
+
+	public ReportKeys(Redis redis, Report report) throws IOException {
+		this.redis = redis;
+		this.report = report;
+		synchronized (redis) {
+			redis.call("DEL", STATUSES, REFERERS);
+			appendReferer = new String(redis.<byte[]>call("SCRIPT", "LOAD", APPEND_REFERER));
+		}
+	}
+
+	@Override
+	public void invalid(URI page, Set<String> links) {
+		report.invalid(page, links);
+		for (String link : links) {
+			add("HSET", STATUSES, link, "0");
+			add("EVALSHA", appendReferer, "1", REFERERS, link, page.toString());
+		}
+	}
+
+	@Override
+	public void status(URI url, int statusCode, Iterable<URI> referers) {
+		report.status(url, statusCode, referers);
+		add("HSET", STATUSES, url.toString(), Integer.toString(statusCode));
+		if (referers != null) {
+			add("HSET", REFERERS, url.toString(), StreamSupport.stream(referers.spliterator(), false).map(URI::toString).collect(Collectors.joining("\n")));
+		}
+	}
+
+	@Override
+	public void summary(int numSuccess, int numErr, int numInvalid, int numChecked) {
+		flush();
+		report.summary(numSuccess, numErr, numInvalid, numChecked);
+	}
+
+	private void add(String... command) {
+		commands.add(command);
+		if (commands.size() >= BATCH_SIZE) {
+			flush();
+		}
+	}
+
+	private void flush() {
+		if (commands.isEmpty()) {
+			return;
+		}
+		try {
+			// the replies are read before letting go of the connection, so they can't get mixed up with others
+			synchronized (redis) {
+				Redis.Pipeline pipeline = redis.pipeline();
+				for (String[] command : commands) {
+					pipeline.call(command);
+				}
+				pipeline.read();
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		commands.clear();
+	}
+
+	@Override
+	public void close() throws IOException {
+		flush();
+		report.close();
+	}
+}
@@ -0,0 +1,75 @@
+package nl.melp.linkchecker;
+
+import java.net.URI;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The statuses of external urls, kept across runs so a --reset doesn't check the same external links over and over.
+ * Errors expire sooner than successes. The backend stores each entry as "status expiry", the expiry being in epoch
+ * milliseconds; expired entries are removed when they're looked up.
+ */
+public class ResultCache {
+	private final Map<URI, String> entries;
+	private final long ttlMs;
+	private final long errorTtlMs;
+	private final LongAdder lookups = new LongAdder();
+	private final LongAdder hits = new LongAdder();
+
+	public ResultCache(Map<URI, String> entries, long ttlMs, long errorTtlMs) {
+		this.entries = entries;
+		this.ttlMs = ttlMs;
+		this.errorTtlMs = errorTtlMs;
+	}
+
+	/**
+	 * @return The cached status of the url, or null if it isn't cached or expired.
+	 */
+	public Integer get(URI url) {
+		lookups.increment();
+		String entry = entries.get(url);
+		if (entry == null) {
+			return null;
+		}
+		int separator = entry.indexOf(' ');
+		if (Long.parseLong(entry.substring(separator + 1)) <= System.currentTimeMillis()) {
+			entries.remove(url);
+			return null;
+		}
+		hits.increment();
+		return Integer.parseInt(entry.substring(0, separator));
+	}
+
+	public void put(URI url, int statusCode) {
+		entries.put(url, entry(statusCode));
+	}
+
+	/**
+	 * The entry to store for a status checked now, for backends that write entries themselves.
+	 */
+	public String entry(int statusCode) {
+		long ttl = LinkChecker.isErrorStatus(statusCode) ? errorTtlMs : ttlMs;
+		return statusCode + " " + (System.currentTimeMillis() + ttl);
+	}
+
+	public void remove(URI url) {
+		entries.remove(url);
+	}
+
+	public void clear() {
+		entries.clear();
+	}
+
+	public long numLookups() {
+		return lookups.sum();
+	}
+
+	public long numHits() {
+		return hits.sum();
+	}
+
+	public float getHitRate() {
+		long lookups = numLookups();
+		return lookups == 0 ? 0 : (float)numHits() / lookups * 100;
+	}
+}
@@ -0,0 +1,68 @@
+package nl.melp.linkchecker;
+
+import nl.melp.linkchecker.Fetcher.Result;
+
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Decides whether an url is fetched again after a result that may be transient: no response at all, 429 Too Many
+ * Requests, or a 502, 503 or 504 from a gateway or an overloaded server. The delay doubles with every retry, with
+ * jitter so retries for the same host don't all come back at once, unless the server sent a Retry-After.
+ */
+public class RetryPolicy {
+	public static final String NO_RESPONSE = "none";
+	public static final String TOO_MANY_REQUESTS = "429";
+	public static final String SERVER_ERROR = "5xx";
+
+	private final Map<String, Integer> maxRetries;
+	private final long baseDelayMs;
+	private final long maxDelayMs;
+
+	/**
+	 * @param maxRetries  The maximum number of retries per class of status: NO_RESPONSE, TOO_MANY_REQUESTS or
+	 *                    SERVER_ERROR. Classes that are missing aren't retried.
+	 * @param baseDelayMs The delay before the first retry.
+	 * @param maxDelayMs  The maximum delay; a longer Retry-After makes the result final.
+	 */
+	public RetryPolicy(Map<String, Integer> maxRetries, long baseDelayMs, long maxDelayMs) {
+		this.maxRetries = maxRetries;
+		this.baseDelayMs = baseDelayMs;
+		this.maxDelayMs = maxDelayMs;
+	}
+
+	/**
+	 * The maximum number of retries of any class.
+	 */
+	public int getMaxRetries() {
+		return maxRetries.values().stream().mapToInt(Integer::intValue).max().orElse(0);
+	}
+
+	/**
+	 * The class of the status code, as used for the maximum number of retries, or null if it's not retried.
+	 */
+	static String statusClass(int statusCode) {
+		return switch (statusCode) {
+			case 0 -> NO_RESPONSE;
+			case 429 -> TOO_MANY_REQUESTS;
+			case 502, 503, 504 -> SERVER_ERROR;
+			default -> null;
+		};
+	}
+
+	/**
+	 * @param retries The number of times the url was retried before this result.
+	 * @return The time to wait before fetching the url again, or -1 if the result is final.
+	 */
+	public long getDelayMs(Result result, int retries) {
+		String statusClass = statusClass(result.getStatusCode());
+		if (result.isCached() || statusClass == null || retries >= maxRetries.getOrDefault(statusClass, 0)) {
+			return -1;
+		}
+		if (result.getRetryAfterMs() >= 0) {
+			return result.getRetryAfterMs() <= maxDelayMs ? result.getRetryAfterMs() : -1;
+		}
+		long delay = Math.min(maxDelayMs, baseDelayMs << Math.min(retries, 30));
+		return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+	}
+}
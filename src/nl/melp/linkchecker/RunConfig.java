@@ -1,35 +1,46 @@
 package nl.melp.linkchecker;
 
+import nl.melp.linkchecker.backend.CompactInMemory;
+import nl.melp.linkchecker.backend.DistributedRedis;
+import nl.melp.linkchecker.backend.OnDisk;
 import nl.melp.redis.Redis;
-import nl.melp.redis.collections.ISerializer;
-import nl.melp.redis.collections.SerializedHashMap;
-import nl.melp.redis.collections.Serializers;
+import org.apache.http.config.Registry;
 import org.apache.http.config.RegistryBuilder;
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.conn.socket.ConnectionSocketFactory;
-import org.apache.http.conn.socket.PlainConnectionSocketFactory;
 import org.apache.http.conn.ssl.NoopHostnameVerifier;
 import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
 import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.http.ssl.SSLContextBuilder;
+import org.apache.http.ssl.SSLContexts;
 import org.slf4j.Logger;
 
 import javax.net.ssl.SSLContext;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.net.URI;
+import java.net.http.HttpClient;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.security.KeyManagementException;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
-import java.util.stream.Collectors;
+import java.util.concurrent.Executor;
 
 public class RunConfig {
 	private final Map<String, Set<String>> opts;
@@ -40,6 +51,13 @@ public class RunConfig {
 	private final int redisPort;
 	private final Logger logger;
 	private final PoolingHttpClientConnectionManager connectionManager;
+	private final SSLContext sslContext;
+	private final ConnectionStats connectionStats = new ConnectionStats();
+	private final Metrics metrics = new Metrics();
+	private final Watchdog watchdog;
+	private final RequestConfig requestConfig;
+	private final UrlFilter includeFilter;
+	private final UrlFilter ignoreFilter;
 
 	public RunConfig(Logger logger, String... rawArgs) throws KeyStoreException, NoSuchAlgorithmException, KeyManagementException {
 		this.logger = logger;
@@ -74,19 +92,47 @@ public class RunConfig {
 			localHosts.add(URI.create(startUri).getHost());
 		}
 
+		// compiled once, since every link found is checked against them
+		includeFilter = opts.containsKey("include") ? new UrlFilter(opts.get("include")) : null;
+		ignoreFilter = opts.containsKey("ignore") ? new UrlFilter(opts.get("ignore")) : null;
+
+		final Registry<ConnectionSocketFactory> socketFactories;
 		if (isIgnoreSslErrors()) {
-			final SSLContext sslContext = new SSLContextBuilder()
+			sslContext = new SSLContextBuilder()
 				.loadTrustMaterial(null, (x509CertChain, authType) -> true)
 				.build();
 
-			connectionManager = new PoolingHttpClientConnectionManager(
-				RegistryBuilder.<ConnectionSocketFactory>create()
-					.register("http", PlainConnectionSocketFactory.INSTANCE)
-					.register("https", new SSLConnectionSocketFactory(sslContext, NoopHostnameVerifier.INSTANCE))
-					.build()
-			);
+			socketFactories = RegistryBuilder.<ConnectionSocketFactory>create()
+				.register("http", TimedConnections.plain(metrics))
+				.register("https", new TimedConnections.TimedSSLConnectionSocketFactory(metrics, sslContext, NoopHostnameVerifier.INSTANCE))
+				.build();
 		} else {
-			connectionManager = new PoolingHttpClientConnectionManager(); // default
+			sslContext = null;
+			socketFactories = RegistryBuilder.<ConnectionSocketFactory>create() // default
+				.register("http", TimedConnections.plain(metrics))
+				.register("https", new TimedConnections.TimedSSLConnectionSocketFactory(metrics, SSLContexts.createDefault(), SSLConnectionSocketFactory.getDefaultHostnameVerifier()))
+				.build();
+		}
+		watchdog = new Watchdog(getTtfbTimeoutMs(), getRequestTimeoutMs());
+		requestConfig = RequestConfig.custom()
+			.setConnectTimeout(getConnectTimeoutMs())
+			.setConnectionRequestTimeout(getRequestTimeoutMs())
+			.setSocketTimeout(getTtfbTimeoutMs())
+			.build();
+		connectionManager = new PoolingHttpClientConnectionManager(
+			socketFactories,
+			TimedConnections.connectionFactory(metrics, connectionStats),
+			TimedConnections.dnsResolver(metrics)
+		);
+
+		if (useVirtualThreads()) {
+			// all requests share one client, so the pool must be able to serve every request in flight
+			connectionManager.setMaxTotal(getMaxInFlight());
+			connectionManager.setDefaultMaxPerRoute(getMaxPerHost() > 0 ? getMaxPerHost() : getMaxInFlight());
+		} else if (getMaxPerHost() > 0 || getAdaptiveConcurrency() != null) {
+			// the worker threads share the pool, which otherwise allows only 2 connections per host
+			connectionManager.setMaxTotal(Math.max(getNumThreads(), connectionManager.getMaxTotal()));
+			connectionManager.setDefaultMaxPerRoute(getMaxPerHost() > 0 ? getMaxPerHost() : getNumThreads());
 		}
 	}
 
@@ -107,23 +153,17 @@ public class RunConfig {
 	}
 
 	public boolean shouldFollowLinks(URI context, URI url) {
-		if (opts.containsKey("include")) {
-			for (String s : opts.get("include")) {
-				if (url.getPath().matches(s)) {
-					logger.trace("URL " + url + " matches pattern " + s + "; including");
-					return true;
-				}
+		if (includeFilter != null) {
+			if (url.getPath() != null && includeFilter.matches(url.getPath())) {
+				logger.trace("URL " + url + " matches an include pattern; including");
+				return true;
 			}
 
 			return false;
 		}
-		if (opts.containsKey("ignore")) {
-			for (String s : opts.get("ignore")) {
-				if (url.toString().matches(s)) {
-					logger.trace("URL " + url + " matches pattern " + s + "; ignoring");
-					return false;
-				}
-			}
+		if (ignoreFilter != null && ignoreFilter.matches(url)) {
+			logger.trace("URL " + url + " matches an ignore pattern; ignoring");
+			return false;
 		}
 		if (localHosts.contains(url.getHost())) {
 			return true;
@@ -134,6 +174,13 @@ public class RunConfig {
 		return false;
 	}
 
+	/**
+	 * Whether the url is on another host than the start urls.
+	 */
+	public boolean isExternal(URI url) {
+		return !localHosts.contains(url.getHost());
+	}
+
 	public boolean shouldExtractLinks(URI context) {
 		return !flags.contains("no-follow") && localHosts.contains(context.getHost());
 	}
@@ -142,15 +189,229 @@ public class RunConfig {
 		return opts.containsKey("threads") ? Integer.parseInt(opts.get("threads").stream().findFirst().orElse("40")) : 40;
 	}
 
+	public boolean useHeadRequests() {
+		return !hasFlag("no-head");
+	}
+
+	/**
+	 * Whether pages that were checked before are only downloaded again if they changed.
+	 */
+	public boolean useRevalidation() {
+		return !hasFlag("no-revalidate");
+	}
+
+	/**
+	 * How long the status of a working external url is reused in following runs, or 0 if it isn't.
+	 */
+	public long getCacheTtlMs() {
+		return 1000 * (opts.containsKey("cache-ttl") ? Long.parseLong(opts.get("cache-ttl").stream().findFirst().orElse("0")) : 0);
+	}
+
+	/**
+	 * How long the status of a failing external url is reused; an hour by default, but never longer than a success.
+	 */
+	public long getCacheErrorTtlMs() {
+		long ttl = opts.containsKey("cache-error-ttl") ? Long.parseLong(opts.get("cache-error-ttl").stream().findFirst().orElse("3600")) : 3600;
+		return Math.min(1000 * ttl, getCacheTtlMs());
+	}
+
+	public boolean useVirtualThreads() {
+		return hasFlag("virtual-threads");
+	}
+
+	public boolean useAsyncFetcher() {
+		return hasFlag("async");
+	}
+
+	public int getMaxInFlight() {
+		return opts.containsKey("max-in-flight") ? Integer.parseInt(opts.get("max-in-flight").stream().findFirst().orElse("1000")) : 1000;
+	}
+
+	/**
+	 * The maximum number of urls being fetched at the same time.
+	 */
+	public int getConcurrency() {
+		return useVirtualThreads() || useAsyncFetcher() ? getMaxInFlight() : getNumThreads();
+	}
+
+	/**
+	 * The minimum time between the start of two requests to the same host.
+	 */
 	public int getDelayMs() {
 		return opts.containsKey("delay-ms") ? Integer.parseInt(opts.get("delay-ms").stream().findFirst().orElse("0")) : 0;
 	}
 
+	/**
+	 * The maximum number of requests to the same host at the same time, or 0 for no limit other than the concurrency.
+	 */
+	public int getMaxPerHost() {
+		return opts.containsKey("max-per-host") ? Integer.parseInt(opts.get("max-per-host").stream().findFirst().orElse("0")) : 0;
+	}
+
+	/**
+	 * The algorithm that adapts the number of requests to each host at the same time, up to the maximum per host or
+	 * the concurrency, or null to use the fixed maximum per host.
+	 */
+	public ConcurrencyLimit.Algorithm getAdaptiveConcurrency() {
+		if (opts.containsKey("adaptive")) {
+			return ConcurrencyLimit.Algorithm.valueOf(opts.get("adaptive").stream().findFirst().orElse("gradient").toUpperCase(Locale.ROOT));
+		}
+		return hasFlag("adaptive") ? ConcurrencyLimit.Algorithm.GRADIENT : null;
+	}
+
+	public int getRedisBatchSize() {
+		return opts.containsKey("redis-batch-size") ? Integer.parseInt(opts.get("redis-batch-size").stream().findFirst().orElse("500")) : 500;
+	}
+
+	public int getRedisBatchMs() {
+		return opts.containsKey("redis-batch-ms") ? Integer.parseInt(opts.get("redis-batch-ms").stream().findFirst().orElse("250")) : 250;
+	}
+
+	/**
+	 * Whether this process is one of several workers that crawl the same Redis data.
+	 */
+	public boolean isDistributed() {
+		return hasFlag("distributed");
+	}
+
+	/**
+	 * How long a worker may hold an url without renewing its claim, before another worker takes it over.
+	 */
+	public long getLeaseMs() {
+		return opts.containsKey("lease-ms") ? Long.parseLong(opts.get("lease-ms").stream().findFirst().orElse("60000")) : 60000;
+	}
+
+	public long getMaxDocumentSize() {
+		return opts.containsKey("max-document-size") ? Long.parseLong(opts.get("max-document-size").stream().findFirst().orElse("10485760")) : 10485760;
+	}
+
+	/**
+	 * The number of bytes of an unused response body that are read to be able to return the connection to the pool.
+	 * Connections with larger bodies are closed instead.
+	 */
+	public long getMaxDrainSize() {
+		return opts.containsKey("max-drain-size") ? Long.parseLong(opts.get("max-drain-size").stream().findFirst().orElse("65536")) : 65536;
+	}
+
+	public ConnectionStats getConnectionStats() {
+		return connectionStats;
+	}
+
+	public Metrics getMetrics() {
+		return metrics;
+	}
+
+	public Watchdog getWatchdog() {
+		return watchdog;
+	}
+
+	/**
+	 * The timeouts of the blocking client. The socket timeout is the time to first byte, which is also the longest a
+	 * response may stall; the watchdog enforces the rest.
+	 */
+	public RequestConfig getRequestConfig() {
+		return requestConfig;
+	}
+
+	public int getConnectTimeoutMs() {
+		return opts.containsKey("connect-timeout-ms") ? Integer.parseInt(opts.get("connect-timeout-ms").stream().findFirst().orElse("10000")) : 10000;
+	}
+
+	/**
+	 * The time from the start of a request until the response headers are in.
+	 */
+	public int getTtfbTimeoutMs() {
+		return opts.containsKey("ttfb-timeout-ms") ? Integer.parseInt(opts.get("ttfb-timeout-ms").stream().findFirst().orElse("30000")) : 30000;
+	}
+
+	/**
+	 * The time from the start of a request until it's done, including reading the body.
+	 */
+	public int getRequestTimeoutMs() {
+		return opts.containsKey("request-timeout-ms") ? Integer.parseInt(opts.get("request-timeout-ms").stream().findFirst().orElse("60000")) : 60000;
+	}
+
+	/**
+	 * The port to serve the metrics on for Prometheus, or 0 to not serve them.
+	 */
+	public int getMetricsPort() {
+		return opts.containsKey("metrics-port") ? Integer.parseInt(opts.get("metrics-port").stream().findFirst().orElse("0")) : 0;
+	}
+
+	/**
+	 * The retries of transient results. --max-retries takes a number for all classes of status, and CLASS:N for one
+	 * of them: none (no response), 429 or 5xx (502, 503 and 504).
+	 */
+	public RetryPolicy createRetryPolicy() {
+		Map<String, Integer> maxRetries = new HashMap<>(Map.of(
+			RetryPolicy.NO_RESPONSE, 2,
+			RetryPolicy.TOO_MANY_REQUESTS, 3,
+			RetryPolicy.SERVER_ERROR, 2
+		));
+		for (String value : opts.getOrDefault("max-retries", Collections.emptySet())) {
+			if (!value.contains(":")) {
+				maxRetries.replaceAll((statusClass, n) -> Integer.parseInt(value));
+			}
+		}
+		for (String value : opts.getOrDefault("max-retries", Collections.emptySet())) {
+			String[] split = value.split(":", 2);
+			if (split.length == 2) {
+				if (!maxRetries.containsKey(split[0])) {
+					throw new IllegalArgumentException("Unknown status class in --max-retries: " + split[0]);
+				}
+				maxRetries.put(split[0], Integer.parseInt(split[1]));
+			}
+		}
+		return new RetryPolicy(maxRetries, getRetryDelayMs(), getMaxRetryDelayMs());
+	}
+
+	/**
+	 * The delay before the first retry, which doubles with every following one.
+	 */
+	public long getRetryDelayMs() {
+		return opts.containsKey("retry-delay-ms") ? Long.parseLong(opts.get("retry-delay-ms").stream().findFirst().orElse("1000")) : 1000;
+	}
+
+	/**
+	 * The maximum delay before a retry, also when a server asks for a longer one with Retry-After.
+	 */
+	public long getMaxRetryDelayMs() {
+		return opts.containsKey("max-retry-delay-ms") ? Long.parseLong(opts.get("max-retry-delay-ms").stream().findFirst().orElse("60000")) : 60000;
+	}
+
+	public Extractor createExtractor() {
+		if (hasFlag("jsoup")) {
+			return new HtmlExtractor(logger);
+		}
+		return new StreamingHtmlExtractor(logger, getMaxDocumentSize());
+	}
+
 	public boolean isIgnoreSslErrors() {
 		return hasFlag("ignore-ssl-errors");
 	}
 
-	public Status createStatus(Redis redis) {
+	/**
+	 * The directory the on disk backend stores its data in, or null if it isn't used.
+	 */
+	public String getDataDir() {
+		return opts.containsKey("data-dir") ? opts.get("data-dir").stream().findFirst().orElse(null) : null;
+	}
+
+	public boolean useRedisBackend() {
+		return !hasFlag("in-memory") && getDataDir() == null;
+	}
+
+	/**
+	 * @param redis The connection to use, or null if Redis isn't used.
+	 */
+	public Status createStatus(Redis redis) throws IOException {
+		if (getDataDir() != null) {
+			return new OnDisk(logger, this, Paths.get(getDataDir()));
+		} else if (redis == null) {
+			return new CompactInMemory(logger, this);
+		} else if (isDistributed()) {
+			return new DistributedRedis(redis, logger, this);
+		}
 		return new nl.melp.linkchecker.backend.Redis(
 			redis,
 			logger,
@@ -162,52 +423,68 @@ public class RunConfig {
 		return Redis.connect(getRedisHost(), getRedisPort());
 	}
 
-	public void report(Redis redis, LinkChecker linkchecker) {
-		if (hasFlag("report")) {
-			ISerializer<String> stringSerializer = Serializers.of(String.class);
-
-			//noinspection MismatchedQueryAndUpdateOfCollection
-			SerializedHashMap<String, String> report = new SerializedHashMap<>(
-				stringSerializer,
-				stringSerializer,
-				redis, LinkChecker.class.getCanonicalName() + ".report.statuses");
-
-			//noinspection MismatchedQueryAndUpdateOfCollection
-			SerializedHashMap<String, String> refers = new SerializedHashMap<>(
-				stringSerializer,
-				stringSerializer,
-				redis, LinkChecker.class.getCanonicalName() + ".report.referers");
-
-			logger.info("Building report for " + linkchecker.status.statuses.size() + " keys and " + linkchecker.status.invalidUrls.size() + " invalids");
-			report.clear();
-			refers.clear();
+	/**
+	 * @return The sitemaps or sitemap indexes to queue the urls of: those given with --sitemap=URL, or with a plain
+	 * --sitemap, the sitemap.xml at the root of each start url.
+	 */
+	public List<URI> getSitemaps() {
+		List<URI> sitemaps = new ArrayList<>();
+		if (opts.containsKey("sitemap")) {
+			opts.get("sitemap").forEach(sitemap -> sitemaps.add(URI.create(sitemap)));
+		} else if (hasFlag("sitemap")) {
+			args.forEach(arg -> sitemaps.add(URI.create(arg).resolve("/sitemap.xml")));
+		}
+		return sitemaps;
+	}
 
-			linkchecker.status.statuses.forEach((k, v) -> {
-				if (hasFlag("report-all") || LinkChecker.isErrorStatus(v)) {
-					report.put(k.toString(), Integer.toString(v));
-					refers.put(k.toString(), linkchecker.status.reverseLinks.get(k).stream().map(URI::toString).collect(Collectors.joining("\n")));
-				}
-			});
-			Map<String, Set<URI>> inverse = new HashMap<>();
+	public Report.Format getReportFormat() {
+		return opts.containsKey("report-format") ? Report.Format.of(opts.get("report-format").stream().findFirst().orElse("text")) : Report.Format.TEXT;
+	}
 
-			linkchecker.status.invalidUrls.forEach((uri, links) -> {
-				for (String link : links) {
-					if (!inverse.containsKey(link)) {
-						inverse.put(link, new HashSet<>());
-					}
-					inverse.get(link).add(uri);
-				}
-			});
-			inverse.forEach((s, uri) -> {
-				report.put(s, "0");
-				refers.put(s, uri.stream().map(URI::toString).collect(Collectors.joining("\n")));
-			});
+	/**
+	 * @return The file to write the report to, or null to write it to stdout.
+	 */
+	public String getReportFile() {
+		return opts.containsKey("report-file") ? opts.get("report-file").stream().findFirst().orElse(null) : null;
+	}
 
-			linkchecker.status.report(hasFlag("report-all"));
+	/**
+	 * Write the report, and if Redis is used, the reporting keys, while reading the statuses.
+	 */
+	public void report(Redis redis, LinkChecker linkchecker) throws IOException {
+		if (!hasFlag("report")) {
+			return;
+		}
+		Writer out = getReportFile() == null
+			? new OutputStreamWriter(System.out, StandardCharsets.UTF_8)
+			: Files.newBufferedWriter(Paths.get(getReportFile()), StandardCharsets.UTF_8);
+		if (redis != null) {
+			logger.info("Building report for " + linkchecker.status.numChecked() + " keys");
+		}
+		try (Report report = redis == null ? getReportFormat().create(out) : new ReportKeys(redis, getReportFormat().create(out))) {
+			linkchecker.status.report(report, hasFlag("report-all"));
+		} finally {
+			if (getReportFile() != null) {
+				out.close();
+			}
 		}
 	}
 
 	public CloseableHttpClient createHttpClient() {
 		return HttpClients.createMinimal(connectionManager);
 	}
+
+	public HttpClient createAsyncHttpClient(Executor executor) {
+		HttpClient.Builder builder = HttpClient.newBuilder()
+			.executor(executor)
+			.followRedirects(HttpClient.Redirect.NEVER)
+			.connectTimeout(Duration.ofMillis(getConnectTimeoutMs()));
+
+		if (sslContext != null) {
+			// The JDK client has no per-client hostname verifier; this is only read when its first instance is created.
+			System.setProperty("jdk.internal.httpclient.disableHostnameVerification", "true");
+			builder.sslContext(sslContext);
+		}
+		return builder.build();
+	}
 }
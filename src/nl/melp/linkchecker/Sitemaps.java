@@ -0,0 +1,211 @@
+package nl.melp.linkchecker;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.slf4j.Logger;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.time.LocalDate;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Queues the urls listed in sitemaps, so the crawl doesn't have to find them by following links first. Sitemap
+ * indexes are followed, and gzipped sitemaps are unpacked. The XML is read as it's downloaded and every url is queued
+ * as it's read, so a sitemap of 50,000 urls takes no more memory than one of ten.
+ *
+ * Urls with a lastmod after the previous time the sitemaps were read are checked again. Other urls are only queued if
+ * they weren't checked yet, so a --recheck only fetches the pages that changed, and the pages that are new.
+ */
+public class Sitemaps {
+	private final Logger logger;
+	private final RunConfig config;
+	private final Status status;
+	private final URIResolver resolver;
+	private final XMLInputFactory factory;
+
+	private int numUrls;
+	private int numChanged;
+
+	public Sitemaps(Logger logger, RunConfig config, Status status) {
+		this.logger = logger;
+		this.config = config;
+		this.status = status;
+		this.resolver = new URIResolver(logger);
+		this.factory = XMLInputFactory.newFactory();
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+	}
+
+	/**
+	 * Read the sitemaps, and the sitemaps they refer to, and queue their urls.
+	 *
+	 * @return Whether all sitemaps were read. Only then is the time stored, so urls that changed in a sitemap that
+	 * couldn't be read are checked again next time.
+	 */
+	public boolean seed(CloseableHttpClient httpClient, Collection<URI> sitemaps) {
+		// the pages are fetched after this, so a page changed in the meantime has a later lastmod
+		long startMs = System.currentTimeMillis();
+		long lastReadMs = status.getSitemapReadMs();
+		Deque<URI> pending = new ArrayDeque<>(sitemaps);
+		Set<URI> seen = new HashSet<>(sitemaps);
+		boolean complete = true;
+		int numRead = 0;
+		numUrls = 0;
+		numChanged = 0;
+
+		while (!pending.isEmpty()) {
+			URI sitemap = pending.poll();
+			try {
+				read(httpClient, sitemap, lastReadMs, nested -> {
+					if (seen.add(nested)) {
+						pending.add(nested);
+					}
+				});
+				numRead++;
+			} catch (IOException | XMLStreamException e) {
+				logger.warn("Could not read sitemap " + sitemap + ": " + e.getMessage());
+				complete = false;
+			}
+		}
+		status.flush();
+		if (complete) {
+			status.setSitemapReadMs(startMs);
+		}
+		logger.info(String.format("Queued %d urls from %d sitemaps, of which %d changed since the sitemaps were last read", numUrls, numRead, numChanged));
+		return complete;
+	}
+
+	private void read(CloseableHttpClient httpClient, URI sitemap, long lastReadMs, Consumer<URI> nested) throws IOException, XMLStreamException {
+		HttpGet request = new HttpGet(sitemap);
+		request.setConfig(config.getRequestConfig());
+		try (CloseableHttpResponse response = httpClient.execute(request)) {
+			int statusCode = response.getStatusLine().getStatusCode();
+			HttpEntity entity = response.getEntity();
+			if (statusCode != 200 || entity == null) {
+				throw new IOException("status " + statusCode);
+			}
+			try (InputStream in = unpack(entity.getContent())) {
+				parse(sitemap, in, lastReadMs, nested);
+			}
+		}
+	}
+
+	/**
+	 * Sitemaps ending in .xml.gz are usually served as is, so the content is recognized by the gzip magic number
+	 * rather than by the name or a header.
+	 */
+	static InputStream unpack(InputStream content) throws IOException {
+		InputStream in = new BufferedInputStream(content, 65536);
+		in.mark(2);
+		int first = in.read();
+		int second = in.read();
+		in.reset();
+		return first == 0x1f && second == 0x8b ? new GZIPInputStream(in, 65536) : in;
+	}
+
+	private void parse(URI sitemap, InputStream in, long lastReadMs, Consumer<URI> nested) throws XMLStreamException {
+		URIResolver.Base base = resolver.base(sitemap);
+		XMLStreamReader reader = factory.createXMLStreamReader(in);
+		try {
+			// the <url> or <sitemap> element being read; other elements, such as image extensions, have a loc too
+			String entry = null;
+			String namespace = null;
+			String loc = null;
+			String lastmod = null;
+
+			while (reader.hasNext()) {
+				int event = reader.next();
+				if (event == XMLStreamConstants.START_ELEMENT) {
+					String name = reader.getLocalName();
+					if (entry == null && (name.equals("url") || name.equals("sitemap"))) {
+						entry = name;
+						namespace = reader.getNamespaceURI();
+						loc = null;
+						lastmod = null;
+					} else if (entry != null && Objects.equals(namespace, reader.getNamespaceURI())) {
+						if (name.equals("loc")) {
+							loc = reader.getElementText().trim();
+						} else if (name.equals("lastmod")) {
+							lastmod = reader.getElementText().trim();
+						}
+					}
+				} else if (event == XMLStreamConstants.END_ELEMENT && reader.getLocalName().equals(entry) && Objects.equals(namespace, reader.getNamespaceURI())) {
+					URI url = loc == null ? null : resolve(base, loc);
+					if (url != null) {
+						if (entry.equals("sitemap")) {
+							nested.accept(url);
+						} else if (config.shouldFollowLinks(sitemap, url)) {
+							queue(url, parseLastmod(lastmod), lastReadMs);
+						}
+					}
+					entry = null;
+				}
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	private URI resolve(URIResolver.Base base, String loc) {
+		try {
+			URI url = resolver.resolveUri(base, loc);
+			if (url != null && url.getPath().isEmpty()) {
+				url = url.resolve("/");
+			}
+			return url;
+		} catch (URIResolver.InvalidURIException e) {
+			logger.debug("Ignoring invalid url {} in sitemap {}: {}", loc, base.getContext(), e.getReason());
+			return null;
+		}
+	}
+
+	private void queue(URI url, long lastmodMs, long lastReadMs) {
+		numUrls++;
+		if (lastReadMs > 0 && lastmodMs >= lastReadMs) {
+			numChanged++;
+			status.requeue(url);
+		} else {
+			status.enqueue(url);
+		}
+	}
+
+	/**
+	 * Parses the W3C datetime of a lastmod. A date without a time is taken as the end of that day in any time zone,
+	 * so a page changed later that day is still checked again.
+	 *
+	 * @return The time in milliseconds, or -1 if there is none, or it isn't a complete date.
+	 */
+	static long parseLastmod(String lastmod) {
+		if (lastmod == null) {
+			return -1;
+		}
+		try {
+			if (lastmod.length() == 10) {
+				// the day ends in UTC-12 at noon of the next day in UTC
+				return LocalDate.parse(lastmod).plusDays(1).atTime(12, 0).toInstant(ZoneOffset.UTC).toEpochMilli();
+			}
+			return OffsetDateTime.parse(lastmod).toInstant().toEpochMilli();
+		} catch (DateTimeParseException e) {
+			return -1;
+		}
+	}
+}
@@ -1,28 +1,69 @@
 package nl.melp.linkchecker;
 
 import nl.melp.linkchecker.Fetcher.Result;
+import nl.melp.linkchecker.Fetcher.Validators;
 import org.slf4j.Logger;
 
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
 import java.net.URI;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
 
 public class Status {
 	private final Logger logger;
 	public final Map<URI, Integer> statuses;
 	public final Set<URI> urls;
-	public final Map<URI, Set<URI>> reverseLinks;
 	public final Map<URI, Set<String>> invalidUrls;
+	/**
+	 * The encoded validators and body digests of pages whose links were extracted and that have no invalid links, which
+	 * are used when the page is fetched again. Null if the backend doesn't store them.
+	 */
+	public final Map<URI, String> validators;
+	/**
+	 * The links found on every page that was fetched. They're used when a page wasn't modified, and to find the pages
+	 * that refer to an url, which is only needed for errors; see getReferers().
+	 */
+	public final Map<URI, Set<URI>> outlinks;
+	/**
+	 * The statuses of external urls that are kept across runs, or null if the cache isn't used.
+	 */
+	public final ResultCache externalResults;
 	private final RunConfig config;
+	private final boolean revalidate;
+	protected final LongAdder notModified = new LongAdder();
 
-	public Status(Logger logger, RunConfig config, Map<URI, Integer> statuses, Set<URI> urls, Map<URI, Set<URI>> reverseLinks, Map<URI, Set<String>> invalidUrls) {
+	public Status(Logger logger, RunConfig config, Map<URI, Integer> statuses, Set<URI> urls, Map<URI, Set<String>> invalidUrls, Map<URI, String> validators, Map<URI, Set<URI>> outlinks) {
+		this(logger, config, statuses, urls, invalidUrls, validators, outlinks, null);
+	}
+
+	/**
+	 * @param externalResults The entries of the ResultCache, which --reset leaves alone, or null if the backend can't
+	 *                        keep them across runs.
+	 */
+	public Status(Logger logger, RunConfig config, Map<URI, Integer> statuses, Set<URI> urls, Map<URI, Set<String>> invalidUrls, Map<URI, String> validators, Map<URI, Set<URI>> outlinks, Map<URI, String> externalResults) {
 		this.config = config;
 		this.logger = logger;
 		this.statuses = statuses;
 		this.urls = urls;
-		this.reverseLinks = reverseLinks;
 		this.invalidUrls = invalidUrls;
+		this.validators = validators;
+		this.outlinks = outlinks;
+		if (externalResults != null && config.hasFlag("clear-cache")) {
+			externalResults.clear();
+		}
+		this.externalResults = externalResults != null && config.getCacheTtlMs() > 0
+			? new ResultCache(externalResults, config.getCacheTtlMs(), config.getCacheErrorTtlMs())
+			: null;
 
 		Set<URI> startUrls = new HashSet<>();
 		if (config.hasFlag("reset")) {
@@ -39,18 +80,25 @@ public class Status {
 			if (config.hasFlag("recheck")) {
 				this.urls.clear();
 
-				Set<URI> resetStatus = new HashSet<>();
+				Map<URI, Integer> errors = new HashMap<>();
 				statuses.forEach((k, v) -> {
 					if (v >= 400 || v <= 0) {
-						// recheck all pages that refer to this link:
-						for (URI s : reverseLinks.get(k)) {
-							System.out.printf("Link [%d %s] <-- %s [RECHECK]%n", v, k, s);
-							startUrls.add(s);
-						}
-						resetStatus.add(k);
+						errors.put(k, v);
 					}
 				});
+				// recheck all pages that refer to these links:
+				getReferers(errors.keySet()).forEach((k, referers) -> {
+					for (URI s : referers) {
+						System.out.printf("Link [%d %s] <-- %s [RECHECK]%n", errors.get(k), k, s);
+						startUrls.add(s);
+					}
+				});
+				Set<URI> resetStatus = errors.keySet();
 				resetStatus.forEach(statuses::remove);
+				if (this.externalResults != null) {
+					// a cached error would otherwise be reported again without checking
+					resetStatus.forEach(this.externalResults::remove);
+				}
 				Set<URI> mentions = new HashSet<>();
 				invalidUrls.forEach((k, v) -> {
 					mentions.add(k);
@@ -71,47 +119,139 @@ public class Status {
 				this.statuses.remove(uri);
 			}
 		}
+
+		// pages stored in this run were fetched in this run, so without validators up front there's nothing to look up.
+		// (size() rather than isEmpty(), which the redis collections get the wrong way around)
+		this.revalidate = validators != null && config.useRevalidation() && validators.size() > 0;
 	}
 
 	private void clear() {
 		urls.clear();
 		statuses.clear();
-		reverseLinks.clear();
 		invalidUrls.clear();
+		outlinks.clear();
+		if (validators != null) {
+			validators.clear();
+		}
+	}
+
+	/**
+	 * @return The validators to send when fetching the url, or null if it should be fetched unconditionally.
+	 */
+	public Validators getValidators(URI url) {
+		if (!revalidate) {
+			return null;
+		}
+		String encoded = validators.get(url);
+		return encoded == null ? null : Validators.decode(encoded);
+	}
+
+	/**
+	 * @return The status of an external url that was checked recently enough, or null if it should be fetched.
+	 */
+	public Integer getCachedStatus(URI url) {
+		if (externalResults == null || !config.isExternal(url)) {
+			return null;
+		}
+		return externalResults.get(url);
+	}
+
+	/**
+	 * Whether the status of the fetched url should be put in the cache of external results.
+	 */
+	protected boolean isCacheable(Result fetched) {
+		return externalResults != null && !fetched.isCached() && config.isExternal(fetched.getUri());
+	}
+
+	/**
+	 * The number of pages that were not modified since they were stored.
+	 */
+	public long numNotModified() {
+		return notModified.sum();
 	}
 
 	public void report(boolean all) {
-		for (Map.Entry<URI, Set<String>> entry : invalidUrls.entrySet()) {
-			System.out.printf("INVALID url ocurred at: %s - referred by following urls\n", entry.getKey());
-			for (String url : invalidUrls.get(entry.getKey())) {
-				System.out.printf(" + %s\n", url);
-			}
+		try (Report report = Report.Format.TEXT.create(new OutputStreamWriter(System.out))) {
+			report(report, all);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
 		}
+	}
 
-		int numErr = 0;
-		int numSuccess = 0;
-		for (Map.Entry<URI, Integer> r : statuses.entrySet()) {
-			if (r.getValue() >= 400 || r.getValue() <= 0) {
-				System.out.printf("[%d] at %s (referred by following urls:)\n", r.getValue(), r.getKey());
-				for (URI referredBy : reverseLinks.get(r.getKey())) {
-					System.out.printf(" + %s\n", referredBy);
-				}
-				numErr++;
+	/**
+	 * Pass the invalid links and the statuses to the report as they are read from the storage, followed by the
+	 * numbers. Only the errors are kept, so the pages referring to them can be looked up in one pass over the links;
+	 * they're reported after the working links.
+	 *
+	 * @param all Whether to report working links too.
+	 */
+	public void report(Report report, boolean all) {
+		AtomicInteger numInvalid = new AtomicInteger();
+		forEachInvalidUrls((page, links) -> {
+			report.invalid(page, links);
+			numInvalid.incrementAndGet();
+		});
+
+		Map<URI, Integer> errors = new LinkedHashMap<>();
+		AtomicInteger numSuccess = new AtomicInteger();
+		forEachStatus((url, statusCode) -> {
+			if (LinkChecker.isErrorStatus(statusCode)) {
+				errors.put(url, statusCode);
 			} else {
 				if (all) {
-					System.out.printf("[OK] at %s%n", r.getKey());
+					report.status(url, statusCode, null);
 				}
-				numSuccess++;
+				numSuccess.incrementAndGet();
 			}
+		});
+		Map<URI, Set<URI>> referers = getReferers(errors.keySet());
+		errors.forEach((url, statusCode) -> report.status(url, statusCode, referers.getOrDefault(url, Collections.emptySet())));
+		report.summary(numSuccess.get(), errors.size(), numInvalid.get(), numSuccess.get() + errors.size());
+	}
+
+	/**
+	 * The pages that link to the urls, found by walking the links of all pages once. The urls that no page links to,
+	 * like the start urls, are left out. This is also used while constructing, so backends that read the links
+	 * incrementally do so in the forEach() of their outlinks map.
+	 */
+	public Map<URI, Set<URI>> getReferers(Set<URI> urls) {
+		Map<URI, Set<URI>> referers = new HashMap<>();
+		if (urls.isEmpty()) {
+			return referers;
 		}
-		System.out.printf(
-			"Success: %d, Errors: %d, Invalids: %d%n",
-			numSuccess,
-			numErr,
-			invalidUrls.size()
-		);
+		outlinks.forEach((page, links) -> {
+			for (URI link : links) {
+				if (urls.contains(link)) {
+					referers.computeIfAbsent(link, k -> new LinkedHashSet<>()).add(page);
+				}
+			}
+		});
+		return referers;
+	}
 
-		System.out.printf("Total number of resolved statuses: %d%n", numChecked());
+	/**
+	 * The pages that link to the url. This walks the links of all pages, so use getReferers(Set) for more than one.
+	 */
+	public Set<URI> getReferers(URI url) {
+		return getReferers(Set.of(url)).getOrDefault(url, Collections.emptySet());
+	}
+
+	/**
+	 * Walk the statuses. Backends whose entry set isn't read incrementally should override this.
+	 */
+	protected void forEachStatus(BiConsumer<URI, Integer> action) {
+		for (Map.Entry<URI, Integer> entry : statuses.entrySet()) {
+			action.accept(entry.getKey(), entry.getValue());
+		}
+	}
+
+	/**
+	 * Walk the pages with invalid links. Backends whose entry set isn't read incrementally should override this.
+	 */
+	protected void forEachInvalidUrls(BiConsumer<URI, Set<String>> action) {
+		for (Map.Entry<URI, Set<String>> entry : invalidUrls.entrySet()) {
+			action.accept(entry.getKey(), entry.getValue());
+		}
 	}
 
 	public int numChecked() {
@@ -126,8 +266,54 @@ public class Status {
 		return urls.size();
 	}
 
+	/**
+	 * Queue the url, unless it was checked already.
+	 */
+	public void enqueue(URI url) {
+		if (!statuses.containsKey(url)) {
+			urls.add(url);
+		}
+	}
+
+	/**
+	 * Queue the url to be checked again, e.g. because it changed since it was checked.
+	 */
+	public void requeue(URI url) {
+		statuses.remove(url);
+		urls.add(url);
+	}
+
+	/**
+	 * @return The time the sitemaps were last read in full, or 0 if they weren't, or the backend doesn't keep it.
+	 */
+	public long getSitemapReadMs() {
+		return 0;
+	}
+
+	public void setSitemapReadMs(long sitemapReadMs) {
+	}
+
+	/**
+	 * Write any buffered updates to the underlying storage. Backends that write through don't need to override this.
+	 */
+	public void flush() {
+	}
+
+	/**
+	 * Pages with invalid links are always fetched in full, so these links don't need to be stored for pages that
+	 * weren't modified.
+	 */
+	protected static boolean isRevalidatable(Result fetched) {
+		return fetched.getValidators() != null
+			&& fetched.getReferredLinks() != null
+			&& (fetched.getInvalidLinks() == null || fetched.getInvalidLinks().isEmpty());
+	}
+
 	public void add(Result fetched) {
 		statuses.put(fetched.getUri(), fetched.getStatusCode());
+		if (isCacheable(fetched)) {
+			externalResults.put(fetched.getUri(), fetched.getStatusCode());
+		}
 		if (fetched.getStatusCode() > 0) {
 			invalidUrls.remove(fetched.getUri());
 
@@ -136,16 +322,29 @@ public class Status {
 					invalidUrls.get(fetched.getUri()).add(link);
 				}
 			}
-			if (fetched.getReferredLinks() != null) {
-				for (URI uri : fetched.getReferredLinks()) {
-					URI context = fetched.getUri();
-					if (uri != null) {
-						if (config.shouldFollowLinks(context, uri) && !statuses.containsKey(uri)) {
-							urls.add(uri);
-						}
-						if (context != null) {
-							reverseLinks.get(uri).add(context);
-						}
+
+			Set<URI> referredLinks = fetched.getReferredLinks();
+			if (fetched.isNotModified()) {
+				notModified.increment();
+				referredLinks = new HashSet<>(outlinks.get(fetched.getUri()));
+				if (validators != null && fetched.getValidators() != null) {
+					validators.put(fetched.getUri(), fetched.getValidators().encode());
+				}
+			} else {
+				if (validators != null) {
+					if (isRevalidatable(fetched)) {
+						validators.put(fetched.getUri(), fetched.getValidators().encode());
+					} else {
+						validators.remove(fetched.getUri());
+					}
+				}
+				// replaces the links stored for the page, if any
+				outlinks.put(fetched.getUri(), referredLinks == null ? Collections.emptySet() : referredLinks);
+			}
+			if (referredLinks != null) {
+				for (URI uri : referredLinks) {
+					if (uri != null && config.shouldFollowLinks(fetched.getUri(), uri) && !statuses.containsKey(uri)) {
+						urls.add(uri);
 					}
 				}
 			}
@@ -0,0 +1,444 @@
+package nl.melp.linkchecker;
+
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Set;
+
+/**
+ * Extracts the links of a page in a single pass over the response body, without building a DOM.
+ *
+ * Only the tokenizer states needed to find a[href] and base[href] reliably are implemented: comments and the contents
+ * of raw text elements such as script are skipped and links inside a template are ignored, as they are not part of
+ * the document.
+ */
+public class StreamingHtmlExtractor extends HtmlExtractor {
+	private final Logger logger;
+	private final long maxDocumentSize;
+
+	public StreamingHtmlExtractor(Logger logger, long maxDocumentSize) {
+		super(logger);
+		this.logger = logger;
+		this.maxDocumentSize = maxDocumentSize;
+	}
+
+	@Override
+	protected void extractLinks(URI url, InputStream content, Set<String> referred) throws IOException {
+		Tokenizer tokenizer = new Tokenizer(url, referred);
+		byte[] buffer = new byte[8192];
+		long total = 0;
+		int n;
+		while ((n = content.read(buffer)) != -1) {
+			if (total + n > maxDocumentSize) {
+				tokenizer.feed(buffer, (int) (maxDocumentSize - total));
+				logger.debug("Stopped scanning {} for links after {} bytes", url, maxDocumentSize);
+				return;
+			}
+			tokenizer.feed(buffer, n);
+			total += n;
+		}
+	}
+
+	private enum State {
+		DATA,
+		TAG_OPEN,
+		END_TAG_OPEN,
+		TAG_NAME,
+		MARKUP_DECLARATION,
+		MARKUP_DECLARATION_DASH,
+		COMMENT,
+		BOGUS,
+		BEFORE_ATTRIBUTE_NAME,
+		ATTRIBUTE_NAME,
+		AFTER_ATTRIBUTE_NAME,
+		BEFORE_ATTRIBUTE_VALUE,
+		ATTRIBUTE_VALUE_DOUBLE_QUOTED,
+		ATTRIBUTE_VALUE_SINGLE_QUOTED,
+		ATTRIBUTE_VALUE_UNQUOTED,
+		RAW_TEXT
+	}
+
+	private static final byte[] A = bytes("a");
+	private static final byte[] BASE = bytes("base");
+	private static final byte[] HREF = bytes("href");
+	private static final byte[] TEMPLATE = bytes("template");
+	private static final byte[][] RAW_TEXT_ELEMENTS = {bytes("script"), bytes("style"), bytes("textarea"), bytes("title")};
+
+	private static class Tokenizer {
+		private final URI url;
+		private final Set<String> referred;
+
+		private State state = State.DATA;
+		private final Bytes tagName = new Bytes();
+		private final Bytes attributeName = new Bytes();
+		private final Bytes attributeValue = new Bytes();
+		private boolean endTag;
+		private boolean captureValue;
+		private String href;
+		private int dashes;
+		private byte[] rawTextElement;
+		private int rawTextMatched;
+		private int templateDepth;
+		private URI base;
+
+		Tokenizer(URI url, Set<String> referred) {
+			this.url = url;
+			this.referred = referred;
+		}
+
+		void feed(byte[] buffer, int length) {
+			for (int i = 0; i < length; i++) {
+				consume(buffer[i]);
+			}
+		}
+
+		private void consume(byte c) {
+			switch (state) {
+				case DATA:
+					if (c == '<') {
+						state = State.TAG_OPEN;
+					}
+					break;
+				case TAG_OPEN:
+					if (isAsciiLetter(c)) {
+						startTag(false, c);
+					} else if (c == '/') {
+						state = State.END_TAG_OPEN;
+					} else if (c == '!') {
+						state = State.MARKUP_DECLARATION;
+					} else if (c == '?') {
+						state = State.BOGUS;
+					} else if (c != '<') {
+						state = State.DATA;
+					}
+					break;
+				case END_TAG_OPEN:
+					if (isAsciiLetter(c)) {
+						startTag(true, c);
+					} else {
+						state = c == '>' ? State.DATA : State.BOGUS;
+					}
+					break;
+				case MARKUP_DECLARATION:
+					state = c == '-' ? State.MARKUP_DECLARATION_DASH : c == '>' ? State.DATA : State.BOGUS;
+					break;
+				case MARKUP_DECLARATION_DASH:
+					if (c == '-') {
+						// the dashes of the opening count, so <!--> and <!---> end right away, like browsers do
+						dashes = 2;
+						state = State.COMMENT;
+					} else {
+						state = c == '>' ? State.DATA : State.BOGUS;
+					}
+					break;
+				case COMMENT:
+					if (c == '>' && dashes >= 2) {
+						state = State.DATA;
+					} else {
+						dashes = c == '-' ? dashes + 1 : 0;
+					}
+					break;
+				case BOGUS:
+					if (c == '>') {
+						state = State.DATA;
+					}
+					break;
+				case TAG_NAME:
+					if (isWhitespace(c) || c == '/') {
+						state = State.BEFORE_ATTRIBUTE_NAME;
+					} else if (c == '>') {
+						emitTag();
+					} else {
+						tagName.append(toLowerCase(c));
+					}
+					break;
+				case BEFORE_ATTRIBUTE_NAME:
+					if (c == '>') {
+						emitTag();
+					} else if (!isWhitespace(c) && c != '/') {
+						startAttribute(c);
+					}
+					break;
+				case ATTRIBUTE_NAME:
+					if (isWhitespace(c)) {
+						state = State.AFTER_ATTRIBUTE_NAME;
+					} else if (c == '/') {
+						endAttributeWithoutValue();
+						state = State.BEFORE_ATTRIBUTE_NAME;
+					} else if (c == '=') {
+						state = State.BEFORE_ATTRIBUTE_VALUE;
+					} else if (c == '>') {
+						endAttributeWithoutValue();
+						emitTag();
+					} else {
+						attributeName.append(toLowerCase(c));
+					}
+					break;
+				case AFTER_ATTRIBUTE_NAME:
+					if (c == '=') {
+						state = State.BEFORE_ATTRIBUTE_VALUE;
+					} else if (c == '/') {
+						endAttributeWithoutValue();
+						state = State.BEFORE_ATTRIBUTE_NAME;
+					} else if (c == '>') {
+						endAttributeWithoutValue();
+						emitTag();
+					} else if (!isWhitespace(c)) {
+						endAttributeWithoutValue();
+						startAttribute(c);
+					}
+					break;
+				case BEFORE_ATTRIBUTE_VALUE:
+					if (isWhitespace(c)) {
+						break;
+					}
+					captureValue = isHref();
+					attributeValue.clear();
+					if (c == '"') {
+						state = State.ATTRIBUTE_VALUE_DOUBLE_QUOTED;
+					} else if (c == '\'') {
+						state = State.ATTRIBUTE_VALUE_SINGLE_QUOTED;
+					} else if (c == '>') {
+						endAttributeValue();
+						emitTag();
+					} else {
+						appendValue(c);
+						state = State.ATTRIBUTE_VALUE_UNQUOTED;
+					}
+					break;
+				case ATTRIBUTE_VALUE_DOUBLE_QUOTED:
+					if (c == '"') {
+						endAttributeValue();
+						state = State.BEFORE_ATTRIBUTE_NAME;
+					} else {
+						appendValue(c);
+					}
+					break;
+				case ATTRIBUTE_VALUE_SINGLE_QUOTED:
+					if (c == '\'') {
+						endAttributeValue();
+						state = State.BEFORE_ATTRIBUTE_NAME;
+					} else {
+						appendValue(c);
+					}
+					break;
+				case ATTRIBUTE_VALUE_UNQUOTED:
+					if (isWhitespace(c)) {
+						endAttributeValue();
+						state = State.BEFORE_ATTRIBUTE_NAME;
+					} else if (c == '>') {
+						endAttributeValue();
+						emitTag();
+					} else {
+						appendValue(c);
+					}
+					break;
+				case RAW_TEXT:
+					consumeRawText(c);
+					break;
+			}
+		}
+
+		private void startTag(boolean endTag, byte c) {
+			this.endTag = endTag;
+			this.href = null;
+			tagName.clear();
+			tagName.append(toLowerCase(c));
+			state = State.TAG_NAME;
+		}
+
+		private void startAttribute(byte c) {
+			attributeName.clear();
+			attributeName.append(toLowerCase(c));
+			state = State.ATTRIBUTE_NAME;
+		}
+
+		private void appendValue(byte c) {
+			if (captureValue) {
+				attributeValue.append(c);
+			}
+		}
+
+		private void endAttributeValue() {
+			if (captureValue) {
+				href = decodeEntities(attributeValue.toUtf8String());
+				captureValue = false;
+			}
+		}
+
+		private boolean isHref() {
+			return href == null && attributeName.equals(HREF) && (tagName.equals(A) || tagName.equals(BASE));
+		}
+
+		private void endAttributeWithoutValue() {
+			if (isHref()) {
+				href = "";
+			}
+		}
+
+		private void emitTag() {
+			state = State.DATA;
+			if (endTag) {
+				if (tagName.equals(TEMPLATE) && templateDepth > 0) {
+					templateDepth--;
+				}
+				return;
+			}
+
+			if (templateDepth == 0 && href != null) {
+				if (tagName.equals(A)) {
+					referred.add(resolveAgainstBase(href));
+				} else if (tagName.equals(BASE) && base == null) {
+					try {
+						base = url.resolve(href);
+					} catch (IllegalArgumentException ignored) {
+					}
+				}
+			}
+
+			if (tagName.equals(TEMPLATE)) {
+				templateDepth++;
+			} else {
+				for (byte[] element : RAW_TEXT_ELEMENTS) {
+					if (tagName.equals(element)) {
+						rawTextElement = element;
+						rawTextMatched = 0;
+						state = State.RAW_TEXT;
+						break;
+					}
+				}
+			}
+		}
+
+		/**
+		 * Look for the end tag of the current raw text element, i.e. "</" followed by the element name and a
+		 * whitespace, "/" or ">".
+		 */
+		private void consumeRawText(byte c) {
+			if (rawTextMatched == 0) {
+				rawTextMatched = c == '<' ? 1 : 0;
+			} else if (rawTextMatched == 1) {
+				rawTextMatched = c == '/' ? 2 : c == '<' ? 1 : 0;
+			} else if (rawTextMatched - 2 < rawTextElement.length) {
+				rawTextMatched = toLowerCase(c) == rawTextElement[rawTextMatched - 2] ? rawTextMatched + 1 : c == '<' ? 1 : 0;
+			} else if (isWhitespace(c) || c == '/' || c == '>') {
+				state = c == '>' ? State.DATA : State.BOGUS;
+			} else {
+				rawTextMatched = c == '<' ? 1 : 0;
+			}
+		}
+
+		private String resolveAgainstBase(String link) {
+			if (base == null) {
+				return link;
+			}
+			try {
+				return base.resolve(link).toString();
+			} catch (IllegalArgumentException e) {
+				// leave it to the URIResolver to report
+				return link;
+			}
+		}
+	}
+
+	private static class Bytes {
+		private byte[] bytes = new byte[64];
+		private int length = 0;
+
+		void append(byte b) {
+			if (length == bytes.length) {
+				bytes = Arrays.copyOf(bytes, length * 2);
+			}
+			bytes[length++] = b;
+		}
+
+		void clear() {
+			length = 0;
+		}
+
+		boolean equals(byte[] other) {
+			return Arrays.equals(bytes, 0, length, other, 0, other.length);
+		}
+
+		String toUtf8String() {
+			return new String(bytes, 0, length, StandardCharsets.UTF_8);
+		}
+	}
+
+	/**
+	 * Decode character references that are terminated by a semicolon. Unterminated references, which occur in query
+	 * strings a lot, are left untouched.
+	 */
+	static String decodeEntities(String s) {
+		int amp = s.indexOf('&');
+		if (amp < 0) {
+			return s;
+		}
+
+		StringBuilder decoded = new StringBuilder(s.length());
+		int i = 0;
+		while (amp >= 0) {
+			int semicolon = s.indexOf(';', amp);
+			decoded.append(s, i, amp);
+			String replacement = semicolon > amp + 1 ? decodeEntity(s.substring(amp + 1, semicolon)) : null;
+			if (replacement == null) {
+				decoded.append('&');
+				i = amp + 1;
+			} else {
+				decoded.append(replacement);
+				i = semicolon + 1;
+			}
+			amp = s.indexOf('&', i);
+		}
+		return decoded.append(s, i, s.length()).toString();
+	}
+
+	private static String decodeEntity(String name) {
+		if (name.startsWith("#")) {
+			try {
+				int codePoint = name.length() > 1 && (name.charAt(1) == 'x' || name.charAt(1) == 'X')
+					? Integer.parseInt(name.substring(2), 16)
+					: Integer.parseInt(name.substring(1));
+				return Character.isValidCodePoint(codePoint) ? new String(Character.toChars(codePoint)) : null;
+			} catch (NumberFormatException e) {
+				return null;
+			}
+		}
+		switch (name) {
+			case "amp":
+				return "&";
+			case "lt":
+				return "<";
+			case "gt":
+				return ">";
+			case "quot":
+				return "\"";
+			case "apos":
+				return "'";
+			case "nbsp":
+				return "\u00a0";
+			default:
+				return null;
+		}
+	}
+
+	private static boolean isAsciiLetter(byte c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+	}
+
+	private static boolean isWhitespace(byte c) {
+		return c == ' ' || c == '\n' || c == '\t' || c == '\r' || c == '\f';
+	}
+
+	private static byte toLowerCase(byte c) {
+		return c >= 'A' && c <= 'Z' ? (byte) (c + ('a' - 'A')) : c;
+	}
+
+	private static byte[] bytes(String s) {
+		return s.getBytes(StandardCharsets.US_ASCII);
+	}
+}
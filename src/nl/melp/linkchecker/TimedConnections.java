@@ -0,0 +1,148 @@
+package nl.melp.linkchecker;
+
+import nl.melp.linkchecker.Metrics.Phase;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.config.ConnectionConfig;
+import org.apache.http.conn.DnsResolver;
+import org.apache.http.conn.HttpConnectionFactory;
+import org.apache.http.conn.ManagedHttpClientConnection;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.conn.DefaultHttpResponseParserFactory;
+import org.apache.http.impl.conn.DefaultManagedHttpClientConnection;
+import org.apache.http.impl.conn.SystemDefaultDnsResolver;
+import org.apache.http.impl.io.DefaultHttpRequestWriterFactory;
+import org.apache.http.protocol.HttpContext;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.SSLContext;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The parts of the connection manager of the blocking HTTP client, with the time spent in each phase of opening a
+ * connection and waiting for a response recorded in the Metrics.
+ */
+class TimedConnections {
+	private static final AtomicLong COUNTER = new AtomicLong();
+
+	private TimedConnections() {
+	}
+
+	static DnsResolver dnsResolver(Metrics metrics) {
+		return host -> {
+			long start = System.nanoTime();
+			try {
+				return SystemDefaultDnsResolver.INSTANCE.resolve(host);
+			} finally {
+				metrics.recordSince(Phase.DNS, start);
+			}
+		};
+	}
+
+	static ConnectionSocketFactory plain(Metrics metrics) {
+		return new ConnectionSocketFactory() {
+			@Override
+			public Socket createSocket(HttpContext context) throws IOException {
+				return PlainConnectionSocketFactory.INSTANCE.createSocket(context);
+			}
+
+			@Override
+			public Socket connectSocket(int connectTimeout, Socket sock, HttpHost host, InetSocketAddress remoteAddress, InetSocketAddress localAddress, HttpContext context) throws IOException {
+				long start = System.nanoTime();
+				try {
+					return PlainConnectionSocketFactory.INSTANCE.connectSocket(connectTimeout, sock, host, remoteAddress, localAddress, context);
+				} finally {
+					metrics.recordSince(Phase.CONNECT, start);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Connecting a TLS socket includes the handshake, which is recorded separately.
+	 */
+	static class TimedSSLConnectionSocketFactory extends SSLConnectionSocketFactory {
+		private final Metrics metrics;
+		private final ThreadLocal<Long> handshakeNanos = ThreadLocal.withInitial(() -> 0L);
+
+		TimedSSLConnectionSocketFactory(Metrics metrics, SSLContext sslContext, HostnameVerifier hostnameVerifier) {
+			super(sslContext, hostnameVerifier);
+			this.metrics = metrics;
+		}
+
+		@Override
+		public Socket connectSocket(int connectTimeout, Socket socket, HttpHost host, InetSocketAddress remoteAddress, InetSocketAddress localAddress, HttpContext context) throws IOException {
+			handshakeNanos.set(0L);
+			long start = System.nanoTime();
+			try {
+				return super.connectSocket(connectTimeout, socket, host, remoteAddress, localAddress, context);
+			} finally {
+				metrics.record(Phase.CONNECT, System.nanoTime() - start - handshakeNanos.get());
+			}
+		}
+
+		@Override
+		public Socket createLayeredSocket(Socket socket, String target, int port, HttpContext context) throws IOException {
+			long start = System.nanoTime();
+			try {
+				return super.createLayeredSocket(socket, target, port, context);
+			} finally {
+				long nanos = System.nanoTime() - start;
+				handshakeNanos.set(nanos);
+				metrics.record(Phase.TLS, nanos);
+			}
+		}
+	}
+
+	/**
+	 * A connection that records the time between sending a request and receiving the headers of the response.
+	 */
+	private static class TimedConnection extends DefaultManagedHttpClientConnection {
+		private static final long NOT_SUBMITTED = Long.MIN_VALUE;
+		private final Metrics metrics;
+		private long requestSubmittedNanos = NOT_SUBMITTED;
+
+		TimedConnection(String id, ConnectionConfig config, Metrics metrics) {
+			super(
+				id,
+				config.getBufferSize(),
+				config.getFragmentSizeHint(),
+				null,
+				null,
+				config.getMessageConstraints(),
+				null,
+				null,
+				DefaultHttpRequestWriterFactory.INSTANCE,
+				DefaultHttpResponseParserFactory.INSTANCE
+			);
+			this.metrics = metrics;
+		}
+
+		@Override
+		protected void onRequestSubmitted(HttpRequest request) {
+			requestSubmittedNanos = System.nanoTime();
+		}
+
+		@Override
+		protected void onResponseReceived(HttpResponse response) {
+			if (requestSubmittedNanos != NOT_SUBMITTED) {
+				metrics.recordSince(Phase.TTFB, requestSubmittedNanos);
+				requestSubmittedNanos = NOT_SUBMITTED;
+			}
+		}
+	}
+
+	static HttpConnectionFactory<HttpRoute, ManagedHttpClientConnection> connectionFactory(Metrics metrics, ConnectionStats connectionStats) {
+		return (route, config) -> {
+			connectionStats.connectionOpened();
+			return new TimedConnection("http-outgoing-" + COUNTER.getAndIncrement(), config != null ? config : ConnectionConfig.DEFAULT, metrics);
+		};
+	}
+}
@@ -31,11 +31,146 @@ public class URIResolver {
 		}
 	}
 
+	/**
+	 * The parts of a page url that links on the page are resolved against, so they're only taken apart once per page.
+	 */
+	public static class Base {
+		private final URI context;
+		private final boolean simple;
+		private final String origin;
+		private final String directory;
+		private final URI withoutFragment;
+
+		private Base(URI context) {
+			this.context = context;
+			String path = context.getRawPath();
+			// the JDK normalizes the merged path, so only paths that normalizing leaves alone can be appended to as is
+			this.simple = !context.isOpaque()
+				&& ("http".equals(context.getScheme()) || "https".equals(context.getScheme()))
+				&& context.getHost() != null
+				&& path != null && path.startsWith("/")
+				&& isNormal(path);
+			if (simple) {
+				origin = context.getScheme() + "://" + context.getRawAuthority();
+				directory = path.substring(0, path.lastIndexOf('/') + 1);
+				withoutFragment = context.getRawFragment() == null
+					? context
+					: URI.create(context.toString().substring(0, context.toString().lastIndexOf('#')));
+			} else {
+				origin = null;
+				directory = null;
+				withoutFragment = null;
+			}
+		}
+
+		public URI getContext() {
+			return context;
+		}
+	}
+
 	public URIResolver(Logger logger) {
 		this.logger = logger;
 	}
 
+	/**
+	 * Parses the page url once, for resolving all links found on the page.
+	 */
+	public Base base(URI context) {
+		return new Base(context);
+	}
+
 	public URI resolveUri(URI context, String linkedUrl) throws InvalidURIException {
+		return resolveUri(base(context), linkedUrl);
+	}
+
+	/**
+	 * Resolves the common forms of links, i.e. absolute http(s) urls, absolute and relative paths, queries and fragments
+	 * made up of plain characters, by appending them to the parts of the base. Anything else is left to URI.resolve().
+	 */
+	public URI resolveUri(Base base, String linkedUrl) throws InvalidURIException {
+		if (!base.simple || linkedUrl.isEmpty()) {
+			return resolve(base.context, linkedUrl);
+		}
+
+		int fragment = -1;
+		int pathEnd = linkedUrl.length();
+		for (int i = 0; i < linkedUrl.length(); i++) {
+			char c = linkedUrl.charAt(i);
+			if (c == '#') {
+				if (fragment >= 0) {
+					return resolve(base.context, linkedUrl);
+				}
+				fragment = i;
+				pathEnd = Math.min(pathEnd, i);
+			} else if (c == '?') {
+				pathEnd = Math.min(pathEnd, i);
+			} else if (c == '%') {
+				if (i + 2 >= linkedUrl.length() || !isHex(linkedUrl.charAt(i + 1)) || !isHex(linkedUrl.charAt(i + 2))) {
+					return resolve(base.context, linkedUrl);
+				}
+			} else if (!isPlain(c)) {
+				return resolve(base.context, linkedUrl);
+			}
+		}
+		if (fragment == linkedUrl.length() - 1) {
+			// an empty fragment is kept
+			return resolve(base.context, linkedUrl);
+		}
+		String withoutFragment = fragment >= 0 ? linkedUrl.substring(0, fragment) : linkedUrl;
+
+		if (withoutFragment.isEmpty()) {
+			return base.withoutFragment;
+		}
+
+		String resolved;
+		if (linkedUrl.startsWith("http://") || linkedUrl.startsWith("https://")) {
+			// absolute urls are used as they are
+			resolved = withoutFragment;
+		} else if (pathEnd == 0) {
+			// a query replaces the file name
+			resolved = base.origin + base.directory + withoutFragment;
+		} else {
+			String path = linkedUrl.substring(0, pathEnd);
+			if (path.indexOf(':') >= 0 || path.startsWith("//") || !isNormal(path)) {
+				return resolve(base.context, linkedUrl);
+			}
+			resolved = path.charAt(0) == '/'
+				? base.origin + withoutFragment
+				: base.origin + base.directory + withoutFragment;
+		}
+		URI uri;
+		try {
+			uri = URI.create(resolved);
+		} catch (IllegalArgumentException e) {
+			// e.g. an invalid port; report it the way URI.resolve() does
+			return resolve(base.context, linkedUrl);
+		}
+		return resolve(base.context, uri, linkedUrl);
+	}
+
+	private static boolean isHex(char c) {
+		return (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F');
+	}
+
+	/**
+	 * Characters that are valid anywhere in a path, query or fragment.
+	 */
+	private static boolean isPlain(char c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || "-_.!~*'();/:@&=+$,".indexOf(c) >= 0;
+	}
+
+	/**
+	 * Whether the path has no empty, "." or ".." segments, apart from a leading or trailing slash.
+	 */
+	private static boolean isNormal(String path) {
+		return !path.contains("//")
+			&& !path.equals(".") && !path.equals("..")
+			&& !path.startsWith("./") && !path.startsWith("../")
+			&& !path.contains("/./") && !path.contains("/../")
+			&& !path.endsWith("/.") && !path.endsWith("/..");
+	}
+
+	private URI resolve(URI context, String linkedUrl) throws InvalidURIException {
 		URI uri;
 		if (linkedUrl.isBlank()) {
 			// According to the RFC, and empty link resolves to the top of the current document;
@@ -44,7 +179,7 @@ public class URIResolver {
 		} else {
 			try {
 				uri = context.resolve(linkedUrl);
-				logger.trace("Link from " + context + " to '" + linkedUrl + " resolved to '" + uri + "'");
+				logger.trace("Link from {} to '{}' resolved to '{}'", context, linkedUrl, uri);
 			} catch (IllegalArgumentException e) {
 				throw new InvalidURIException(context, linkedUrl, e.getMessage());
 			}
@@ -53,7 +188,10 @@ public class URIResolver {
 		if (!"".equals(uri.getFragment()) && uri.getFragment() != null) {
 			uri = URI.create(uri.toString().replace("#" + uri.getRawFragment(), ""));
 		}
+		return resolve(context, uri, linkedUrl);
+	}
 
+	private URI resolve(URI context, URI uri, String linkedUrl) throws InvalidURIException {
 		if (uri.getPath() == null && uri.getScheme() == null) {
 			throw new InvalidURIException(context, linkedUrl, "Ignoring uri without path: " + linkedUrl);
 		}
@@ -71,7 +209,7 @@ public class URIResolver {
 		}
 
 		if (uri.getPath() == null) {
-			logger.trace("Not following non-path url: " + uri);
+			logger.trace("Not following non-path url: {}", uri);
 			return null;
 		}
 		return uri;
@@ -0,0 +1,359 @@
+package nl.melp.linkchecker;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Matches strings against a set of regular expressions, the way String.matches() would for each of them, without
+ * running every expression for every string. Literals and literal prefixes followed by ".*" go in a trie; a scheme of
+ * "https?" is expanded to both schemes first, so host rules like "https?://example\.com/.*" end up in the trie as well.
+ * Literal suffixes after ".*", like ".*\.pdf", go in a trie of reversed suffixes. The remaining expressions are
+ * combined into one precompiled alternation.
+ *
+ * For urls, the rules that can match anything on a scheme and host are worked out once per host and cached, so most
+ * urls are decided by one walk of the trie and at most one regex.
+ */
+public class UrlFilter {
+	private static final int MAX_HOSTS = 10_000;
+	private static final String[] SCHEME_ALTERNATIVES = {"https?://", "(https?)://", "(?:https?)://", "(http|https)://", "(?:http|https)://"};
+	private static final Pattern UNCOMBINABLE = Pattern.compile(".*(\\\\[1-9]|\\\\k<|\\(\\?<[a-zA-Z]).*");
+	private static final Pattern LOOKAROUND = Pattern.compile(".*\\(\\?(=|!|<=|<!).*");
+
+	private static class Node {
+		private char[] keys = new char[0];
+		private Node[] children = new Node[0];
+		private boolean prefix;
+		private boolean exact;
+
+		Node child(char c) {
+			for (int i = 0; i < keys.length; i++) {
+				if (keys[i] == c) {
+					return children[i];
+				}
+			}
+			return null;
+		}
+
+		Node addChild(char c) {
+			Node child = child(c);
+			if (child == null) {
+				child = new Node();
+				int n = keys.length;
+				keys = Arrays.copyOf(keys, n + 1);
+				children = Arrays.copyOf(children, n + 1);
+				keys[n] = c;
+				children[n] = child;
+			}
+			return child;
+		}
+	}
+
+	/**
+	 * What is left to check for the urls on one scheme and host.
+	 */
+	private static class HostRules {
+		private static final HostRules ALWAYS = new HostRules(false, null, new Pattern[0]);
+
+		private final boolean trie;
+		private final Pattern combined;
+		private final Pattern[] separate;
+
+		HostRules(boolean trie, Pattern combined, Pattern[] separate) {
+			this.trie = trie;
+			this.combined = combined;
+			this.separate = separate;
+		}
+	}
+
+	private final Node root = new Node();
+	private final Node suffixes = new Node();
+	private final List<String> combinable = new ArrayList<>();
+	private final List<Pattern> combinablePatterns = new ArrayList<>();
+	private final Pattern combined;
+	private final List<Pattern> separate = new ArrayList<>();
+	private final Map<String, HostRules> hosts = new ConcurrentHashMap<>();
+	private final Map<BitSet, Pattern> subsets = new ConcurrentHashMap<>();
+
+	/**
+	 * @throws java.util.regex.PatternSyntaxException If any of the patterns is invalid.
+	 */
+	public UrlFilter(Collection<String> patterns) {
+		for (String pattern : patterns) {
+			if (!addLiteral(pattern)) {
+				Pattern compiled = Pattern.compile(pattern);
+				if (UNCOMBINABLE.matcher(pattern).matches()) {
+					// back references and group names don't survive being combined with other patterns
+					separate.add(compiled);
+				} else {
+					combinable.add(pattern);
+					combinablePatterns.add(compiled);
+				}
+			}
+		}
+		BitSet all = new BitSet();
+		all.set(0, combinable.size());
+		combined = combine(all);
+	}
+
+	/**
+	 * @return Whether the pattern was put in the trie.
+	 */
+	private boolean addLiteral(String pattern) {
+		String body = pattern;
+		if (body.startsWith("^")) {
+			body = body.substring(1);
+		}
+		if (body.endsWith("$") && !body.endsWith("\\$")) {
+			body = body.substring(0, body.length() - 1);
+		}
+		if (body.startsWith(".*")) {
+			String suffix = literal(body.substring(2));
+			if (suffix == null) {
+				return false;
+			}
+			Node node = suffixes;
+			for (int i = suffix.length() - 1; i >= 0; i--) {
+				node = node.addChild(suffix.charAt(i));
+			}
+			node.prefix = true;
+			return true;
+		}
+
+		List<String> variants = new ArrayList<>();
+		for (String scheme : SCHEME_ALTERNATIVES) {
+			if (body.startsWith(scheme)) {
+				String rest = body.substring(scheme.length());
+				variants.add("http://" + rest);
+				variants.add("https://" + rest);
+			}
+		}
+		if (variants.isEmpty()) {
+			variants.add(body);
+		}
+
+		List<String> literals = new ArrayList<>();
+		List<Boolean> isPrefix = new ArrayList<>();
+		for (String variant : variants) {
+			boolean prefix = variant.endsWith(".*");
+			String literal = literal(prefix ? variant.substring(0, variant.length() - 2) : variant);
+			if (literal == null) {
+				return false;
+			}
+			literals.add(literal);
+			isPrefix.add(prefix);
+		}
+		for (int i = 0; i < literals.size(); i++) {
+			Node node = root;
+			for (char c : literals.get(i).toCharArray()) {
+				node = node.addChild(c);
+			}
+			if (isPrefix.get(i)) {
+				node.prefix = true;
+			} else {
+				node.exact = true;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return The string the regex matches, or null if it isn't a plain literal.
+	 */
+	static String literal(String regex) {
+		StringBuilder literal = new StringBuilder(regex.length());
+		for (int i = 0; i < regex.length(); i++) {
+			char c = regex.charAt(i);
+			if (c == '\\') {
+				if (i + 1 == regex.length() || Character.isLetterOrDigit(regex.charAt(i + 1))) {
+					// \d, \Q, \1 and the like
+					return null;
+				}
+				literal.append(regex.charAt(++i));
+			} else if ("^$.|?*+()[]{}".indexOf(c) >= 0) {
+				return null;
+			} else {
+				literal.append(c);
+			}
+		}
+		return literal.toString();
+	}
+
+	private Pattern combine(BitSet subset) {
+		if (subset.isEmpty()) {
+			return null;
+		}
+		if (subset.cardinality() == 1) {
+			return combinablePatterns.get(subset.nextSetBit(0));
+		}
+		StringBuilder alternation = new StringBuilder();
+		for (int i = subset.nextSetBit(0); i >= 0; i = subset.nextSetBit(i + 1)) {
+			if (alternation.length() > 0) {
+				alternation.append('|');
+			}
+			alternation.append("(?:").append(combinable.get(i)).append(')');
+		}
+		return Pattern.compile(alternation.toString());
+	}
+
+	/**
+	 * The ".*" before a literal suffix or after a literal prefix doesn't match line terminators.
+	 */
+	private static boolean hasLineTerminator(String s, int from, int to) {
+		for (int i = from; i < to; i++) {
+			char c = s.charAt(i);
+			if (c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029') {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private boolean trieMatches(String s) {
+		Node node = root;
+		for (int i = 0; ; i++) {
+			if (node.prefix && !hasLineTerminator(s, i, s.length())) {
+				return true;
+			}
+			if (i == s.length()) {
+				return node.exact;
+			}
+			node = node.child(s.charAt(i));
+			if (node == null) {
+				return false;
+			}
+		}
+	}
+
+	private boolean suffixMatches(String s) {
+		Node node = suffixes;
+		for (int i = s.length(); ; i--) {
+			if (node.prefix && !hasLineTerminator(s, 0, i)) {
+				return true;
+			}
+			if (i == 0) {
+				return false;
+			}
+			node = node.child(s.charAt(i - 1));
+			if (node == null) {
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * @return Whether any of the patterns matches the entire string.
+	 */
+	public boolean matches(String s) {
+		if (trieMatches(s) || suffixMatches(s) || (combined != null && combined.matcher(s).matches())) {
+			return true;
+		}
+		for (Pattern pattern : separate) {
+			if (pattern.matcher(s).matches()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return Whether any of the patterns matches the entire string form of the url.
+	 */
+	public boolean matches(URI url) {
+		String s = url.toString();
+		int hostEnd = url.getRawAuthority() == null ? -1 : hostEnd(s);
+		if (hostEnd < 0) {
+			return matches(s);
+		}
+		String host = s.substring(0, hostEnd);
+		HostRules rules = hosts.get(host);
+		if (rules == null) {
+			if (hosts.size() >= MAX_HOSTS) {
+				hosts.clear();
+			}
+			rules = hostRules(host);
+			hosts.put(host, rules);
+		}
+
+		if (rules == HostRules.ALWAYS
+			|| (rules.trie && trieMatches(s))
+			|| suffixMatches(s)
+			|| (rules.combined != null && rules.combined.matcher(s).matches())) {
+			return true;
+		}
+		for (Pattern pattern : rules.separate) {
+			if (pattern.matcher(s).matches()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static int hostEnd(String s) {
+		int start = s.indexOf("://");
+		if (start < 0) {
+			return -1;
+		}
+		for (int i = start + 3; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '/' || c == '?' || c == '#') {
+				return i;
+			}
+		}
+		return s.length();
+	}
+
+	/**
+	 * Works out which rules can match a string starting with the given scheme and host. Urls can't contain line
+	 * terminators, so a literal prefix of the host matches all of them.
+	 */
+	private HostRules hostRules(String host) {
+		boolean trie = true;
+		Node node = root;
+		for (int i = 0; i <= host.length(); i++) {
+			if (node.prefix) {
+				return HostRules.ALWAYS;
+			}
+			if (i == host.length()) {
+				break;
+			}
+			node = node.child(host.charAt(i));
+			if (node == null) {
+				trie = false;
+				break;
+			}
+		}
+
+		BitSet subset = new BitSet();
+		for (int i = 0; i < combinablePatterns.size(); i++) {
+			if (canMatch(combinablePatterns.get(i), combinable.get(i), host)) {
+				subset.set(i);
+			}
+		}
+		List<Pattern> separate = new ArrayList<>();
+		for (Pattern pattern : this.separate) {
+			if (canMatch(pattern, pattern.pattern(), host)) {
+				separate.add(pattern);
+			}
+		}
+		return new HostRules(trie, subsets.computeIfAbsent(subset, this::combine), separate.toArray(new Pattern[0]));
+	}
+
+	/**
+	 * Whether the pattern can match the prefix or a string that starts with it.
+	 */
+	private static boolean canMatch(Pattern pattern, String regex, String prefix) {
+		if (LOOKAROUND.matcher(regex).matches() || UNCOMBINABLE.matcher(regex).matches()) {
+			return true;
+		}
+		Matcher matcher = pattern.matcher(prefix);
+		return matcher.matches() || matcher.hitEnd();
+	}
+}
@@ -0,0 +1,88 @@
+package nl.melp.linkchecker;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Aborts requests that pass their deadlines: one for the response headers to come in, and one for the whole request,
+ * including reading the body. Socket timeouts only limit the time between two packets, so a server that sends a byte
+ * every few seconds could otherwise hold a request for as long as it likes.
+ */
+public class Watchdog {
+	/**
+	 * The deadlines of one request; closing it stops the watch.
+	 */
+	public class Watch implements AutoCloseable {
+		private final Runnable abort;
+		private final AtomicBoolean expired = new AtomicBoolean(false);
+		private final ScheduledFuture<?> headersDeadline;
+		private final ScheduledFuture<?> requestDeadline;
+
+		private Watch(Runnable abort) {
+			this.abort = abort;
+			this.headersDeadline = timer.schedule(this::expire, ttfbTimeoutMs, TimeUnit.MILLISECONDS);
+			this.requestDeadline = timer.schedule(this::expire, requestTimeoutMs, TimeUnit.MILLISECONDS);
+		}
+
+		private void expire() {
+			if (expired.compareAndSet(false, true)) {
+				numAborted.incrementAndGet();
+				abort.run();
+			}
+		}
+
+		public void headersReceived() {
+			headersDeadline.cancel(false);
+		}
+
+		/**
+		 * Whether the request was aborted, in which case it shouldn't be tried again.
+		 */
+		public boolean isExpired() {
+			return expired.get();
+		}
+
+		@Override
+		public void close() {
+			headersDeadline.cancel(false);
+			requestDeadline.cancel(false);
+		}
+	}
+
+	private final long ttfbTimeoutMs;
+	private final long requestTimeoutMs;
+	private final AtomicLong numAborted = new AtomicLong();
+	private final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, runnable -> {
+		Thread t = new Thread(runnable);
+		t.setDaemon(true);
+		t.setName("watchdog");
+		return t;
+	});
+
+	/**
+	 * @param ttfbTimeoutMs    The time from the start of a request to its response headers.
+	 * @param requestTimeoutMs The time from the start of a request until it's done.
+	 */
+	public Watchdog(long ttfbTimeoutMs, long requestTimeoutMs) {
+		this.ttfbTimeoutMs = ttfbTimeoutMs;
+		this.requestTimeoutMs = requestTimeoutMs;
+		// nearly every watch is closed long before its deadlines
+		timer.setRemoveOnCancelPolicy(true);
+	}
+
+	/**
+	 * Start the deadlines of a request.
+	 *
+	 * @param abort Aborts the request, so whatever waits for it fails right away.
+	 */
+	public Watch watch(Runnable abort) {
+		return new Watch(abort);
+	}
+
+	public long getNumAborted() {
+		return numAborted.get();
+	}
+}
@@ -0,0 +1,25 @@
+package nl.melp.linkchecker;
+
+import java.net.URI;
+import java.util.List;
+
+/**
+ * A queue shared by several processes, that hands out every url to one of them. Backends that implement it are
+ * crawled by claiming urls, in stead of iterating Status.urls. An url is done once its result is added to the Status.
+ */
+public interface WorkQueue {
+	/**
+	 * Claim up to max urls that aren't done or claimed by another worker.
+	 */
+	List<URI> claim(int max);
+
+	/**
+	 * Give up an url that was claimed but couldn't be processed, so it will be claimed again.
+	 */
+	void abandon(URI url);
+
+	/**
+	 * @return Whether there are no urls left to claim and no worker is still processing one.
+	 */
+	boolean isDrained();
+}
@@ -0,0 +1,175 @@
+package nl.melp.linkchecker.backend;
+
+import nl.melp.linkchecker.Fetcher.Result;
+import nl.melp.linkchecker.RunConfig;
+import nl.melp.linkchecker.Status;
+import org.slf4j.Logger;
+
+import java.net.URI;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An in-memory backend that keeps every url once, as an int id in a UrlDictionary. Statuses are an int array indexed
+ * by id, the queue is an int array of ids and the links of a page are an int array of linked ids. URIs are only
+ * created when the data is read, e.g. when reporting.
+ */
+public class CompactInMemory extends Status {
+	private static class Store extends IdStore {
+		private final UrlDictionary dictionary = new UrlDictionary();
+
+		private int[] statuses = new int[0];
+		private int numStatuses = 0;
+
+		private int[] queue = new int[1024];
+		private int queueSize = 0;
+		private final BitSet queued = new BitSet();
+
+		private final IntAdjacency links = new IntAdjacency();
+
+		@Override
+		int find(Object url) {
+			return dictionary.find(url);
+		}
+
+		@Override
+		int intern(URI url) {
+			int id = dictionary.intern(url);
+			if (id >= statuses.length) {
+				int capacity = Math.max(1024, Integer.highestOneBit(id) * 2);
+				int previous = statuses.length;
+				statuses = Arrays.copyOf(statuses, capacity);
+				Arrays.fill(statuses, previous, capacity, NO_STATUS);
+			}
+			return id;
+		}
+
+		@Override
+		URI url(int id) {
+			return dictionary.get(id);
+		}
+
+		@Override
+		int numUrls() {
+			return dictionary.size();
+		}
+
+		@Override
+		int getStatus(int id) {
+			return statuses[id];
+		}
+
+		@Override
+		int putStatus(int id, int status) {
+			int previous = statuses[id];
+			statuses[id] = status;
+			if (previous == NO_STATUS && status != NO_STATUS) {
+				numStatuses++;
+			} else if (previous != NO_STATUS && status == NO_STATUS) {
+				numStatuses--;
+			}
+			return previous;
+		}
+
+		@Override
+		int numStatuses() {
+			return numStatuses;
+		}
+
+		@Override
+		void clearStatuses() {
+			Arrays.fill(statuses, NO_STATUS);
+			numStatuses = 0;
+		}
+
+		@Override
+		boolean isQueued(int id) {
+			return queued.get(id);
+		}
+
+		@Override
+		boolean enqueue(int id) {
+			if (queued.get(id)) {
+				return false;
+			}
+			queued.set(id);
+			if (queueSize == queue.length) {
+				queue = Arrays.copyOf(queue, queue.length * 2);
+			}
+			queue[queueSize++] = id;
+			return true;
+		}
+
+		@Override
+		int queueSize() {
+			return queueSize;
+		}
+
+		@Override
+		int queued(int index) {
+			return queue[index];
+		}
+
+		@Override
+		void clearQueue() {
+			queued.clear();
+			queueSize = 0;
+		}
+
+		@Override
+		void appendLink(int id, int link) {
+			links.append(id, link);
+		}
+
+		@Override
+		IntAdjacency links() {
+			return links;
+		}
+
+		@Override
+		void removeLinks(int id) {
+			links.remove(id);
+		}
+
+		@Override
+		void clearLinks() {
+			links.clear();
+		}
+	}
+
+	private final Store store;
+
+	public CompactInMemory(Logger logger, RunConfig config) {
+		this(logger, config, new Store());
+	}
+
+	private CompactInMemory(Logger logger, RunConfig config, Store store) {
+		super(logger, config, store.statusMap(), store.queueSet(), store.invalidLinkMap(), store.validatorMap(), store.outlinkMap());
+		this.store = store;
+	}
+
+	@Override
+	public Map<URI, Set<URI>> getReferers(Set<URI> urls) {
+		// also used while constructing, before the store is set
+		return ((IdStore.Outlinks)outlinks).referers(urls);
+	}
+
+	@Override
+	public void add(Result fetched) {
+		// one lock for the whole result, in stead of one per view call
+		synchronized (store) {
+			super.add(fetched);
+		}
+	}
+
+	/**
+	 * The number of distinct urls stored.
+	 */
+	public int numUrls() {
+		synchronized (store) {
+			return store.numUrls();
+		}
+	}
+}
@@ -0,0 +1,95 @@
+package nl.melp.linkchecker.backend;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An append only set that iterates in insertion order. Iterators are cursors into the log of added elements, so they
+ * see elements that are added while iterating, and adding from other threads during iteration is safe.
+ *
+ * Adding and checking for an element are O(1); so is moving an iterator forward, regardless of the size.
+ */
+public class ConcurrentSetQueue<K> extends AbstractSet<K> implements Set<K> {
+	private static final int CHUNK_BITS = 12;
+	private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+
+	private final Set<K> seen = ConcurrentHashMap.newKeySet();
+	private volatile Object[][] chunks = new Object[16][];
+	// written after the element it makes visible, so readers that see the size see the element
+	private volatile int size = 0;
+
+	@Override
+	public boolean add(K k) {
+		if (k == null) {
+			throw new NullPointerException();
+		}
+		if (!seen.add(k)) {
+			return false;
+		}
+		append(k);
+		return true;
+	}
+
+	private synchronized void append(K k) {
+		int index = size;
+		int chunk = index >>> CHUNK_BITS;
+
+		Object[][] chunks = this.chunks;
+		if (chunk == chunks.length) {
+			chunks = Arrays.copyOf(chunks, chunks.length * 2);
+		}
+		if (chunks[chunk] == null) {
+			chunks[chunk] = new Object[CHUNK_SIZE];
+		}
+		chunks[chunk][index & (CHUNK_SIZE - 1)] = k;
+
+		this.chunks = chunks;
+		this.size = index + 1;
+	}
+
+	@SuppressWarnings("unchecked")
+	private K get(int index) {
+		return (K)chunks[index >>> CHUNK_BITS][index & (CHUNK_SIZE - 1)];
+	}
+
+	@Override
+	public boolean contains(Object o) {
+		return seen.contains(o);
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public synchronized void clear() {
+		seen.clear();
+		chunks = new Object[16][];
+		size = 0;
+	}
+
+	@Override
+	public Iterator<K> iterator() {
+		return new Iterator<>() {
+			private int cursor = 0;
+
+			@Override
+			public boolean hasNext() {
+				return cursor < size;
+			}
+
+			@Override
+			public K next() {
+				if (cursor >= size) {
+					throw new NoSuchElementException();
+				}
+				return get(cursor++);
+			}
+		};
+	}
+}
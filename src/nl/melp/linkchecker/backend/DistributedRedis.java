@@ -0,0 +1,215 @@
+package nl.melp.linkchecker.backend;
+
+import nl.melp.linkchecker.RunConfig;
+import nl.melp.linkchecker.WorkQueue;
+import org.slf4j.Logger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A Redis backend that several processes crawl at the same time, each fetching different urls.
+ *
+ * Urls to fetch are kept in a list that workers pop from. A claimed url gets a lease: it's added to a sorted set,
+ * scored by the time the lease expires, and the worker holding it is recorded. Leases of urls being fetched are
+ * renewed periodically, and released in the same write as the result. Leases that expired, e.g. because the worker
+ * crashed, are pushed back on the list by the next claim. Expiry uses the Redis server's clock, so the clocks of the
+ * workers don't need to be in sync.
+ */
+public class DistributedRedis extends Redis implements WorkQueue, Closeable {
+	private static final String TIME = String.join("\n",
+		// TIME is non deterministic, so older servers need the script to be replicated by its effects
+		"redis.replicate_commands()",
+		"local time = redis.call('TIME')",
+		"local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)"
+	);
+
+	private static final String SEED = String.join("\n",
+		"if not redis.call('SET', KEYS[4], '1', 'NX') then",
+		"  return -1",
+		"end",
+		"local n = 0",
+		"for _, url in ipairs(redis.call('ZRANGE', KEYS[1], 0, -1)) do",
+		"  if redis.call('HEXISTS', KEYS[2], url) == 0 then",
+		"    redis.call('RPUSH', KEYS[3], url)",
+		"    n = n + 1",
+		"  end",
+		"end",
+		"return n"
+	);
+
+	private static final String CLAIM = String.join("\n",
+		TIME,
+		"for _, url in ipairs(redis.call('ZRANGEBYSCORE', KEYS[2], '-inf', now)) do",
+		"  redis.call('ZREM', KEYS[2], url)",
+		"  redis.call('HDEL', KEYS[3], url)",
+		"  if redis.call('HEXISTS', KEYS[4], url) == 0 then",
+		"    redis.call('LPUSH', KEYS[1], url)",
+		"  end",
+		"end",
+		"local claimed = {}",
+		"while #claimed < tonumber(ARGV[1]) do",
+		"  local url = redis.call('LPOP', KEYS[1])",
+		"  if not url then",
+		"    break",
+		"  end",
+		"  if redis.call('HEXISTS', KEYS[4], url) == 0 then",
+		"    redis.call('ZADD', KEYS[2], now + tonumber(ARGV[2]), url)",
+		"    redis.call('HSET', KEYS[3], url, ARGV[3])",
+		"    claimed[#claimed + 1] = url",
+		"  end",
+		"end",
+		"return claimed"
+	);
+
+	private static final String RENEW = String.join("\n",
+		TIME,
+		"local lost = {}",
+		"for i = 3, #ARGV do",
+		"  local owner = redis.call('HGET', KEYS[2], ARGV[i])",
+		"  if owner == ARGV[2] then",
+		"    redis.call('ZADD', KEYS[1], 'XX', now + tonumber(ARGV[1]), ARGV[i])",
+		"  elseif owner then",
+		"    lost[#lost + 1] = ARGV[i]",
+		"  end",
+		"end",
+		"return lost"
+	);
+
+	private static final String REMAINING = "return redis.call('LLEN', KEYS[1]) + redis.call('ZCARD', KEYS[2])";
+
+	private static final AtomicInteger instances = new AtomicInteger(0);
+
+	private final nl.melp.redis.Redis redis;
+	private final Logger logger;
+	private final String worker;
+	private final long leaseMs;
+	private final Set<URI> leased = ConcurrentHashMap.newKeySet();
+	private final ScheduledExecutorService renewal;
+
+	public DistributedRedis(nl.melp.redis.Redis redis, Logger logger, RunConfig config) {
+		this(redis, logger, config, ManagementFactory.getRuntimeMXBean().getName() + "/" + instances.incrementAndGet());
+	}
+
+	private DistributedRedis(nl.melp.redis.Redis redis, Logger logger, RunConfig config, String worker) {
+		super(redis, logger, config, worker);
+		this.redis = redis;
+		this.logger = logger;
+		this.worker = worker;
+		this.leaseMs = config.getLeaseMs();
+
+		try {
+			if (config.hasFlag("reset") || config.hasFlag("recheck")) {
+				call("DEL", prefixKeyName("pending"), prefixKeyName("leases"), prefixKeyName("leaseOwners"), prefixKeyName("seeded"));
+			}
+			// the first worker fills the list with the urls that are queued but not checked yet
+			long seeded = call("EVAL", SEED, "4", prefixKeyName("urls"), prefixKeyName("statuses"), prefixKeyName("pending"), prefixKeyName("seeded"));
+			if (seeded >= 0) {
+				logger.info("Seeded the distributed queue with " + seeded + " urls");
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("Error preparing the distributed queue", e);
+		}
+
+		renewal = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread t = new Thread(runnable);
+			t.setDaemon(true);
+			t.setName("lease-renewal");
+			return t;
+		});
+		renewal.scheduleAtFixedRate(this::renew, leaseMs / 3, leaseMs / 3, TimeUnit.MILLISECONDS);
+		logger.info("Joined the distributed crawl as worker " + worker);
+	}
+
+	@Override
+	public List<URI> claim(int max) {
+		List<byte[]> claimed;
+		try {
+			claimed = call(
+				"EVAL", CLAIM, "4", prefixKeyName("pending"), prefixKeyName("leases"), prefixKeyName("leaseOwners"), prefixKeyName("statuses"),
+				Integer.toString(max), Long.toString(leaseMs), worker
+			);
+		} catch (IOException e) {
+			throw new RuntimeException("Error claiming urls", e);
+		}
+
+		List<URI> urls = new ArrayList<>(claimed.size());
+		for (byte[] url : claimed) {
+			urls.add(URI.create(new String(url, StandardCharsets.UTF_8)));
+		}
+		leased.addAll(urls);
+		return urls;
+	}
+
+	@Override
+	public void abandon(URI url) {
+		// no longer renewed, so it's claimed again when the lease expires
+		leased.remove(url);
+	}
+
+	@Override
+	public boolean isDrained() {
+		try {
+			long remaining = call("EVAL", REMAINING, "2", prefixKeyName("pending"), prefixKeyName("leases"));
+			return remaining == 0;
+		} catch (IOException e) {
+			throw new RuntimeException("Error reading the distributed queue", e);
+		}
+	}
+
+	@Override
+	protected void released(List<URI> urls) {
+		leased.removeAll(urls);
+	}
+
+	private void renew() {
+		List<Object> command = new ArrayList<>();
+		command.add("EVAL");
+		command.add(RENEW);
+		command.add("2");
+		command.add(prefixKeyName("leases"));
+		command.add(prefixKeyName("leaseOwners"));
+		command.add(Long.toString(leaseMs));
+		command.add(worker);
+		for (URI url : leased) {
+			command.add(url.toString());
+		}
+		if (command.size() == 7) {
+			return;
+		}
+
+		try {
+			List<byte[]> lost = call(command.toArray());
+			for (byte[] bytes : lost) {
+				// claimed by another worker after the lease expired
+				URI url = URI.create(new String(bytes, StandardCharsets.UTF_8));
+				leased.remove(url);
+				logger.warn("The lease on " + url + " expired before it was renewed; it may be fetched twice");
+			}
+		} catch (IOException | RuntimeException e) {
+			logger.error("Error renewing leases", e);
+		}
+	}
+
+	private <T> T call(Object... args) throws IOException {
+		synchronized (redis) {
+			return redis.call(args);
+		}
+	}
+
+	@Override
+	public void close() {
+		renewal.shutdown();
+	}
+}
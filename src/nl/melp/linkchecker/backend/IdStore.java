@@ -0,0 +1,693 @@
+package nl.melp.linkchecker.backend;
+
+import java.net.URI;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.function.IntFunction;
+
+/**
+ * Status data keyed by int url ids, and the Map and Set views Status works with. The views synchronize on the store,
+ * so they're safe to read while workers add results. URIs are only created when the views are read.
+ */
+abstract class IdStore {
+	static final int NO_STATUS = Integer.MIN_VALUE;
+
+	private final Map<Integer, Set<String>> invalidLinks = new HashMap<>();
+	private final Map<Integer, String> validators = new HashMap<>();
+
+	/**
+	 * @return The id of the url, or -1 if it isn't known.
+	 */
+	abstract int find(Object url);
+
+	/**
+	 * @return The id of the url, after adding it if it wasn't known yet.
+	 */
+	abstract int intern(URI url);
+
+	abstract URI url(int id);
+
+	abstract int numUrls();
+
+	/**
+	 * @return The status of the url, or NO_STATUS.
+	 */
+	abstract int getStatus(int id);
+
+	/**
+	 * @return The previous status of the url, or NO_STATUS.
+	 */
+	abstract int putStatus(int id, int status);
+
+	abstract int numStatuses();
+
+	abstract void clearStatuses();
+
+	abstract boolean isQueued(int id);
+
+	abstract boolean enqueue(int id);
+
+	abstract int queueSize();
+
+	/**
+	 * @return The id at the position in the queue.
+	 */
+	abstract int queued(int index);
+
+	abstract void clearQueue();
+
+	/**
+	 * Record the link without checking whether it was recorded already, so the links don't need to be read.
+	 */
+	abstract void appendLink(int id, int link);
+
+	/**
+	 * @return Whether the link wasn't recorded yet.
+	 */
+	boolean addLink(int id, int link) {
+		if (links().contains(id, link)) {
+			return false;
+		}
+		appendLink(id, link);
+		return true;
+	}
+
+	/**
+	 * The links found on pages.
+	 */
+	abstract IntAdjacency links();
+
+	abstract void removeLinks(int id);
+
+	abstract void clearLinks();
+
+	/**
+	 * Called when an invalid link is recorded or all links of an url are removed (link is null), for stores that
+	 * need to persist them. Invalid links are rare, so they're kept in memory as strings.
+	 */
+	void invalidLinksChanged(int id, String link) {
+	}
+
+	void invalidLinksCleared() {
+	}
+
+	/**
+	 * Called when the validators of an url are stored or removed (value is null), for stores that need to persist them.
+	 * They're kept in memory, as one string per page.
+	 */
+	void validatorsChanged(int id, String value) {
+	}
+
+	void validatorsCleared() {
+	}
+
+	Map<URI, Integer> statusMap() {
+		return new Statuses();
+	}
+
+	Set<URI> queueSet() {
+		return new Queue();
+	}
+
+	Map<URI, Set<String>> invalidLinkMap() {
+		return new InvalidLinks();
+	}
+
+	Map<URI, String> validatorMap() {
+		return new Validators();
+	}
+
+	Map<URI, Set<URI>> outlinkMap() {
+		return new Outlinks();
+	}
+
+	/**
+	 * Iterates the matching ids from 0 up to the current size, synchronizing each step on the store.
+	 */
+	private abstract class IdIterator<T> implements Iterator<T> {
+		private final IntFunction<T> value;
+		private int next = -1;
+
+		IdIterator(IntFunction<T> value) {
+			this.value = value;
+		}
+
+		abstract int size();
+
+		abstract int get(int index);
+
+		boolean matches(int id) {
+			return true;
+		}
+
+		@Override
+		public boolean hasNext() {
+			synchronized (IdStore.this) {
+				for (int i = next + 1; i < size(); i++) {
+					if (matches(get(i))) {
+						return true;
+					}
+				}
+				return false;
+			}
+		}
+
+		@Override
+		public T next() {
+			synchronized (IdStore.this) {
+				for (next = next + 1; next < size(); next++) {
+					if (matches(get(next))) {
+						return value.apply(get(next));
+					}
+				}
+				throw new NoSuchElementException();
+			}
+		}
+	}
+
+	private class Statuses extends AbstractMap<URI, Integer> {
+		@Override
+		public Integer get(Object key) {
+			synchronized (IdStore.this) {
+				int id = find(key);
+				int status = id < 0 ? NO_STATUS : getStatus(id);
+				return status == NO_STATUS ? null : status;
+			}
+		}
+
+		@Override
+		public boolean containsKey(Object key) {
+			return get(key) != null;
+		}
+
+		@Override
+		public Integer put(URI key, Integer value) {
+			synchronized (IdStore.this) {
+				int previous = putStatus(intern(key), value);
+				return previous == NO_STATUS ? null : previous;
+			}
+		}
+
+		@Override
+		public Integer remove(Object key) {
+			synchronized (IdStore.this) {
+				int id = find(key);
+				if (id < 0 || getStatus(id) == NO_STATUS) {
+					return null;
+				}
+				return putStatus(id, NO_STATUS);
+			}
+		}
+
+		@Override
+		public int size() {
+			synchronized (IdStore.this) {
+				return numStatuses();
+			}
+		}
+
+		@Override
+		public void clear() {
+			synchronized (IdStore.this) {
+				clearStatuses();
+			}
+		}
+
+		@Override
+		public Set<Entry<URI, Integer>> entrySet() {
+			return new AbstractSet<>() {
+				@Override
+				public Iterator<Entry<URI, Integer>> iterator() {
+					return new IdIterator<>(id -> new SimpleImmutableEntry<>(url(id), getStatus(id))) {
+						int size() {
+							return numUrls();
+						}
+
+						int get(int index) {
+							return index;
+						}
+
+						boolean matches(int id) {
+							return getStatus(id) != NO_STATUS;
+						}
+					};
+				}
+
+				@Override
+				public int size() {
+					return Statuses.this.size();
+				}
+			};
+		}
+	}
+
+	private class Queue extends AbstractSet<URI> {
+		@Override
+		public boolean add(URI url) {
+			synchronized (IdStore.this) {
+				return enqueue(intern(url));
+			}
+		}
+
+		@Override
+		public boolean contains(Object o) {
+			synchronized (IdStore.this) {
+				int id = find(o);
+				return id >= 0 && isQueued(id);
+			}
+		}
+
+		@Override
+		public int size() {
+			synchronized (IdStore.this) {
+				return queueSize();
+			}
+		}
+
+		@Override
+		public void clear() {
+			synchronized (IdStore.this) {
+				clearQueue();
+			}
+		}
+
+		@Override
+		public Iterator<URI> iterator() {
+			return new IdIterator<>(IdStore.this::url) {
+				int size() {
+					return queueSize();
+				}
+
+				int get(int index) {
+					return queued(index);
+				}
+			};
+		}
+	}
+
+	/**
+	 * A map of urls to the sets of urls in an IntAdjacency.
+	 */
+	private abstract class AdjacencyMap extends AbstractMap<URI, Set<URI>> {
+		abstract IntAdjacency lists();
+
+		abstract boolean add(int id, int value);
+
+		abstract void clearAll();
+
+		class Adjacent extends AbstractSet<URI> {
+			private final int id;
+
+			Adjacent(int id) {
+				this.id = id;
+			}
+
+			@Override
+			public boolean add(URI value) {
+				synchronized (IdStore.this) {
+					return AdjacencyMap.this.add(id, intern(value));
+				}
+			}
+
+			@Override
+			public boolean contains(Object o) {
+				synchronized (IdStore.this) {
+					int value = find(o);
+					return value >= 0 && lists().contains(id, value);
+				}
+			}
+
+			@Override
+			public int size() {
+				synchronized (IdStore.this) {
+					return lists().size(id);
+				}
+			}
+
+			@Override
+			public Iterator<URI> iterator() {
+				return new IdIterator<>(IdStore.this::url) {
+					int size() {
+						return lists().size(id);
+					}
+
+					int get(int index) {
+						return lists().get(id)[index];
+					}
+				};
+			}
+		}
+
+		/**
+		 * Like InMemory's, the set is created if it doesn't exist, so callers can add to it.
+		 */
+		@Override
+		public Set<URI> get(Object key) {
+			if (!(key instanceof URI)) {
+				return null;
+			}
+			synchronized (IdStore.this) {
+				return new Adjacent(intern((URI)key));
+			}
+		}
+
+		@Override
+		public boolean containsKey(Object key) {
+			synchronized (IdStore.this) {
+				int id = find(key);
+				return id >= 0 && lists().size(id) > 0;
+			}
+		}
+
+		@Override
+		public int size() {
+			synchronized (IdStore.this) {
+				return lists().numKeys();
+			}
+		}
+
+		@Override
+		public void clear() {
+			synchronized (IdStore.this) {
+				clearAll();
+			}
+		}
+
+		@Override
+		public Set<Entry<URI, Set<URI>>> entrySet() {
+			return new AbstractSet<>() {
+				@Override
+				public Iterator<Entry<URI, Set<URI>>> iterator() {
+					return new IdIterator<>(id -> new SimpleImmutableEntry<>(url(id), (Set<URI>)new Adjacent(id))) {
+						int size() {
+							return numUrls();
+						}
+
+						int get(int index) {
+							return index;
+						}
+
+						boolean matches(int id) {
+							return lists().size(id) > 0;
+						}
+					};
+				}
+
+				@Override
+				public int size() {
+					return AdjacencyMap.this.size();
+				}
+			};
+		}
+	}
+
+	class Outlinks extends AdjacencyMap {
+		@Override
+		IntAdjacency lists() {
+			return links();
+		}
+
+		@Override
+		boolean add(int id, int link) {
+			return addLink(id, link);
+		}
+
+		@Override
+		void clearAll() {
+			clearLinks();
+		}
+
+		@Override
+		public Set<URI> remove(Object key) {
+			synchronized (IdStore.this) {
+				int id = find(key);
+				if (id < 0 || links().size(id) == 0) {
+					return null;
+				}
+				Set<URI> removed = new LinkedHashSet<>(new Adjacent(id));
+				removeLinks(id);
+				return removed;
+			}
+		}
+
+		/**
+		 * Replace the links of the page. The links it had aren't returned, so they don't need to be read.
+		 */
+		@Override
+		public Set<URI> put(URI key, Set<URI> value) {
+			synchronized (IdStore.this) {
+				int id = intern(key);
+				removeLinks(id);
+				for (URI link : value) {
+					appendLink(id, intern(link));
+				}
+				return null;
+			}
+		}
+
+		/**
+		 * Like Status.getReferers(), but comparing ids, so only the urls that are found are created.
+		 */
+		Map<URI, Set<URI>> referers(Set<URI> urls) {
+			Map<URI, Set<URI>> referers = new HashMap<>();
+			synchronized (IdStore.this) {
+				BitSet targets = new BitSet();
+				for (URI url : urls) {
+					int id = find(url);
+					if (id >= 0) {
+						targets.set(id);
+					}
+				}
+				if (targets.isEmpty()) {
+					return referers;
+				}
+				IntAdjacency links = links();
+				for (int page = 0; page < numUrls(); page++) {
+					int[] values = links.get(page);
+					int n = links.size(page);
+					for (int i = 0; i < n; i++) {
+						if (targets.get(values[i])) {
+							referers.computeIfAbsent(url(values[i]), k -> new LinkedHashSet<>()).add(url(page));
+						}
+					}
+				}
+			}
+			return referers;
+		}
+	}
+
+	private class Validators extends AbstractMap<URI, String> {
+		@Override
+		public String get(Object key) {
+			synchronized (IdStore.this) {
+				return validators.get(find(key));
+			}
+		}
+
+		@Override
+		public boolean containsKey(Object key) {
+			return get(key) != null;
+		}
+
+		@Override
+		public String put(URI key, String value) {
+			synchronized (IdStore.this) {
+				int id = intern(key);
+				validatorsChanged(id, value);
+				return validators.put(id, value);
+			}
+		}
+
+		@Override
+		public String remove(Object key) {
+			synchronized (IdStore.this) {
+				int id = find(key);
+				String removed = validators.remove(id);
+				if (removed != null) {
+					validatorsChanged(id, null);
+				}
+				return removed;
+			}
+		}
+
+		@Override
+		public int size() {
+			synchronized (IdStore.this) {
+				return validators.size();
+			}
+		}
+
+		@Override
+		public void clear() {
+			synchronized (IdStore.this) {
+				validators.clear();
+				validatorsCleared();
+			}
+		}
+
+		@Override
+		public Set<Entry<URI, String>> entrySet() {
+			List<Entry<URI, String>> entries = new ArrayList<>();
+			synchronized (IdStore.this) {
+				validators.forEach((id, value) -> entries.add(new SimpleImmutableEntry<>(url(id), value)));
+			}
+			return new AbstractSet<>() {
+				@Override
+				public Iterator<Entry<URI, String>> iterator() {
+					return entries.iterator();
+				}
+
+				@Override
+				public int size() {
+					return entries.size();
+				}
+			};
+		}
+	}
+
+	private class InvalidLinkSet extends AbstractSet<String> {
+		private final int id;
+
+		InvalidLinkSet(int id) {
+			this.id = id;
+		}
+
+		@Override
+		public boolean add(String link) {
+			synchronized (IdStore.this) {
+				if (invalidLinks.computeIfAbsent(id, k -> new LinkedHashSet<>()).add(link)) {
+					invalidLinksChanged(id, link);
+					return true;
+				}
+				return false;
+			}
+		}
+
+		@Override
+		public boolean contains(Object o) {
+			synchronized (IdStore.this) {
+				return invalidLinks.getOrDefault(id, Collections.emptySet()).contains(o);
+			}
+		}
+
+		@Override
+		public int size() {
+			synchronized (IdStore.this) {
+				return invalidLinks.getOrDefault(id, Collections.emptySet()).size();
+			}
+		}
+
+		@Override
+		public Iterator<String> iterator() {
+			synchronized (IdStore.this) {
+				return new ArrayList<>(invalidLinks.getOrDefault(id, Collections.emptySet())).iterator();
+			}
+		}
+	}
+
+	private class InvalidLinks extends AbstractMap<URI, Set<String>> {
+		/**
+		 * The set is created if it doesn't exist, so callers can add to it. Urls count as a key once they have links.
+		 */
+		@Override
+		public Set<String> get(Object key) {
+			if (!(key instanceof URI)) {
+				return null;
+			}
+			synchronized (IdStore.this) {
+				return new InvalidLinkSet(intern((URI)key));
+			}
+		}
+
+		@Override
+		public boolean containsKey(Object key) {
+			synchronized (IdStore.this) {
+				return invalidLinks.containsKey(find(key));
+			}
+		}
+
+		@Override
+		public Set<String> remove(Object key) {
+			synchronized (IdStore.this) {
+				int id = find(key);
+				Set<String> removed = invalidLinks.remove(id);
+				if (removed != null) {
+					invalidLinksChanged(id, null);
+				}
+				return removed;
+			}
+		}
+
+		@Override
+		public int size() {
+			synchronized (IdStore.this) {
+				return invalidLinks.size();
+			}
+		}
+
+		@Override
+		public void clear() {
+			synchronized (IdStore.this) {
+				invalidLinks.clear();
+				invalidLinksCleared();
+			}
+		}
+
+		@Override
+		public Set<Entry<URI, Set<String>>> entrySet() {
+			List<Entry<URI, Set<String>>> entries = new ArrayList<>();
+			synchronized (IdStore.this) {
+				for (Integer id : invalidLinks.keySet()) {
+					entries.add(new SimpleImmutableEntry<>(url(id), new InvalidLinkSet(id)));
+				}
+			}
+			return new AbstractSet<>() {
+				@Override
+				public Iterator<Entry<URI, Set<String>>> iterator() {
+					return entries.iterator();
+				}
+
+				@Override
+				public int size() {
+					return entries.size();
+				}
+			};
+		}
+	}
+
+	/**
+	 * For stores that restore their invalid links from storage.
+	 */
+	void restoreInvalidLink(int id, String link) {
+		if (link == null) {
+			invalidLinks.remove(id);
+		} else {
+			invalidLinks.computeIfAbsent(id, k -> new LinkedHashSet<>()).add(link);
+		}
+	}
+
+	void restoreInvalidLinksCleared() {
+		invalidLinks.clear();
+	}
+
+	/**
+	 * For stores that restore their validators from storage.
+	 */
+	void restoreValidators(int id, String value) {
+		if (value == null) {
+			validators.remove(id);
+		} else {
+			validators.put(id, value);
+		}
+	}
+}
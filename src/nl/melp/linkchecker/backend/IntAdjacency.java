@@ -0,0 +1,114 @@
+package nl.melp.linkchecker.backend;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Lists of int ids per int id, e.g. the links of every page. Appending doesn't search the list; duplicates are removed
+ * when a list is read. Adding does search, so it can tell whether the value is new.
+ *
+ * Not thread safe; callers synchronize.
+ */
+class IntAdjacency {
+	private static final int[] EMPTY = new int[0];
+
+	private int[][] lists = new int[0][];
+	private int[] sizes = new int[0];
+	// ids whose list may be out of order or contain duplicates
+	private final BitSet unsorted = new BitSet();
+	private int numKeys = 0;
+
+	/**
+	 * @return Whether the value wasn't in the list yet.
+	 */
+	boolean add(int id, int value) {
+		if (contains(id, value)) {
+			return false;
+		}
+		append(id, value);
+		return true;
+	}
+
+	void append(int id, int value) {
+		ensureCapacity(id);
+
+		int n = sizes[id];
+		int[] values = lists[id];
+		if (n > 0 && values[n - 1] == value) {
+			return;
+		}
+		if (values == null) {
+			values = lists[id] = new int[2];
+			numKeys++;
+		} else if (n == values.length) {
+			values = lists[id] = Arrays.copyOf(values, n + (n >> 1) + 1);
+		}
+		if (n > 0 && values[n - 1] > value) {
+			unsorted.set(id);
+		}
+		values[n] = value;
+		sizes[id] = n + 1;
+	}
+
+	/**
+	 * @return The sorted, distinct values for the id; only the first size(id) elements are valid.
+	 */
+	int[] get(int id) {
+		if (id >= lists.length || lists[id] == null) {
+			return EMPTY;
+		}
+		if (unsorted.get(id)) {
+			int[] values = lists[id];
+			Arrays.sort(values, 0, sizes[id]);
+			int n = 0;
+			for (int i = 0; i < sizes[id]; i++) {
+				if (n == 0 || values[n - 1] != values[i]) {
+					values[n++] = values[i];
+				}
+			}
+			sizes[id] = n;
+			unsorted.clear(id);
+		}
+		return lists[id];
+	}
+
+	int size(int id) {
+		get(id);
+		return id < sizes.length ? sizes[id] : 0;
+	}
+
+	boolean contains(int id, int value) {
+		return Arrays.binarySearch(get(id), 0, size(id), value) >= 0;
+	}
+
+	/**
+	 * The number of ids that have a list.
+	 */
+	int numKeys() {
+		return numKeys;
+	}
+
+	void remove(int id) {
+		if (id < lists.length && lists[id] != null) {
+			lists[id] = null;
+			sizes[id] = 0;
+			unsorted.clear(id);
+			numKeys--;
+		}
+	}
+
+	void clear() {
+		lists = new int[0][];
+		sizes = new int[0];
+		unsorted.clear();
+		numKeys = 0;
+	}
+
+	private void ensureCapacity(int id) {
+		if (id >= lists.length) {
+			int capacity = Math.max(1024, Integer.highestOneBit(id) * 2);
+			lists = Arrays.copyOf(lists, capacity);
+			sizes = Arrays.copyOf(sizes, capacity);
+		}
+	}
+}
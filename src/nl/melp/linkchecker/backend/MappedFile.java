@@ -0,0 +1,101 @@
+package nl.melp.linkchecker.backend;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A file that is memory mapped as a whole and grows by remapping it at twice the size. Mappings are limited to 2GB.
+ *
+ * Not thread safe; callers synchronize.
+ */
+class MappedFile implements Closeable {
+	private final FileChannel channel;
+	private MappedByteBuffer buffer;
+
+	MappedFile(Path path, int initialSize) throws IOException {
+		channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(initialSize, channel.size()));
+	}
+
+	void ensureCapacity(long size) {
+		if (size <= buffer.capacity()) {
+			return;
+		}
+		if (size > Integer.MAX_VALUE) {
+			throw new IllegalStateException("Mapped file can't grow beyond 2GB");
+		}
+		try {
+			buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.min(Integer.MAX_VALUE, Math.max(size, buffer.capacity() * 2L)));
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	int capacity() {
+		return buffer.capacity();
+	}
+
+	int getInt(int position) {
+		return buffer.getInt(position);
+	}
+
+	void putInt(int position, int value) {
+		ensureCapacity(position + 4L);
+		buffer.putInt(position, value);
+	}
+
+	long getLong(int position) {
+		return buffer.getLong(position);
+	}
+
+	void putLong(int position, long value) {
+		ensureCapacity(position + 8L);
+		buffer.putLong(position, value);
+	}
+
+	byte[] get(int position, int length) {
+		byte[] bytes = new byte[length];
+		buffer.get(position, bytes);
+		return bytes;
+	}
+
+	boolean equals(int position, byte[] bytes) {
+		for (int i = 0; i < bytes.length; i++) {
+			if (buffer.get(position + i) != bytes[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	void put(int position, byte[] bytes) {
+		ensureCapacity(position + (long)bytes.length);
+		buffer.put(position, bytes);
+	}
+
+	/**
+	 * Fill a range with zeroes.
+	 */
+	void clear(int position, int length) {
+		ensureCapacity(position + (long)length);
+		byte[] zeroes = new byte[Math.min(length, 65536)];
+		for (int offset = 0; offset < length; offset += zeroes.length) {
+			buffer.put(position + offset, zeroes, 0, Math.min(zeroes.length, length - offset));
+		}
+	}
+
+	void force() {
+		buffer.force();
+	}
+
+	@Override
+	public void close() throws IOException {
+		buffer.force();
+		channel.close();
+	}
+}
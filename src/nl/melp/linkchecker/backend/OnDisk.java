@@ -0,0 +1,666 @@
+package nl.melp.linkchecker.backend;
+
+import nl.melp.linkchecker.Fetcher.Result;
+import nl.melp.linkchecker.RunConfig;
+import nl.melp.linkchecker.Status;
+import org.slf4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A backend that persists to a local directory, so a crawl can be resumed or rechecked without running Redis.
+ *
+ * Urls get an int id like in CompactInMemory. The url strings are appended to urls.dat and found through a hash
+ * index, hash.idx; statuses and the queue are int arrays by id and position. These files are memory mapped, so
+ * opening an existing crawl doesn't read them; pages are loaded as they're used. The links of pages and invalid links
+ * are append only logs. The links are only read when needed, e.g. for a report, a recheck or a page that wasn't
+ * modified. The validators of pages are a log too. The cache of external results is a log of urls and entries,
+ * external.log, which is kept when the rest is reset. sitemap.time holds the time the sitemaps were last read.
+ */
+public class OnDisk extends Status implements Closeable {
+	private static final String[] FILES = {"urls.dat", "ids.idx", "hash.idx", "statuses.idx", "queue.idx", "invalid.log", "links.log", "validators.log", "sitemap.time"};
+	/**
+	 * The referring pages of every url, [int id, int referrer]..., as stored by earlier versions. These are turned
+	 * into links when a directory is opened.
+	 */
+	private static final String LEGACY_REFERRERS = "referrers.log";
+
+	/**
+	 * A map kept in memory and appended to a log. Keys are stored as strings rather than ids, so the log is independent
+	 * of the other files. The log is rewritten when it's opened if most of it is obsolete.
+	 */
+	private static class StringLog extends AbstractMap<URI, String> implements Closeable {
+		private final Path file;
+		private final Map<URI, String> entries = new HashMap<>();
+		private DataOutputStream log;
+
+		StringLog(Path file) throws IOException {
+			this.file = file;
+			int numRecords = 0;
+			if (Files.exists(file)) {
+				try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 65536))) {
+					while (true) {
+						URI key = URI.create(in.readUTF());
+						if (in.readBoolean()) {
+							entries.put(key, in.readUTF());
+						} else {
+							entries.remove(key);
+						}
+						numRecords++;
+					}
+				} catch (EOFException e) {
+					// done
+				}
+			}
+			if (numRecords > entries.size() * 2) {
+				Path compacted = file.resolveSibling(file.getFileName() + ".tmp");
+				try (DataOutputStream out = open(compacted, false)) {
+					for (Entry<URI, String> entry : entries.entrySet()) {
+						write(out, entry.getKey(), entry.getValue());
+					}
+				}
+				Files.move(compacted, file, StandardCopyOption.REPLACE_EXISTING);
+			}
+			log = open(file, true);
+		}
+
+		private static DataOutputStream open(Path file, boolean append) throws IOException {
+			return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file.toFile(), append), 65536));
+		}
+
+		private static void write(DataOutputStream out, URI key, String value) throws IOException {
+			out.writeUTF(key.toString());
+			out.writeBoolean(value != null);
+			if (value != null) {
+				out.writeUTF(value);
+			}
+		}
+
+		@Override
+		public synchronized String get(Object key) {
+			return entries.get(key);
+		}
+
+		@Override
+		public synchronized String put(URI key, String value) {
+			try {
+				write(log, key, value);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			return entries.put(key, value);
+		}
+
+		@Override
+		public synchronized String remove(Object key) {
+			String removed = entries.remove(key);
+			if (removed != null) {
+				try {
+					write(log, (URI)key, null);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+			return removed;
+		}
+
+		@Override
+		public synchronized int size() {
+			return entries.size();
+		}
+
+		@Override
+		public synchronized void clear() {
+			entries.clear();
+			try {
+				log.close();
+				log = open(file, false);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		@Override
+		public synchronized Set<Entry<URI, String>> entrySet() {
+			return new HashMap<>(entries).entrySet();
+		}
+
+		synchronized void flush() throws IOException {
+			log.flush();
+		}
+
+		@Override
+		public synchronized void close() throws IOException {
+			log.close();
+		}
+	}
+
+	private static class Store extends IdStore implements Closeable {
+		private static final int EMPTY = 0;
+		private static final int ID_SIZE = 12;
+
+		private final Path directory;
+		private final FileChannel lockChannel;
+		private final FileLock lock;
+
+		// [long end] [int length, bytes]...
+		private final MappedFile urls;
+		// [int numUrls, int unused] [long offset, int hash]...
+		private final MappedFile ids;
+		// [int capacity] [int id + 1]...
+		private final MappedFile hashes;
+		// [int numStatuses] [int status ^ NO_STATUS]..., so the zeroes of a new region read as NO_STATUS
+		private final MappedFile statuses;
+		// [int size] [int id]...
+		private final MappedFile queue;
+		private final BitSet queued = new BitSet();
+
+		private DataOutputStream invalidLog;
+		// [int id, int link]..., where a link of -1 removes the links of the id
+		private DataOutputStream linkLog;
+		private IntAdjacency links;
+		private DataOutputStream validatorLog;
+		private final StringLog externalResults;
+
+		Store(Path directory, boolean reset) throws IOException {
+			this.directory = directory;
+			Files.createDirectories(directory);
+
+			lockChannel = FileChannel.open(directory.resolve("lock"), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+			FileLock lock;
+			try {
+				lock = lockChannel.tryLock();
+			} catch (OverlappingFileLockException e) {
+				lock = null;
+			}
+			this.lock = lock;
+			if (lock == null) {
+				lockChannel.close();
+				throw new IllegalStateException("The data directory " + directory + " is in use by another process");
+			}
+
+			if (reset) {
+				for (String file : FILES) {
+					Files.deleteIfExists(directory.resolve(file));
+				}
+				Files.deleteIfExists(directory.resolve(LEGACY_REFERRERS));
+			}
+
+			urls = new MappedFile(directory.resolve("urls.dat"), 1 << 20);
+			if (urls.getLong(0) == 0) {
+				urls.putLong(0, 8);
+			}
+			ids = new MappedFile(directory.resolve("ids.idx"), 8 + 1024 * ID_SIZE);
+			hashes = new MappedFile(directory.resolve("hash.idx"), 4 + 2048 * 4);
+			if (hashes.getInt(0) == 0) {
+				hashes.putInt(0, 2048);
+			}
+			statuses = new MappedFile(directory.resolve("statuses.idx"), 4 + 1024 * 4);
+			queue = new MappedFile(directory.resolve("queue.idx"), 4 + 1024 * 4);
+			for (int i = 0; i < queueSize(); i++) {
+				queued.set(queued(i));
+			}
+
+			loadInvalidLinks();
+			loadValidators();
+			invalidLog = append("invalid.log");
+			compactLinks();
+			linkLog = append("links.log");
+			validatorLog = append("validators.log");
+			externalResults = new StringLog(directory.resolve("external.log"));
+			convertLegacyReferrers();
+		}
+
+		/**
+		 * Appends the referrers of an earlier version to the links, before a --recheck needs them. Links that were
+		 * already stored for a page are added once more, which is harmless, so this can be run again if it's
+		 * interrupted before the old file is removed.
+		 */
+		private void convertLegacyReferrers() throws IOException {
+			Path file = directory.resolve(LEGACY_REFERRERS);
+			if (!Files.exists(file)) {
+				return;
+			}
+			try (DataInputStream in = read(LEGACY_REFERRERS)) {
+				while (true) {
+					int id = in.readInt();
+					writeLink(in.readInt(), id);
+				}
+			} catch (EOFException e) {
+				// done
+			}
+			linkLog.flush();
+			Files.delete(file);
+		}
+
+		/**
+		 * Every fetch of a page writes its links again, so like a StringLog the link log is rewritten if most of it is
+		 * obsolete. The links aren't kept, so they're only held in memory once they're needed.
+		 */
+		private void compactLinks() throws IOException {
+			Path file = directory.resolve("links.log");
+			if (!Files.exists(file)) {
+				return;
+			}
+			IntAdjacency loaded = readLinks();
+			long numRecords = Files.size(file) / 8;
+			long numLinks = 0;
+			for (int id = 0; id < numUrls(); id++) {
+				numLinks += loaded.size(id);
+			}
+			if (numRecords > numLinks * 2) {
+				Path compacted = directory.resolve("links.log.tmp");
+				try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(compacted), 65536))) {
+					for (int id = 0; id < numUrls(); id++) {
+						int[] values = loaded.get(id);
+						for (int i = 0; i < loaded.size(id); i++) {
+							out.writeInt(id);
+							out.writeInt(values[i]);
+						}
+					}
+				}
+				Files.move(compacted, file, StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+
+		private IntAdjacency readLinks() throws IOException {
+			IntAdjacency loaded = new IntAdjacency();
+			try (DataInputStream in = read("links.log")) {
+				while (true) {
+					int id = in.readInt();
+					int link = in.readInt();
+					if (link < 0) {
+						loaded.remove(id);
+					} else {
+						loaded.append(id, link);
+					}
+				}
+			} catch (EOFException e) {
+				// done
+			}
+			return loaded;
+		}
+
+		private DataOutputStream append(String file) throws IOException {
+			return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(directory.resolve(file).toFile(), true), 65536));
+		}
+
+		private DataInputStream read(String file) throws IOException {
+			return new DataInputStream(new BufferedInputStream(Files.newInputStream(directory.resolve(file)), 65536));
+		}
+
+		@Override
+		int find(Object url) {
+			if (!(url instanceof URI)) {
+				return -1;
+			}
+			return find(url.toString().getBytes(StandardCharsets.UTF_8), hash(url.toString()), false);
+		}
+
+		@Override
+		int intern(URI url) {
+			return find(url.toString().getBytes(StandardCharsets.UTF_8), hash(url.toString()), true);
+		}
+
+		private int find(byte[] url, int hash, boolean add) {
+			int capacity = hashes.getInt(0);
+			int mask = capacity - 1;
+			for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+				int id = hashes.getInt(4 + slot * 4) - 1;
+				if (id < 0 || id >= numUrls()) {
+					// empty, or written by an add that didn't complete
+					return add ? add(slot, url, hash) : -1;
+				}
+				if (ids.getInt(8 + id * ID_SIZE + 8) == hash && equals(id, url)) {
+					return id;
+				}
+			}
+		}
+
+		private boolean equals(int id, byte[] url) {
+			int offset = (int)ids.getLong(8 + id * ID_SIZE);
+			return urls.getInt(offset) == url.length && urls.equals(offset + 4, url);
+		}
+
+		private int add(int slot, byte[] url, int hash) {
+			int id = numUrls();
+
+			int offset = (int)urls.getLong(0);
+			urls.putInt(offset, url.length);
+			urls.put(offset + 4, url);
+			urls.putLong(0, offset + 4 + url.length);
+
+			ids.putLong(8 + id * ID_SIZE, offset);
+			ids.putInt(8 + id * ID_SIZE + 8, hash);
+			hashes.putInt(4 + slot * 4, id + 1);
+			ids.putInt(0, id + 1);
+
+			if ((id + 1) * 2 > hashes.getInt(0)) {
+				rehash(hashes.getInt(0) * 2);
+			}
+			return id;
+		}
+
+		private void rehash(int capacity) {
+			int[] table = new int[capacity];
+			int mask = capacity - 1;
+			for (int id = 0; id < numUrls(); id++) {
+				int slot = ids.getInt(8 + id * ID_SIZE + 8) & mask;
+				while (table[slot] != EMPTY) {
+					slot = (slot + 1) & mask;
+				}
+				table[slot] = id + 1;
+			}
+			hashes.ensureCapacity(4 + capacity * 4L);
+			for (int slot = 0; slot < capacity; slot++) {
+				hashes.putInt(4 + slot * 4, table[slot]);
+			}
+			hashes.putInt(0, capacity);
+		}
+
+		private static int hash(String url) {
+			int h = url.hashCode();
+			return h ^ (h >>> 16);
+		}
+
+		@Override
+		URI url(int id) {
+			int offset = (int)ids.getLong(8 + id * ID_SIZE);
+			return URI.create(new String(urls.get(offset + 4, urls.getInt(offset)), StandardCharsets.UTF_8));
+		}
+
+		@Override
+		int numUrls() {
+			return ids.getInt(0);
+		}
+
+		@Override
+		int getStatus(int id) {
+			return 4 + id * 4 + 4 > statuses.capacity() ? NO_STATUS : statuses.getInt(4 + id * 4) ^ NO_STATUS;
+		}
+
+		@Override
+		int putStatus(int id, int status) {
+			int previous = getStatus(id);
+			statuses.putInt(4 + id * 4, status ^ NO_STATUS);
+			if (previous == NO_STATUS && status != NO_STATUS) {
+				statuses.putInt(0, numStatuses() + 1);
+			} else if (previous != NO_STATUS && status == NO_STATUS) {
+				statuses.putInt(0, numStatuses() - 1);
+			}
+			return previous;
+		}
+
+		@Override
+		int numStatuses() {
+			return statuses.getInt(0);
+		}
+
+		@Override
+		void clearStatuses() {
+			statuses.clear(0, 4 + numUrls() * 4);
+		}
+
+		@Override
+		boolean isQueued(int id) {
+			return queued.get(id);
+		}
+
+		@Override
+		boolean enqueue(int id) {
+			if (queued.get(id)) {
+				return false;
+			}
+			queued.set(id);
+			int size = queueSize();
+			queue.putInt(4 + size * 4, id);
+			queue.putInt(0, size + 1);
+			return true;
+		}
+
+		@Override
+		int queueSize() {
+			return queue.getInt(0);
+		}
+
+		@Override
+		int queued(int index) {
+			return queue.getInt(4 + index * 4);
+		}
+
+		@Override
+		void clearQueue() {
+			queue.putInt(0, 0);
+			queued.clear();
+		}
+
+		@Override
+		void appendLink(int id, int link) {
+			writeLink(id, link);
+			if (links != null) {
+				links.append(id, link);
+			}
+		}
+
+		@Override
+		IntAdjacency links() {
+			if (links == null) {
+				try {
+					linkLog.flush();
+					links = readLinks();
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+			return links;
+		}
+
+		@Override
+		void removeLinks(int id) {
+			writeLink(id, -1);
+			if (links != null) {
+				links.remove(id);
+			}
+		}
+
+		private void writeLink(int id, int link) {
+			try {
+				linkLog.writeInt(id);
+				linkLog.writeInt(link);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		@Override
+		void clearLinks() {
+			try {
+				linkLog.close();
+				Files.deleteIfExists(directory.resolve("links.log"));
+				linkLog = append("links.log");
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			links = new IntAdjacency();
+		}
+
+		@Override
+		void validatorsChanged(int id, String value) {
+			try {
+				validatorLog.writeInt(id);
+				validatorLog.writeBoolean(value != null);
+				if (value != null) {
+					validatorLog.writeUTF(value);
+				}
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		@Override
+		void validatorsCleared() {
+			try {
+				validatorLog.close();
+				Files.deleteIfExists(directory.resolve("validators.log"));
+				validatorLog = append("validators.log");
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		private void loadValidators() throws IOException {
+			if (!Files.exists(directory.resolve("validators.log"))) {
+				return;
+			}
+			try (DataInputStream in = read("validators.log")) {
+				while (true) {
+					int id = in.readInt();
+					restoreValidators(id, in.readBoolean() ? in.readUTF() : null);
+				}
+			} catch (EOFException e) {
+				// done
+			}
+		}
+
+		@Override
+		void invalidLinksChanged(int id, String link) {
+			try {
+				invalidLog.writeInt(id);
+				invalidLog.writeBoolean(link != null);
+				if (link != null) {
+					invalidLog.writeUTF(link);
+				}
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		@Override
+		void invalidLinksCleared() {
+			try {
+				invalidLog.close();
+				Files.deleteIfExists(directory.resolve("invalid.log"));
+				invalidLog = append("invalid.log");
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		private void loadInvalidLinks() throws IOException {
+			if (!Files.exists(directory.resolve("invalid.log"))) {
+				return;
+			}
+			try (DataInputStream in = read("invalid.log")) {
+				while (true) {
+					int id = in.readInt();
+					restoreInvalidLink(id, in.readBoolean() ? in.readUTF() : null);
+				}
+			} catch (EOFException e) {
+				// done
+			}
+		}
+
+		void flush() throws IOException {
+			invalidLog.flush();
+			linkLog.flush();
+			validatorLog.flush();
+			externalResults.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			invalidLog.close();
+			linkLog.close();
+			validatorLog.close();
+			externalResults.close();
+			for (MappedFile file : new MappedFile[] {urls, ids, hashes, statuses, queue}) {
+				file.close();
+			}
+			lock.release();
+			lockChannel.close();
+		}
+	}
+
+	private final Store store;
+
+	public OnDisk(Logger logger, RunConfig config, Path directory) throws IOException {
+		this(logger, config, new Store(directory, config.hasFlag("reset")));
+	}
+
+	private OnDisk(Logger logger, RunConfig config, Store store) {
+		super(logger, config, store.statusMap(), store.queueSet(), store.invalidLinkMap(), store.validatorMap(), store.outlinkMap(), store.externalResults);
+		this.store = store;
+	}
+
+	@Override
+	public Map<URI, Set<URI>> getReferers(Set<URI> urls) {
+		// also used while constructing, before the store is set
+		return ((IdStore.Outlinks)outlinks).referers(urls);
+	}
+
+	@Override
+	public long getSitemapReadMs() {
+		Path file = store.directory.resolve("sitemap.time");
+		try {
+			return Files.exists(file) ? Long.parseLong(Files.readString(file).trim()) : 0;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	@Override
+	public void setSitemapReadMs(long sitemapReadMs) {
+		try {
+			Files.writeString(store.directory.resolve("sitemap.time"), Long.toString(sitemapReadMs));
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	@Override
+	public void add(Result fetched) {
+		synchronized (store) {
+			super.add(fetched);
+		}
+	}
+
+	@Override
+	public void flush() {
+		synchronized (store) {
+			try {
+				store.flush();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		synchronized (store) {
+			store.close();
+		}
+	}
+}
@@ -1,5 +1,7 @@
 package nl.melp.linkchecker.backend;
 
+import nl.melp.linkchecker.Fetcher.Result;
+import nl.melp.linkchecker.Fetcher.Validators;
 import nl.melp.linkchecker.LinkChecker;
 import nl.melp.linkchecker.RunConfig;
 import nl.melp.linkchecker.Status;
@@ -10,7 +12,19 @@ import nl.melp.redis.collections.SerializedSortedSet;
 import nl.melp.redis.collections.Serializers;
 import org.slf4j.Logger;
 
+import java.io.IOException;
 import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
 
 public class Redis extends Status {
 	private static class URISerializer implements ISerializer<URI> {
@@ -27,20 +41,604 @@ public class Redis extends Status {
 		}
 	}
 
+	/**
+	 * The collections' string serializer can't read a missing hash field, which get() of an unknown key returns.
+	 */
+	private static class NullableStringSerializer implements ISerializer<String> {
+		ISerializer<String> innerSerializer = Serializers.of(String.class);
+
+		@Override
+		public byte[] serialize(String value) {
+			return innerSerializer.serialize(value);
+		}
+
+		@Override
+		public String deserialize(byte[] bytes) {
+			return bytes == null ? null : innerSerializer.deserialize(bytes);
+		}
+	}
+
+	/**
+	 * The links of every page as one hash field of newline separated urls, in stead of a set per page, so storing the
+	 * links of a page is one write. The links of a page that has none aren't stored.
+	 */
+	private static class OutlinkLists extends AbstractMap<URI, Set<URI>> {
+		private final nl.melp.redis.Redis redis;
+		private final String key;
+		private final SerializedHashMap<URI, String> lists;
+
+		OutlinkLists(nl.melp.redis.Redis redis, String key) {
+			this.redis = redis;
+			this.key = key;
+			this.lists = new SerializedHashMap<>(uriSerializer, new NullableStringSerializer(), redis, key);
+		}
+
+		static String encode(Set<URI> links) {
+			return links.stream().map(URI::toString).collect(Collectors.joining("\n"));
+		}
+
+		static Set<URI> decode(String list) {
+			Set<URI> links = new LinkedHashSet<>();
+			for (String link : list.split("\n")) {
+				links.add(URI.create(link));
+			}
+			return links;
+		}
+
+		/**
+		 * Like the collections' sets, an empty set is returned for a page without links.
+		 */
+		@Override
+		public Set<URI> get(Object key) {
+			String list = key instanceof URI ? lists.get(key) : null;
+			return list == null ? Collections.emptySet() : decode(list);
+		}
+
+		@Override
+		public Set<URI> put(URI key, Set<URI> links) {
+			if (links.isEmpty()) {
+				return remove(key);
+			}
+			String previous = lists.put(key, encode(links));
+			return previous == null ? null : decode(previous);
+		}
+
+		@Override
+		public Set<URI> remove(Object key) {
+			String previous = lists.remove(key);
+			return previous == null ? null : decode(previous);
+		}
+
+		@Override
+		public int size() {
+			return lists.size();
+		}
+
+		@Override
+		public void clear() {
+			lists.clear();
+		}
+
+		@Override
+		public void forEach(BiConsumer<? super URI, ? super Set<URI>> action) {
+			scan(redis, "HSCAN", key, fields -> {
+				for (int i = 0; i + 1 < fields.size(); i += 2) {
+					action.accept(uriSerializer.deserialize(fields.get(i)), decode(new String(fields.get(i + 1))));
+				}
+			});
+		}
+
+		/**
+		 * Reads all links at once; forEach() reads them a page at a time.
+		 */
+		@Override
+		public Set<Entry<URI, Set<URI>>> entrySet() {
+			Set<Entry<URI, Set<URI>>> entries = new LinkedHashSet<>();
+			forEach((page, links) -> entries.add(new SimpleImmutableEntry<>(page, links)));
+			return entries;
+		}
+	}
+
+	/**
+	 * Buffers the writes of Status.add() and applies them in a single round trip.
+	 *
+	 * The client's Pipeline only accepts string arguments, whereas statuses are stored as serialized integers,
+	 * so the buffered operations are sent as the arguments of one EVAL call. The key layout is the same as
+	 * the one used by the SerializedHashMap, SerializedSortedSet and SerializedMappedSet collections.
+	 */
+	private static class WriteBatch {
+		private static final String SCRIPT = String.join("\n",
+			"local i = 1",
+			"while i <= #ARGV do",
+			"  local op = ARGV[i]",
+			"  if op == 'S' then",
+			"    redis.call('HSET', KEYS[1], ARGV[i + 1], ARGV[i + 2])",
+			"  elseif op == 'Q' then",
+			"    if redis.call('HEXISTS', KEYS[1], ARGV[i + 1]) == 0 then",
+			"      redis.call('ZADD', KEYS[2], 'NX', ARGV[i + 2], ARGV[i + 1])",
+			"    end",
+			"  elseif op == 'P' then",
+			"    if redis.call('HEXISTS', KEYS[1], ARGV[i + 1]) == 0 and redis.call('ZADD', KEYS[2], 'NX', ARGV[i + 2], ARGV[i + 1]) == 1 then",
+			"      redis.call('RPUSH', KEYS[4], ARGV[i + 1])",
+			"    end",
+			"  elseif op == 'D' then",
+			"    if redis.call('HGET', KEYS[6], ARGV[i + 1]) == ARGV[i + 2] then",
+			"      redis.call('ZREM', KEYS[5], ARGV[i + 1])",
+			"      redis.call('HDEL', KEYS[6], ARGV[i + 1])",
+			"    end",
+			"  elseif op == 'I' then",
+			"    redis.call('SADD', KEYS[3] .. ':_keys', ARGV[i + 1])",
+			"    redis.call('SADD', KEYS[3] .. ':' .. ARGV[i + 1], ARGV[i + 2])",
+			"  elseif op == 'C' then",
+			"    redis.call('SREM', KEYS[3] .. ':_keys', ARGV[i + 1])",
+			"    redis.call('DEL', KEYS[3] .. ':' .. ARGV[i + 1])",
+			"  elseif op == 'V' then",
+			"    redis.call('HSET', KEYS[7], ARGV[i + 1], ARGV[i + 2])",
+			"  elseif op == 'X' then",
+			"    redis.call('HDEL', KEYS[7], ARGV[i + 1])",
+			"  elseif op == 'L' then",
+			"    if ARGV[i + 2] == '' then",
+			"      redis.call('HDEL', KEYS[8], ARGV[i + 1])",
+			"    else",
+			"      redis.call('HSET', KEYS[8], ARGV[i + 1], ARGV[i + 2])",
+			"    end",
+			"  elseif op == 'E' then",
+			"    redis.call('HSET', KEYS[9], ARGV[i + 1], ARGV[i + 2])",
+			"  elseif op == 'U' then",
+			"    if redis.call('HDEL', KEYS[1], ARGV[i + 1]) == 1 then",
+			"      redis.call('ZREM', KEYS[2], ARGV[i + 1])",
+			"    end",
+			"  end",
+			"  i = i + 3",
+			"end",
+			"return #ARGV / 3"
+		);
+
+		private final nl.melp.redis.Redis redis;
+		private final List<Object> args = new ArrayList<>();
+		private int numOperations = 0;
+
+		WriteBatch(nl.melp.redis.Redis redis) {
+			this.redis = redis;
+		}
+
+		void setStatus(URI uri, int statusCode) {
+			append("S", uri.toString(), integerSerializer.serialize(statusCode));
+		}
+
+		void enqueue(URI uri) {
+			append("Q", uri.toString(), Long.toString(System.nanoTime()));
+		}
+
+		/**
+		 * Enqueue the url and, if it's new, add it to the list that workers claim urls from.
+		 */
+		void push(URI uri) {
+			append("P", uri.toString(), Long.toString(System.nanoTime()));
+		}
+
+		/**
+		 * Remove the lease on the url, if the worker still holds it.
+		 */
+		void release(URI uri, String worker) {
+			append("D", uri.toString(), worker);
+		}
+
+		void addInvalidUrl(URI uri, String link) {
+			append("I", uri.toString(), link);
+		}
+
+		void clearInvalidUrls(URI uri) {
+			append("C", uri.toString(), "");
+		}
+
+		void setValidators(URI uri, String validators) {
+			append("V", uri.toString(), validators);
+		}
+
+		/**
+		 * Replace the links of the url, or remove them if there are none.
+		 */
+		void setOutlinks(URI uri, Set<URI> links) {
+			append("L", uri.toString(), OutlinkLists.encode(links));
+		}
+
+		void cacheResult(URI uri, String entry) {
+			append("E", uri.toString(), entry);
+		}
+
+		void clearValidators(URI uri) {
+			append("X", uri.toString(), "");
+		}
+
+		/**
+		 * Forget the status of the url, so it's queued again by a following enqueue or push.
+		 */
+		void clearStatus(URI uri) {
+			append("U", uri.toString(), "");
+		}
+
+		int size() {
+			return numOperations;
+		}
+
+		void flush() throws IOException {
+			if (numOperations == 0) {
+				return;
+			}
+
+			List<Object> command = new ArrayList<>(args.size() + 12);
+			command.add("EVAL");
+			command.add(SCRIPT);
+			command.add("9");
+			command.add(prefixKeyName("statuses"));
+			command.add(prefixKeyName("urls"));
+			command.add(prefixKeyName("invalidUrls"));
+			command.add(prefixKeyName("pending"));
+			command.add(prefixKeyName("leases"));
+			command.add(prefixKeyName("leaseOwners"));
+			command.add(prefixKeyName("validators"));
+			command.add(prefixKeyName("outlinks"));
+			command.add(prefixKeyName("externalResults"));
+			command.addAll(args);
+
+			synchronized (redis) {
+				redis.call(command.toArray());
+			}
+			args.clear();
+			numOperations = 0;
+		}
+
+		private void append(String op, String key, Object value) {
+			args.add(op);
+			args.add(key);
+			args.add(value);
+			numOperations++;
+		}
+	}
+
 	private static final URISerializer uriSerializer = new URISerializer();
+	private static final ISerializer<Integer> integerSerializer = Serializers.of(Integer.class);
+
+	private static final int SCAN_COUNT = 1000;
+
+	private final nl.melp.redis.Redis redis;
+	private final RunConfig config;
+	private final WriteBatch batch;
+	private long lastFlush = System.currentTimeMillis();
+	private final String worker;
+	private final List<URI> released = new ArrayList<>();
 
 	public Redis(nl.melp.redis.Redis redis, Logger logger, RunConfig config) {
+		this(redis, logger, config, null);
+		try {
+			// the claimable urls of a distributed crawl are stale as soon as another kind of run changes the data
+			redis.call("DEL", prefixKeyName("pending"), prefixKeyName("leases"), prefixKeyName("leaseOwners"), prefixKeyName("seeded"));
+		} catch (IOException e) {
+			throw new RuntimeException("Error resetting the distributed queue", e);
+		}
+	}
+
+	/**
+	 * @param worker The id of the worker that claims urls from the shared queue, or null if the queue isn't used.
+	 */
+	protected Redis(nl.melp.redis.Redis redis, Logger logger, RunConfig config, String worker) {
 		super(
 			logger,
 			config,
-			new SerializedHashMap<>(uriSerializer, Serializers.of(Integer.class), redis, prefixKeyName("statuses")),
+			new SerializedHashMap<>(uriSerializer, integerSerializer, redis, prefixKeyName("statuses")),
 			new SerializedSortedSet<>(uriSerializer, redis, prefixKeyName("urls")),
-			new SerializedMappedSet<>(uriSerializer, uriSerializer, redis, prefixKeyName("reverseLinks")),
-			new SerializedMappedSet<>(uriSerializer, Serializers.of(String.class), redis, prefixKeyName("invalidUrls"))
+			new SerializedMappedSet<>(uriSerializer, Serializers.of(String.class), redis, prefixKeyName("invalidUrls")),
+			new SerializedHashMap<>(uriSerializer, new NullableStringSerializer(), redis, prefixKeyName("validators")),
+			new OutlinkLists(convertLegacyLinks(redis), prefixKeyName("outlinks")),
+			new SerializedHashMap<>(uriSerializer, new NullableStringSerializer(), redis, prefixKeyName("externalResults"))
 		);
+		this.redis = redis;
+		this.config = config;
+		this.worker = worker;
+		// the queue is only kept up to date by the batch, so a worker always uses one, be it of one write
+		this.batch = config.getRedisBatchSize() > 1 || worker != null ? new WriteBatch(redis) : null;
+		if (config.hasFlag("reset")) {
+			try {
+				redis.call("DEL", prefixKeyName("sitemapRead"));
+			} catch (IOException e) {
+				throw new RuntimeException("Error resetting the time the sitemaps were read", e);
+			}
+		}
+	}
+
+	/**
+	 * Adds the members of a set of an earlier version to the link sets per page that are being converted: with 'R',
+	 * the members are the pages that refer to the url, with 'O', the links of the page.
+	 */
+	private static final String COLLECT_LEGACY_LINKS = String.join("\n",
+		"for _, member in ipairs(redis.call('SMEMBERS', KEYS[1])) do",
+		"  local page = ARGV[3] == 'R' and member or ARGV[2]",
+		"  redis.call('SADD', ARGV[1] .. ':' .. page, ARGV[3] == 'R' and ARGV[2] or member)",
+		"  redis.call('SADD', ARGV[1] .. ':_keys', page)",
+		"end",
+		"redis.call('DEL', KEYS[1])"
+	);
+
+	private static final String STORE_LEGACY_LINKS = String.join("\n",
+		"local links = redis.call('SMEMBERS', ARGV[1] .. ':' .. ARGV[2])",
+		"if #links > 0 then",
+		"  redis.call('HSET', KEYS[1], ARGV[2], table.concat(links, '\\n'))",
+		"end",
+		"redis.call('DEL', ARGV[1] .. ':' .. ARGV[2])"
+	);
+
+	/**
+	 * Earlier versions stored the referring pages of every url as a set per url, and the links of revalidatable pages
+	 * as a set per page. These are turned into the links per page, a page of sets at a time, so the conversion can be
+	 * run again if it's interrupted. This has to happen before the Status constructor uses the links for a --recheck,
+	 * so it's called from the arguments to super().
+	 *
+	 * @return The connection, to pass it on.
+	 */
+	private static nl.melp.redis.Redis convertLegacyLinks(nl.melp.redis.Redis redis) {
+		String converting = prefixKeyName("legacyLinks");
+		try {
+			synchronized (redis) {
+				if (redis.<Long>call("EXISTS", prefixKeyName("reverseLinks") + ":_keys", prefixKeyName("outlinks") + ":_keys", converting + ":_keys") == 0) {
+					return redis;
+				}
+			}
+			String collect;
+			String store;
+			synchronized (redis) {
+				collect = new String(redis.<byte[]>call("SCRIPT", "LOAD", COLLECT_LEGACY_LINKS));
+				store = new String(redis.<byte[]>call("SCRIPT", "LOAD", STORE_LEGACY_LINKS));
+			}
+			for (String name : new String[] {"reverseLinks", "outlinks"}) {
+				String keys = prefixKeyName(name) + ":_keys";
+				scan(redis, "SSCAN", keys, members -> {
+					synchronized (redis) {
+						try {
+							nl.melp.redis.Redis.Pipeline pipeline = redis.pipeline();
+							for (byte[] member : members) {
+								String url = new String(member);
+								pipeline.call("EVALSHA", collect, "1", prefixKeyName(name) + ":" + url, converting, url, name.equals("reverseLinks") ? "R" : "O");
+							}
+							pipeline.read();
+						} catch (IOException e) {
+							throw new RuntimeException("Error converting " + name, e);
+						}
+					}
+				});
+				synchronized (redis) {
+					redis.call("DEL", keys);
+				}
+			}
+			scan(redis, "SSCAN", converting + ":_keys", pages -> {
+				synchronized (redis) {
+					try {
+						nl.melp.redis.Redis.Pipeline pipeline = redis.pipeline();
+						for (byte[] page : pages) {
+							pipeline.call("EVALSHA", store, "1", prefixKeyName("outlinks"), converting, new String(page));
+						}
+						pipeline.read();
+					} catch (IOException e) {
+						throw new RuntimeException("Error converting the links", e);
+					}
+				}
+			});
+			synchronized (redis) {
+				redis.call("DEL", converting + ":_keys");
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("Error converting the links", e);
+		}
+		return redis;
 	}
 
 	public static String prefixKeyName(String s) {
 		return String.format("%s.%s", LinkChecker.class.getCanonicalName(), s);
 	}
+
+	@Override
+	public Validators getValidators(URI url) {
+		synchronized (redis) {
+			return super.getValidators(url);
+		}
+	}
+
+	@Override
+	public Integer getCachedStatus(URI url) {
+		synchronized (redis) {
+			return super.getCachedStatus(url);
+		}
+	}
+
+	/**
+	 * Walk the members of a hash or set a page at a time with HSCAN or SSCAN, rather than reading all keys at once and
+	 * then each value in a round trip of its own, like the collections do.
+	 */
+	private static void scan(nl.melp.redis.Redis redis, String command, String key, Consumer<List<byte[]>> page) {
+		String cursor = "0";
+		do {
+			List<Object> reply;
+			synchronized (redis) {
+				try {
+					reply = redis.call(command, key, cursor, "COUNT", Integer.toString(SCAN_COUNT));
+				} catch (IOException e) {
+					throw new RuntimeException("Error scanning " + key, e);
+				}
+			}
+			cursor = new String((byte[])reply.get(0), StandardCharsets.US_ASCII);
+			@SuppressWarnings("unchecked")
+			List<byte[]> members = (List<byte[]>)reply.get(1);
+			page.accept(members);
+		} while (!cursor.equals("0"));
+	}
+
+	@Override
+	protected void forEachStatus(BiConsumer<URI, Integer> action) {
+		flush();
+		scan(redis, "HSCAN", prefixKeyName("statuses"), fields -> {
+			for (int i = 0; i + 1 < fields.size(); i += 2) {
+				action.accept(uriSerializer.deserialize(fields.get(i)), integerSerializer.deserialize(fields.get(i + 1)));
+			}
+		});
+	}
+
+	@Override
+	protected void forEachInvalidUrls(BiConsumer<URI, Set<String>> action) {
+		flush();
+		scan(redis, "SSCAN", prefixKeyName("invalidUrls") + ":_keys", keys -> {
+			for (byte[] key : keys) {
+				URI page = uriSerializer.deserialize(key);
+				Set<String> links;
+				synchronized (redis) {
+					links = new LinkedHashSet<>(invalidUrls.get(page));
+				}
+				action.accept(page, links);
+			}
+		});
+	}
+
+	@Override
+	public void add(Result fetched) {
+		if (batch == null) {
+			super.add(fetched);
+			return;
+		}
+
+		synchronized (batch) {
+			batch.setStatus(fetched.getUri(), fetched.getStatusCode());
+			if (isCacheable(fetched)) {
+				batch.cacheResult(fetched.getUri(), externalResults.entry(fetched.getStatusCode()));
+			}
+			if (fetched.getStatusCode() > 0) {
+				batch.clearInvalidUrls(fetched.getUri());
+
+				if (fetched.getInvalidLinks() != null) {
+					for (String link : fetched.getInvalidLinks()) {
+						batch.addInvalidUrl(fetched.getUri(), link);
+					}
+				}
+
+				Set<URI> referredLinks = fetched.getReferredLinks();
+				if (fetched.isNotModified()) {
+					notModified.increment();
+					synchronized (redis) {
+						referredLinks = new HashSet<>(outlinks.get(fetched.getUri()));
+					}
+					if (fetched.getValidators() != null) {
+						batch.setValidators(fetched.getUri(), fetched.getValidators().encode());
+					}
+				} else {
+					if (isRevalidatable(fetched)) {
+						batch.setValidators(fetched.getUri(), fetched.getValidators().encode());
+					} else {
+						batch.clearValidators(fetched.getUri());
+					}
+					batch.setOutlinks(fetched.getUri(), referredLinks == null ? Collections.emptySet() : referredLinks);
+				}
+				if (referredLinks != null) {
+					for (URI uri : referredLinks) {
+						if (uri != null && config.shouldFollowLinks(fetched.getUri(), uri)) {
+							if (worker != null) {
+								batch.push(uri);
+							} else {
+								batch.enqueue(uri);
+							}
+						}
+					}
+				}
+			}
+			if (worker != null) {
+				// in the same batch as the result, so the lease is only gone once the links found are queued
+				batch.release(fetched.getUri(), worker);
+				released.add(fetched.getUri());
+			}
+
+			if (batch.size() >= config.getRedisBatchSize() || System.currentTimeMillis() - lastFlush >= config.getRedisBatchMs()) {
+				flush();
+			}
+		}
+	}
+
+	@Override
+	public void enqueue(URI url) {
+		if (batch == null) {
+			super.enqueue(url);
+			return;
+		}
+		synchronized (batch) {
+			queue(url);
+		}
+	}
+
+	@Override
+	public void requeue(URI url) {
+		if (batch == null) {
+			super.requeue(url);
+			return;
+		}
+		synchronized (batch) {
+			batch.clearStatus(url);
+			queue(url);
+		}
+	}
+
+	private void queue(URI url) {
+		if (worker != null) {
+			batch.push(url);
+		} else {
+			batch.enqueue(url);
+		}
+		if (batch.size() >= config.getRedisBatchSize()) {
+			flush();
+		}
+	}
+
+	@Override
+	public long getSitemapReadMs() {
+		try {
+			byte[] value;
+			synchronized (redis) {
+				value = redis.call("GET", prefixKeyName("sitemapRead"));
+			}
+			return value == null ? 0 : Long.parseLong(new String(value));
+		} catch (IOException e) {
+			throw new RuntimeException("Error reading the time the sitemaps were read", e);
+		}
+	}
+
+	@Override
+	public void setSitemapReadMs(long sitemapReadMs) {
+		try {
+			synchronized (redis) {
+				redis.call("SET", prefixKeyName("sitemapRead"), Long.toString(sitemapReadMs));
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("Error storing the time the sitemaps were read", e);
+		}
+	}
+
+	@Override
+	public void flush() {
+		if (batch == null) {
+			return;
+		}
+		synchronized (batch) {
+			try {
+				batch.flush();
+				lastFlush = System.currentTimeMillis();
+				if (!released.isEmpty()) {
+					released(released);
+					released.clear();
+				}
+			} catch (IOException e) {
+				throw new RuntimeException("Error flushing pending writes to redis", e);
+			}
+		}
+	}
+
+	/**
+	 * Called once the results of the urls are written and their leases are released.
+	 */
+	protected void released(List<URI> urls) {
+	}
 }
@@ -0,0 +1,112 @@
+package nl.melp.linkchecker.backend;
+
+import java.net.URI;
+import java.util.Arrays;
+
+/**
+ * Assigns every url a dense int id, in the order the urls are first seen. Only the url's string is kept, so an id
+ * costs the string plus a few ints in stead of a java.net.URI and the map entries pointing to it. Urls are compared
+ * by their string form.
+ *
+ * Not thread safe; callers synchronize.
+ */
+public class UrlDictionary {
+	private static final int EMPTY = 0;
+
+	private String[] urls = new String[1024];
+	private int[] hashes = new int[1024];
+	// open addressing; slots hold id + 1, so 0 means empty
+	private int[] table = new int[2048];
+	private int size = 0;
+
+	/**
+	 * @return The id of the url, after adding it if it wasn't known yet.
+	 */
+	public int intern(URI url) {
+		return intern(url.toString());
+	}
+
+	public int intern(String url) {
+		int hash = hash(url);
+		int mask = table.length - 1;
+		for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+			int entry = table[slot];
+			if (entry == EMPTY) {
+				return add(slot, url, hash);
+			}
+			int id = entry - 1;
+			if (hashes[id] == hash && urls[id].equals(url)) {
+				return id;
+			}
+		}
+	}
+
+	/**
+	 * @return The id of the url, or -1 if it isn't known.
+	 */
+	public int find(Object url) {
+		if (!(url instanceof URI)) {
+			return -1;
+		}
+		String string = url.toString();
+		int hash = hash(string);
+		int mask = table.length - 1;
+		for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+			int entry = table[slot];
+			if (entry == EMPTY) {
+				return -1;
+			}
+			int id = entry - 1;
+			if (hashes[id] == hash && urls[id].equals(string)) {
+				return id;
+			}
+		}
+	}
+
+	public URI get(int id) {
+		return URI.create(urls[id]);
+	}
+
+	public String getString(int id) {
+		return urls[id];
+	}
+
+	public int size() {
+		return size;
+	}
+
+	private int add(int slot, String url, int hash) {
+		int id = size++;
+		if (id == urls.length) {
+			urls = Arrays.copyOf(urls, urls.length * 2);
+			hashes = Arrays.copyOf(hashes, hashes.length * 2);
+		}
+		urls[id] = url;
+		hashes[id] = hash;
+		table[slot] = id + 1;
+
+		if (size * 2 > table.length) {
+			rehash(table.length * 2);
+		}
+		return id;
+	}
+
+	private void rehash(int capacity) {
+		int[] table = new int[capacity];
+		int mask = capacity - 1;
+		for (int id = 0; id < size; id++) {
+			int slot = hashes[id] & mask;
+			while (table[slot] != EMPTY) {
+				slot = (slot + 1) & mask;
+			}
+			table[slot] = id + 1;
+		}
+		this.table = table;
+	}
+
+	private static int hash(String url) {
+		// spread the bits, since the table index uses the low bits only
+		int h = url.hashCode();
+		return h ^ (h >>> 16);
+	}
+}
@@ -0,0 +1,216 @@
+package nl.melp.linkchecker;
+
+import com.sun.net.httpserver.HttpServer;
+import nl.melp.linkchecker.Fetcher.Result;
+import nl.melp.linkchecker.backend.InMemory;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class AsyncFetcherTest {
+	private static Logger logger = LoggerFactory.getLogger(AsyncFetcherTest.class);
+	private HttpServer server;
+	private String baseUrl;
+
+	@Before
+	public void startServer() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/", exchange -> {
+			Path file = Paths.get("resources/sample", exchange.getRequestURI().getPath());
+			if (Files.isRegularFile(file)) {
+				byte[] body = Files.readAllBytes(file);
+				String etag = "\"" + body.length + "\"";
+				exchange.getResponseHeaders().add("ETag", etag);
+				if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+					exchange.sendResponseHeaders(304, -1);
+					exchange.close();
+					return;
+				}
+				exchange.getResponseHeaders().add("Content-Type", "text/html; charset=UTF-8");
+				exchange.sendResponseHeaders(200, body.length);
+				try (OutputStream out = exchange.getResponseBody()) {
+					out.write(body);
+				}
+			} else {
+				exchange.sendResponseHeaders(404, -1);
+			}
+			exchange.close();
+		});
+		server.start();
+		baseUrl = "http://localhost:" + server.getAddress().getPort();
+	}
+
+	@After
+	public void stopServer() {
+		server.stop(0);
+	}
+
+	@Test
+	public void testFetchAsync() throws Exception {
+		RunConfig config = new RunConfig(logger, "--async", baseUrl);
+		AsyncFetcher fetcher = new AsyncFetcher(logger, config, new HtmlExtractor(logger), new URIResolver(logger));
+
+		Result index = fetcher.fetchAsync(URI.create(baseUrl + "/index.html")).get();
+		Assert.assertEquals(200, index.getStatusCode());
+		Assert.assertTrue(index.getReferredLinks().contains(URI.create(baseUrl + "/index2.html")));
+		Assert.assertTrue(index.getReferredLinks().contains(URI.create(baseUrl + "/subdir/foo.html")));
+		Assert.assertTrue(index.getReferredLinks().contains(URI.create(baseUrl + "/404.html")));
+
+		Assert.assertEquals(404, fetcher.fetchAsync(URI.create(baseUrl + "/404.html")).get().getStatusCode());
+		Assert.assertEquals(0, fetcher.fetchAsync(URI.create("http://localhost:1/")).get().getStatusCode());
+
+		fetcher.shutdown();
+	}
+
+	@Test
+	public void testMaxDocumentSizeAsync() throws Exception {
+		// a link before the limit, then one after it in a body far longer than that
+		server.createContext("/large", exchange -> {
+			exchange.getResponseHeaders().add("Content-Type", "text/html; charset=UTF-8");
+			exchange.sendResponseHeaders(200, 0);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write("<a href=\"/first\">".getBytes(StandardCharsets.UTF_8));
+				byte[] filler = new byte[65536];
+				Arrays.fill(filler, (byte)' ');
+				for (int i = 0; i < 64; i++) {
+					out.write(filler);
+				}
+				out.write("<a href=\"/last\">".getBytes(StandardCharsets.UTF_8));
+			} catch (IOException e) {
+				// the client stopped reading
+			}
+			exchange.close();
+		});
+		RunConfig config = new RunConfig(logger, "--async", "--max-document-size=100000", baseUrl);
+		AsyncFetcher fetcher = new AsyncFetcher(logger, config, new HtmlExtractor(logger), new URIResolver(logger));
+
+		Result result = fetcher.fetchAsync(URI.create(baseUrl + "/large")).get(10, TimeUnit.SECONDS);
+		Assert.assertEquals(200, result.getStatusCode());
+		Assert.assertEquals(Set.of(URI.create(baseUrl + "/first")), result.getReferredLinks());
+
+		fetcher.shutdown();
+	}
+
+	@Test
+	public void testBoundedBodySubscriber() {
+		AsyncFetcher.BoundedBodySubscriber subscriber = new AsyncFetcher.BoundedBodySubscriber(5);
+		AtomicInteger requested = new AtomicInteger();
+		AtomicInteger cancelled = new AtomicInteger();
+		subscriber.onSubscribe(new Flow.Subscription() {
+			@Override
+			public void request(long n) {
+				requested.incrementAndGet();
+			}
+
+			@Override
+			public void cancel() {
+				cancelled.incrementAndGet();
+			}
+		});
+		subscriber.onNext(List.of(ByteBuffer.wrap("abc".getBytes(StandardCharsets.US_ASCII)).asReadOnlyBuffer()));
+		Assert.assertEquals(2, requested.get());
+		subscriber.onNext(List.of(ByteBuffer.wrap("defg".getBytes(StandardCharsets.US_ASCII))));
+		Assert.assertEquals(1, cancelled.get());
+
+		AsyncFetcher.Body body = subscriber.getBody().toCompletableFuture().join();
+		Assert.assertTrue(body.isTruncated());
+		Assert.assertEquals("abcde", new String(body.getBytes(), StandardCharsets.US_ASCII));
+	}
+
+	@Test
+	public void testDeadlinesAsync() throws Exception {
+		server.createContext("/drip", exchange -> {
+			try {
+				exchange.sendResponseHeaders(200, 100);
+				try (OutputStream out = exchange.getResponseBody()) {
+					for (int i = 0; i < 100; i++) {
+						out.write(' ');
+						out.flush();
+						Thread.sleep(50);
+					}
+				}
+			} catch (InterruptedException | IOException e) {
+				// the client went away
+			} finally {
+				exchange.close();
+			}
+		});
+		RunConfig config = new RunConfig(logger, "--async", "--request-timeout-ms=1000", baseUrl);
+		AsyncFetcher fetcher = new AsyncFetcher(logger, config, new HtmlExtractor(logger), new URIResolver(logger));
+
+		long start = System.nanoTime();
+		Assert.assertEquals(0, fetcher.fetchAsync(URI.create(baseUrl + "/drip")).get().getStatusCode());
+		Assert.assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 1800);
+		Assert.assertEquals(1, config.getWatchdog().getNumAborted());
+		fetcher.shutdown();
+	}
+
+	@Test
+	public void testRevalidateAsync() throws Exception {
+		RunConfig config = new RunConfig(logger, "--async", baseUrl);
+		AsyncFetcher fetcher = new AsyncFetcher(logger, config, new HtmlExtractor(logger), new URIResolver(logger));
+
+		Result index = fetcher.fetchAsync(URI.create(baseUrl + "/index.html")).get();
+		Assert.assertNotNull(index.getValidators());
+		Assert.assertFalse(index.isNotModified());
+
+		Result revalidated = fetcher.fetchAsync(URI.create(baseUrl + "/index.html"), index.getValidators()).get();
+		Assert.assertTrue(revalidated.isNotModified());
+		Assert.assertEquals(200, revalidated.getStatusCode());
+
+		Result changed = fetcher.fetchAsync(URI.create(baseUrl + "/index.html"), new Fetcher.Validators("\"0\"", null)).get();
+		Assert.assertFalse(changed.isNotModified());
+		Assert.assertEquals(index.getReferredLinks(), changed.getReferredLinks());
+
+		// the same content with another etag isn't parsed again
+		AtomicInteger numParsed = new AtomicInteger();
+		AsyncFetcher counting = new AsyncFetcher(logger, config, new HtmlExtractor(logger) {
+			@Override
+			protected void extractLinks(URI url, InputStream content, Set<String> referred) throws IOException {
+				numParsed.incrementAndGet();
+				super.extractLinks(url, content, referred);
+			}
+		}, new URIResolver(logger));
+		Result unchanged = counting.fetchAsync(URI.create(baseUrl + "/index.html"), new Fetcher.Validators("\"0\"", null, index.getValidators().getDigest())).get();
+		Assert.assertTrue(unchanged.isNotModified());
+		Assert.assertEquals(0, numParsed.get());
+		Assert.assertFalse(counting.fetchAsync(URI.create(baseUrl + "/index.html"), new Fetcher.Validators("\"0\"", null, "other")).get().isNotModified());
+		Assert.assertEquals(1, numParsed.get());
+
+		counting.shutdown();
+		fetcher.shutdown();
+	}
+
+	@Test
+	public void testRunAsync() throws Exception {
+		RunConfig config = new RunConfig(logger, "--reset", "--async", "--max-in-flight=2", baseUrl + "/index.html");
+		Status status = new InMemory(logger, config);
+
+		new LinkChecker(config, status, new AsyncFetcher(logger, config, new HtmlExtractor(logger), new URIResolver(logger))).run();
+
+		Assert.assertEquals(200, (int)status.statuses.get(URI.create(baseUrl + "/index.html")));
+		Assert.assertEquals(200, (int)status.statuses.get(URI.create(baseUrl + "/index2.html")));
+		Assert.assertEquals(200, (int)status.statuses.get(URI.create(baseUrl + "/subdir/foo.html")));
+		Assert.assertEquals(404, (int)status.statuses.get(URI.create(baseUrl + "/404.html")));
+	}
+}
@@ -0,0 +1,199 @@
+package nl.melp.linkchecker;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Runs throughput benchmarks the way JMH does in its default mode, without forking: a number of warmup iterations that
+ * are discarded, then a number of measured iterations of a fixed duration. Results are written in the CSV format of
+ * JMH's "-rf csv", so they can be compared with a previous run, or with other tools that read JMH results. The bytes
+ * allocated per operation are printed along with the score, like JMH's gc profiler does.
+ */
+public class BenchmarkRunner {
+	public interface Benchmark {
+		/**
+		 * Called before every iteration, outside of the measured time.
+		 */
+		default void setUp() throws Exception {
+		}
+
+		/**
+		 * @return The number of operations done, e.g. pages parsed or links resolved.
+		 */
+		int run() throws Exception;
+
+		/**
+		 * Called after every iteration, outside of the measured time.
+		 */
+		default void tearDown() throws Exception {
+		}
+	}
+
+	public static class Score {
+		private final String name;
+		private final String unit;
+		private final double[] samples;
+		private final long allocatedPerOp;
+
+		Score(String name, String unit, double[] samples, long allocatedPerOp) {
+			this.name = name;
+			this.unit = unit;
+			this.samples = samples;
+			this.allocatedPerOp = allocatedPerOp;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * The bytes allocated by the benchmark thread per operation in the measured iterations, or -1 if the JVM
+		 * can't tell.
+		 */
+		public long getAllocatedPerOp() {
+			return allocatedPerOp;
+		}
+
+		public double getScore() {
+			double sum = 0;
+			for (double sample : samples) {
+				sum += sample;
+			}
+			return sum / samples.length;
+		}
+
+		/**
+		 * Half the width of the 99.9% confidence interval, using the normal distribution in stead of JMH's Student's t.
+		 */
+		public double getError() {
+			if (samples.length < 2) {
+				return Double.NaN;
+			}
+			double mean = getScore();
+			double squares = 0;
+			for (double sample : samples) {
+				squares += (sample - mean) * (sample - mean);
+			}
+			return 3.29 * Math.sqrt(squares / (samples.length - 1)) / Math.sqrt(samples.length);
+		}
+	}
+
+	private final int warmupIterations;
+	private final int iterations;
+	private final long iterationMs;
+	private final List<Score> scores = new ArrayList<>();
+
+	public BenchmarkRunner(int warmupIterations, int iterations, long iterationMs) {
+		this.warmupIterations = warmupIterations;
+		this.iterations = iterations;
+		this.iterationMs = iterationMs;
+	}
+
+	public Score run(String name, String unit, Benchmark benchmark) throws Exception {
+		for (int i = 0; i < warmupIterations; i++) {
+			iterate(benchmark, null);
+		}
+		double[] samples = new double[iterations];
+		long[] measured = new long[2];
+		for (int i = 0; i < iterations; i++) {
+			samples[i] = iterate(benchmark, measured);
+		}
+		Score score = new Score(name, unit, samples, measured[0] < 0 || measured[1] == 0 ? -1 : measured[0] / measured[1]);
+		scores.add(score);
+		System.out.printf(Locale.ROOT, "%-40s %14.1f +- %10.1f %-8s %10d B/op%n", name, score.getScore(), score.getError(), unit, score.getAllocatedPerOp());
+		return score;
+	}
+
+	/**
+	 * @param measured The bytes allocated and the operations done are added to this, if it's given.
+	 */
+	private double iterate(Benchmark benchmark, long[] measured) throws Exception {
+		benchmark.setUp();
+		long ops = 0;
+		long allocatedBefore = allocatedBytes();
+		long start = System.nanoTime();
+		long end = start + iterationMs * 1_000_000;
+		long now;
+		do {
+			ops += benchmark.run();
+			now = System.nanoTime();
+		} while (now < end);
+		long allocated = allocatedBytes() - allocatedBefore;
+		benchmark.tearDown();
+		if (measured != null) {
+			measured[0] = allocatedBefore < 0 || measured[0] < 0 ? -1 : measured[0] + allocated;
+			measured[1] += ops;
+		}
+		return ops / ((now - start) / 1_000_000_000.0);
+	}
+
+	/**
+	 * @return The bytes allocated by the current thread so far, or -1 if the JVM doesn't keep track of that.
+	 */
+	static long allocatedBytes() {
+		java.lang.management.ThreadMXBean threads = java.lang.management.ManagementFactory.getThreadMXBean();
+		if (threads instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean)threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return -1;
+	}
+
+	public void writeCsv(Path file) throws IOException {
+		try (PrintStream out = new PrintStream(Files.newOutputStream(file))) {
+			out.println("\"Benchmark\",\"Mode\",\"Threads\",\"Samples\",\"Score\",\"Score Error (99.9%)\",\"Unit\"");
+			for (Score score : scores) {
+				out.printf(
+					Locale.ROOT,
+					"\"%s\",\"thrpt\",1,%d,%f,%f,\"%s\"%n",
+					score.name,
+					score.samples.length,
+					score.getScore(),
+					score.getError(),
+					score.unit
+				);
+			}
+		}
+	}
+
+	/**
+	 * @return The scores by benchmark name in a CSV file written by writeCsv() or by JMH.
+	 */
+	public static Map<String, Double> readCsv(Path file) throws IOException {
+		Map<String, Double> scores = new LinkedHashMap<>();
+		List<String> lines = Files.readAllLines(file);
+		for (String line : lines.subList(1, lines.size())) {
+			String[] columns = line.split(",");
+			scores.put(columns[0].replace("\"", ""), Double.parseDouble(columns[4]));
+		}
+		return scores;
+	}
+
+	/**
+	 * Prints the change of every score relative to the baseline.
+	 *
+	 * @return The number of benchmarks whose score dropped more than maxRegressionPct percent.
+	 */
+	public int compare(Map<String, Double> baseline, double maxRegressionPct) {
+		int regressions = 0;
+		for (Score score : scores) {
+			Double base = baseline.get(score.name);
+			if (base == null || base == 0) {
+				continue;
+			}
+			double changePct = (score.getScore() - base) / base * 100;
+			boolean regressed = changePct < -maxRegressionPct;
+			if (regressed) {
+				regressions++;
+			}
+			System.out.printf(Locale.ROOT, "%-40s %+8.1f%%%s%n", score.name, changePct, regressed ? "  REGRESSION" : "");
+		}
+		return regressions;
+	}
+}
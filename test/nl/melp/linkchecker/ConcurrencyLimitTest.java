@@ -0,0 +1,59 @@
+package nl.melp.linkchecker;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ConcurrencyLimitTest {
+	private static final long MS = 1_000_000;
+
+	/**
+	 * Simulates a server that handles up to capacity requests at the same time in 10ms, and queues the rest.
+	 */
+	private static int settle(ConcurrencyLimit limit, int capacity, int samples) {
+		for (int i = 0; i < samples; i++) {
+			int inFlight = limit.getLimit();
+			long rtt = 10 * MS * Math.max(1, (inFlight + capacity - 1) / capacity);
+			limit.onSample(rtt, inFlight, rtt > 100 * MS);
+		}
+		return limit.getLimit();
+	}
+
+	@Test
+	public void testGrowsToMax() {
+		for (ConcurrencyLimit.Algorithm algorithm : ConcurrencyLimit.Algorithm.values()) {
+			ConcurrencyLimit limit = algorithm.create(200);
+			Assert.assertEquals(ConcurrencyLimit.INITIAL_LIMIT, limit.getLimit());
+			Assert.assertEquals(algorithm.name(), 200, settle(limit, 1000, 50_000));
+			Assert.assertEquals(5, algorithm.create(5).getLimit());
+		}
+	}
+
+	@Test
+	public void testBacksOff() {
+		ConcurrencyLimit aimd = ConcurrencyLimit.Algorithm.AIMD.create(1000);
+		int limit = settle(aimd, 50, 20_000);
+		// only drops count, which happen once 10 times the capacity is in flight
+		Assert.assertTrue(String.valueOf(limit), limit > 50 && limit <= 500);
+
+		ConcurrencyLimit gradient = ConcurrencyLimit.Algorithm.GRADIENT.create(1000);
+		limit = settle(gradient, 50, 20_000);
+		// the latency goes up as soon as the capacity is exceeded
+		Assert.assertTrue(String.valueOf(limit), limit >= 40 && limit <= 110);
+
+		for (int i = 0; i < 100; i++) {
+			gradient.onSample(30_000 * MS, 1, true);
+		}
+		Assert.assertEquals(ConcurrencyLimit.MIN_LIMIT, gradient.getLimit());
+	}
+
+	@Test
+	public void testAppLimited() {
+		for (ConcurrencyLimit.Algorithm algorithm : ConcurrencyLimit.Algorithm.values()) {
+			ConcurrencyLimit limit = algorithm.create(1000);
+			for (int i = 0; i < 1000; i++) {
+				limit.onSample(10 * MS, 2, false);
+			}
+			Assert.assertEquals(algorithm.name(), ConcurrencyLimit.INITIAL_LIMIT, limit.getLimit());
+		}
+	}
+}
@@ -0,0 +1,345 @@
+package nl.melp.linkchecker;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import nl.melp.linkchecker.backend.InMemory;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class FetcherTest {
+	private static Logger logger = LoggerFactory.getLogger(FetcherTest.class);
+	private final List<HttpServer> servers = new ArrayList<>();
+	private final List<String> requests = Collections.synchronizedList(new ArrayList<>());
+
+	private interface Handler {
+		int statusCode(HttpExchange exchange);
+	}
+
+	private String serve(Handler handler) throws IOException {
+		HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/", exchange -> {
+			requests.add(exchange.getRequestMethod() + (exchange.getRequestHeaders().containsKey("Range") ? " (range)" : "") + " " + exchange.getRequestURI().getPath());
+			int statusCode = handler.statusCode(exchange);
+			if (exchange.getRequestMethod().equals("HEAD") || statusCode == 304) {
+				exchange.sendResponseHeaders(statusCode, -1);
+			} else {
+				byte[] body = new byte[100_000];
+				exchange.sendResponseHeaders(statusCode, body.length);
+				try (OutputStream out = exchange.getResponseBody()) {
+					out.write(body);
+				}
+			}
+			exchange.close();
+		});
+		server.start();
+		servers.add(server);
+		return "http://localhost:" + server.getAddress().getPort();
+	}
+
+	/**
+	 * Serves /slow, which takes a second to send its headers, and /drip, which sends a byte of its body every 50ms.
+	 */
+	private String serveSlowly() throws IOException {
+		HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.createContext("/", exchange -> {
+			try {
+				if (exchange.getRequestURI().getPath().equals("/slow")) {
+					Thread.sleep(1000);
+					exchange.sendResponseHeaders(200, -1);
+				} else {
+					exchange.sendResponseHeaders(200, 100);
+					try (OutputStream out = exchange.getResponseBody()) {
+						for (int i = 0; i < 100; i++) {
+							out.write(' ');
+							out.flush();
+							Thread.sleep(50);
+						}
+					}
+				}
+			} catch (InterruptedException | IOException e) {
+				// the client went away
+			} finally {
+				exchange.close();
+			}
+		});
+		server.start();
+		servers.add(server);
+		return "http://localhost:" + server.getAddress().getPort();
+	}
+
+	@Before
+	public void clear() {
+		requests.clear();
+	}
+
+	@After
+	public void stopServers() {
+		servers.forEach(s -> s.stop(0));
+	}
+
+	private static int statusFromPath(HttpExchange exchange) {
+		return exchange.getRequestURI().getPath().equals("/missing") ? 404 : 200;
+	}
+
+	@Test
+	public void testProbe() throws Exception {
+		String supportsHead = serve(FetcherTest::statusFromPath);
+		String noHead = serve(exchange -> exchange.getRequestMethod().equals("HEAD") ? 405 : statusFromPath(exchange));
+		String liesAboutHead = serve(exchange -> exchange.getRequestMethod().equals("HEAD") ? 404 : statusFromPath(exchange));
+
+		RunConfig config = new RunConfig(logger, "http://example.org/");
+		Fetcher fetcher = new Fetcher(logger, config, new HtmlExtractor(logger), new URIResolver(logger));
+		CloseableHttpClient client = config.createHttpClient();
+
+		Assert.assertEquals(200, fetcher.fetch(client, URI.create(supportsHead + "/a")).getStatusCode());
+		Assert.assertEquals(404, fetcher.fetch(client, URI.create(supportsHead + "/missing")).getStatusCode());
+		Assert.assertEquals(200, fetcher.fetch(client, URI.create(supportsHead + "/b")).getStatusCode());
+		Assert.assertEquals(List.of("HEAD /a", "HEAD /missing", "GET (range) /missing", "HEAD /b"), requests);
+
+		requests.clear();
+		Assert.assertEquals(200, fetcher.fetch(client, URI.create(noHead + "/a")).getStatusCode());
+		Assert.assertEquals(404, fetcher.fetch(client, URI.create(noHead + "/missing")).getStatusCode());
+		Assert.assertEquals(List.of("HEAD /a", "GET (range) /a", "GET (range) /missing"), requests);
+
+		requests.clear();
+		Assert.assertEquals(200, fetcher.fetch(client, URI.create(liesAboutHead + "/a")).getStatusCode());
+		Assert.assertEquals(200, fetcher.fetch(client, URI.create(liesAboutHead + "/b")).getStatusCode());
+		Assert.assertEquals(List.of("HEAD /a", "GET (range) /a", "GET (range) /b"), requests);
+	}
+
+	@Test
+	public void testNoHead() throws Exception {
+		String host = serve(FetcherTest::statusFromPath);
+
+		RunConfig config = new RunConfig(logger, "--no-head", "http://example.org/");
+		Fetcher fetcher = new Fetcher(logger, config, new HtmlExtractor(logger), new URIResolver(logger));
+
+		Assert.assertEquals(200, fetcher.fetch(config.createHttpClient(), URI.create(host + "/a")).getStatusCode());
+		Assert.assertEquals(List.of("GET /a"), requests);
+	}
+
+	@Test
+	public void testRevalidate() throws Exception {
+		String host = serve(exchange -> {
+			exchange.getResponseHeaders().add("ETag", "\"v1\"");
+			exchange.getResponseHeaders().add("Last-Modified", "Fri, 16 Oct 2026 12:00:00 GMT");
+			return "\"v1\"".equals(exchange.getRequestHeaders().getFirst("If-None-Match")) ? 304 : 200;
+		});
+
+		RunConfig config = new RunConfig(logger, host + "/");
+		Fetcher fetcher = new Fetcher(logger, config, new HtmlExtractor(logger), new URIResolver(logger));
+		CloseableHttpClient client = config.createHttpClient();
+
+		Fetcher.Result page = fetcher.fetch(client, URI.create(host + "/a"));
+		Assert.assertEquals(200, page.getStatusCode());
+		Assert.assertFalse(page.isNotModified());
+		Assert.assertEquals("\"v1\"", page.getValidators().getEtag());
+		Assert.assertEquals("Fri, 16 Oct 2026 12:00:00 GMT", page.getValidators().getLastModified());
+		Assert.assertEquals(page.getValidators().getEtag(), Fetcher.Validators.decode(page.getValidators().encode()).getEtag());
+
+		Fetcher.Result revalidated = fetcher.fetch(client, URI.create(host + "/a"), page.getValidators());
+		Assert.assertEquals(200, revalidated.getStatusCode());
+		Assert.assertTrue(revalidated.isNotModified());
+
+		// the test server closes the connection after a 304, which the next request has to recover from
+		Fetcher.Result changed = fetcher.fetch(client, URI.create(host + "/a"), new Fetcher.Validators("\"v0\"", null));
+		Assert.assertFalse(changed.isNotModified());
+		Assert.assertEquals(200, changed.getStatusCode());
+		Assert.assertEquals(List.of("GET /a", "GET /a", "GET /a"), requests);
+	}
+
+	@Test
+	public void testConnectionReuse() throws Exception {
+		String host = serve(FetcherTest::statusFromPath);
+
+		RunConfig drainingConfig = new RunConfig(logger, "--no-head", "--max-drain-size=200000", "http://example.org/");
+		Fetcher draining = new Fetcher(logger, drainingConfig, new HtmlExtractor(logger), new URIResolver(logger));
+		CloseableHttpClient drainingClient = drainingConfig.createHttpClient();
+		for (int i = 0; i < 3; i++) {
+			Assert.assertEquals(404, draining.fetch(drainingClient, URI.create(host + "/missing")).getStatusCode());
+		}
+		Assert.assertEquals(3, drainingConfig.getConnectionStats().getRequests());
+		Assert.assertEquals(1, drainingConfig.getConnectionStats().getConnectionsOpened());
+		Assert.assertEquals(66.6f, drainingConfig.getConnectionStats().getReuseRate(), 0.1f);
+
+		RunConfig abortingConfig = new RunConfig(logger, "--no-head", "--max-drain-size=1000", "http://example.org/");
+		Fetcher aborting = new Fetcher(logger, abortingConfig, new HtmlExtractor(logger), new URIResolver(logger));
+		CloseableHttpClient abortingClient = abortingConfig.createHttpClient();
+		for (int i = 0; i < 3; i++) {
+			Assert.assertEquals(404, aborting.fetch(abortingClient, URI.create(host + "/missing")).getStatusCode());
+		}
+		Assert.assertEquals(3, abortingConfig.getConnectionStats().getConnectionsOpened());
+		Assert.assertEquals(0f, abortingConfig.getConnectionStats().getReuseRate(), 0.1f);
+	}
+
+	@Test
+	public void testRefusedIsNotRetried() throws Exception {
+		RunConfig config = new RunConfig(logger, "--no-head", "http://example.org/");
+		Fetcher fetcher = new Fetcher(logger, config, new HtmlExtractor(logger), new URIResolver(logger));
+		Assert.assertEquals(0, fetcher.fetch(config.createHttpClient(), URI.create("http://localhost:1/")).getStatusCode());
+		Assert.assertEquals(1, config.getConnectionStats().getRequests());
+	}
+
+	@Test
+	public void testDeadlines() throws Exception {
+		String host = serveSlowly();
+		RunConfig config = new RunConfig(logger, "--no-head", "--ttfb-timeout-ms=300", "--request-timeout-ms=1000", host + "/");
+		Fetcher fetcher = new Fetcher(logger, config, new HtmlExtractor(logger), new URIResolver(logger));
+		CloseableHttpClient client = config.createHttpClient();
+
+		for (String path : List.of("/slow", "/drip")) {
+			long start = System.nanoTime();
+			Assert.assertEquals(path, 0, fetcher.fetch(client, URI.create(host + path)).getStatusCode());
+			long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+			Assert.assertTrue(path + " took " + elapsedMs + "ms", elapsedMs < 1800);
+		}
+		// the socket timeout may beat the watchdog to the slow headers, but not to the dripping body
+		Assert.assertTrue(config.getWatchdog().getNumAborted() >= 1);
+	}
+
+	@Test
+	public void testPhaseMetrics() throws Exception {
+		String host = serve(FetcherTest::statusFromPath);
+
+		RunConfig config = new RunConfig(logger, "--no-head", "--max-drain-size=200000", "http://example.org/");
+		Fetcher fetcher = new Fetcher(logger, config, new HtmlExtractor(logger), new URIResolver(logger));
+		CloseableHttpClient client = config.createHttpClient();
+		for (int i = 0; i < 3; i++) {
+			fetcher.fetch(client, URI.create(host + "/missing"));
+		}
+		Metrics metrics = config.getMetrics();
+		Assert.assertEquals(1, metrics.get(Metrics.Phase.DNS).getCount());
+		Assert.assertEquals(1, metrics.get(Metrics.Phase.CONNECT).getCount());
+		Assert.assertEquals(0, metrics.get(Metrics.Phase.TLS).getCount());
+		Assert.assertEquals(3, metrics.get(Metrics.Phase.TTFB).getCount());
+		Assert.assertEquals(0, metrics.get(Metrics.Phase.PARSE).getCount());
+
+		RunConfig localConfig = new RunConfig(logger, "--no-head", host + "/");
+		new Fetcher(logger, localConfig, new HtmlExtractor(logger), new URIResolver(logger)).fetch(localConfig.createHttpClient(), URI.create(host + "/"));
+		Assert.assertEquals(1, localConfig.getMetrics().get(Metrics.Phase.PARSE).getCount());
+	}
+
+	@Test
+	public void testDigest() throws Exception {
+		String[] body = {"<a href=\"/b\">b</a>"};
+		HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/", exchange -> {
+			byte[] bytes = body[0].getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().add("Content-Type", "text/html");
+			exchange.sendResponseHeaders(200, bytes.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(bytes);
+			}
+			exchange.close();
+		});
+		server.start();
+		servers.add(server);
+		String host = "http://localhost:" + server.getAddress().getPort();
+
+		RunConfig config = new RunConfig(logger, host + "/");
+		StreamingHtmlExtractor streaming = new StreamingHtmlExtractor(logger, 1024);
+		AtomicInteger numParsed = new AtomicInteger();
+		Fetcher fetcher = new Fetcher(logger, config, (url, statusCode, response, entity) -> {
+			numParsed.incrementAndGet();
+			return streaming.extract(url, statusCode, response, entity);
+		}, new URIResolver(logger));
+		CloseableHttpClient client = config.createHttpClient();
+
+		Fetcher.Result page = fetcher.fetch(client, URI.create(host + "/a"));
+		Assert.assertEquals(Set.of(URI.create(host + "/b")), page.getReferredLinks());
+		Assert.assertNull(page.getValidators().getEtag());
+		Assert.assertNotNull(page.getValidators().getDigest());
+		Fetcher.Validators stored = Fetcher.Validators.decode(page.getValidators().encode());
+		Assert.assertEquals(page.getValidators().getDigest(), stored.getDigest());
+		Assert.assertNull(Fetcher.Validators.decode("\"v1\"\n").getDigest());
+
+		Fetcher.Result unchanged = fetcher.fetch(client, URI.create(host + "/a"), stored);
+		Assert.assertTrue(unchanged.isNotModified());
+		Assert.assertEquals(200, unchanged.getStatusCode());
+		// the body is buffered and digested first, so it isn't parsed again
+		Assert.assertEquals(1, numParsed.get());
+
+		// a body longer than the maximum document size is digested as it's parsed
+		RunConfig small = new RunConfig(logger, "--max-document-size=10", host + "/");
+		Fetcher.Result parsed = new Fetcher(logger, small, (url, statusCode, response, entity) -> {
+			numParsed.incrementAndGet();
+			return streaming.extract(url, statusCode, response, entity);
+		}, new URIResolver(logger)).fetch(client, URI.create(host + "/a"), stored);
+		Assert.assertTrue(parsed.isNotModified());
+		Assert.assertEquals(2, numParsed.get());
+
+		body[0] = "<a href=\"/c\">c</a>";
+		Fetcher.Result changed = fetcher.fetch(client, URI.create(host + "/a"), stored);
+		Assert.assertFalse(changed.isNotModified());
+		Assert.assertEquals(Set.of(URI.create(host + "/c")), changed.getReferredLinks());
+		Assert.assertNotEquals(stored.getDigest(), changed.getValidators().getDigest());
+		Assert.assertEquals(3, numParsed.get());
+
+		RunConfig noRevalidate = new RunConfig(logger, "--no-revalidate", host + "/");
+		Fetcher.Result downloaded = new Fetcher(logger, noRevalidate, new StreamingHtmlExtractor(logger, 1024), new URIResolver(logger)).fetch(client, URI.create(host + "/a"));
+		Assert.assertNull(downloaded.getValidators());
+	}
+
+	/**
+	 * A server that sends a new ETag with every response never answers a conditional request with a 304. The digest
+	 * still finds the page unchanged, and the new ETag is stored to send next time.
+	 */
+	@Test
+	public void testDigestWithChangingEtag() throws Exception {
+		AtomicInteger version = new AtomicInteger();
+		HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/", exchange -> {
+			byte[] bytes = "<a href=\"/b\">b</a>".getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().add("Content-Type", "text/html");
+			exchange.getResponseHeaders().add("ETag", "\"v" + version.incrementAndGet() + "\"");
+			exchange.sendResponseHeaders(200, bytes.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(bytes);
+			}
+			exchange.close();
+		});
+		server.start();
+		servers.add(server);
+		String host = "http://localhost:" + server.getAddress().getPort();
+		URI url = URI.create(host + "/a");
+
+		RunConfig config = new RunConfig(logger, "--reset", host + "/");
+		Fetcher fetcher = new Fetcher(logger, config, new StreamingHtmlExtractor(logger, 1024), new URIResolver(logger));
+		CloseableHttpClient client = config.createHttpClient();
+		Status status = new InMemory(logger, config);
+
+		status.add(fetcher.fetch(client, url));
+		Fetcher.Validators stored = Fetcher.Validators.decode(status.validators.get(url));
+		Assert.assertEquals("\"v1\"", stored.getEtag());
+
+		Fetcher.Result unchanged = fetcher.fetch(client, url, stored);
+		Assert.assertTrue(unchanged.isNotModified());
+		Assert.assertEquals("\"v2\"", unchanged.getValidators().getEtag());
+		Assert.assertEquals(stored.getDigest(), unchanged.getValidators().getDigest());
+
+		status.add(unchanged);
+		Fetcher.Validators next = Fetcher.Validators.decode(status.validators.get(url));
+		Assert.assertEquals("\"v2\"", next.getEtag());
+		Assert.assertEquals(stored.getDigest(), next.getDigest());
+		Assert.assertEquals(Set.of(URI.create(host + "/b")), status.outlinks.get(url));
+	}
+}
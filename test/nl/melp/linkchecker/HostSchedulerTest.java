@@ -0,0 +1,121 @@
+package nl.melp.linkchecker;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class HostSchedulerTest {
+	private static Logger logger = LoggerFactory.getLogger(HostSchedulerTest.class);
+
+	@Test
+	public void testInterval() throws Exception {
+		HostScheduler scheduler = new HostScheduler(logger, 10, 0, 100);
+		Map<String, List<Long>> started = new ConcurrentHashMap<>();
+		List<CompletableFuture<Void>> futures = new ArrayList<>();
+
+		long start = System.nanoTime();
+		for (int i = 0; i < 3; i++) {
+			for (String host : List.of("slow.example.org", "a.example.org", "b.example.org", "c.example.org")) {
+				URI url = URI.create("http://" + host + "/" + i);
+				futures.add(scheduler.submit(url, () -> {
+					started.computeIfAbsent(host, h -> new CopyOnWriteArrayList<>()).add(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+					return CompletableFuture.completedFuture(null);
+				}));
+			}
+		}
+		CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get(5, TimeUnit.SECONDS);
+		scheduler.shutdown();
+
+		for (List<Long> times : started.values()) {
+			Assert.assertEquals(3, times.size());
+			Assert.assertTrue(times.toString(), times.get(0) < 100);
+			Assert.assertTrue(times.toString(), times.get(1) - times.get(0) >= 95);
+			Assert.assertTrue(times.toString(), times.get(2) - times.get(1) >= 95);
+		}
+		Assert.assertEquals(0, scheduler.size());
+	}
+
+	@Test
+	public void testConcurrency() throws Exception {
+		HostScheduler scheduler = new HostScheduler(logger, 3, 2, 0);
+		Map<String, AtomicInteger> active = new ConcurrentHashMap<>();
+		AtomicInteger activeTotal = new AtomicInteger();
+		Map<String, AtomicInteger> maxActive = new ConcurrentHashMap<>();
+		AtomicInteger maxActiveTotal = new AtomicInteger();
+		List<CompletableFuture<Void>> futures = new ArrayList<>();
+
+		for (int i = 0; i < 10; i++) {
+			for (String host : List.of("a.example.org", "b.example.org")) {
+				futures.add(scheduler.submit(URI.create("http://" + host + "/" + i), () -> {
+					int n = active.computeIfAbsent(host, h -> new AtomicInteger()).incrementAndGet();
+					maxActive.computeIfAbsent(host, h -> new AtomicInteger()).accumulateAndGet(n, Math::max);
+					maxActiveTotal.accumulateAndGet(activeTotal.incrementAndGet(), Math::max);
+
+					return CompletableFuture.runAsync(() -> {
+						try {
+							Thread.sleep(10);
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+						}
+						active.get(host).decrementAndGet();
+						activeTotal.decrementAndGet();
+					});
+				}));
+			}
+		}
+		CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get(5, TimeUnit.SECONDS);
+		scheduler.shutdown();
+
+		Assert.assertEquals(3, maxActiveTotal.get());
+		Assert.assertEquals(2, maxActive.get("a.example.org").get());
+		Assert.assertEquals(2, maxActive.get("b.example.org").get());
+	}
+
+	@Test
+	public void testAdaptive() throws Exception {
+		HostScheduler scheduler = new HostScheduler(logger, 100, 0, 0, ConcurrencyLimit.Algorithm.AIMD);
+		Map<String, AtomicInteger> active = new ConcurrentHashMap<>();
+		Map<String, AtomicInteger> maxActive = new ConcurrentHashMap<>();
+		List<CompletableFuture<Fetcher.Result>> futures = new ArrayList<>();
+		// so every host has a full queue from the start
+		CompletableFuture<Void> submitted = new CompletableFuture<>();
+
+		for (int i = 0; i < 300; i++) {
+			for (String host : List.of("ok.example.org", "overloaded.example.org")) {
+				URI url = URI.create("http://" + host + "/" + i);
+				futures.add(scheduler.submit(url, () -> {
+					int n = active.computeIfAbsent(host, h -> new AtomicInteger()).incrementAndGet();
+					maxActive.computeIfAbsent(host, h -> new AtomicInteger()).accumulateAndGet(n, Math::max);
+					return submitted.thenApplyAsync(ignored -> {
+						try {
+							Thread.sleep(1);
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+						}
+						active.get(host).decrementAndGet();
+						return new Fetcher.Result(url, host.startsWith("ok") ? 200 : 503, null, null);
+					});
+				}));
+			}
+		}
+		submitted.complete(null);
+		CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get(10, TimeUnit.SECONDS);
+		scheduler.shutdown();
+
+		Assert.assertTrue(scheduler.getLimit("ok.example.org") > ConcurrencyLimit.INITIAL_LIMIT);
+		Assert.assertEquals(ConcurrencyLimit.MIN_LIMIT, scheduler.getLimit("overloaded.example.org"));
+		Assert.assertTrue(maxActive.get("overloaded.example.org").get() <= ConcurrencyLimit.INITIAL_LIMIT);
+		Assert.assertTrue(maxActive.get("ok.example.org").get() > ConcurrencyLimit.INITIAL_LIMIT);
+	}
+}
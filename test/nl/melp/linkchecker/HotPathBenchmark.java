@@ -0,0 +1,232 @@
+package nl.melp.linkchecker;
+
+import nl.melp.linkchecker.Fetcher.Result;
+import nl.melp.linkchecker.backend.InMemory;
+import nl.melp.redis.Redis;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Measures the throughput of the code every fetched page goes through: extracting the links, resolving them, deciding
+ * whether to follow them and adding the result to the InMemory and Redis backends. The benchmarks ending in .legacy
+ * do the same the way it was done before: resolving every link with URI.resolve(), and matching every --ignore pattern
+ * with String.matches(). The Redis benchmark needs a local Redis, and is skipped if there is none. Scores are written as CSV, and compared to the scores of a previous run if a
+ * baseline is given; the exit code is 1 if any benchmark got slower than allowed.
+ *
+ * Usage: java -cp 'lib/*:bin' nl.melp.linkchecker.HotPathBenchmark [--warmup=N] [--iterations=N] [--time-ms=MS]
+ *     [--filter=REGEX] [--result=FILE.csv] [--baseline=FILE.csv [--max-regression=PCT]]
+ */
+public class HotPathBenchmark {
+	private static final Logger logger = LoggerFactory.getLogger(HotPathBenchmark.class);
+	private static final URI page = URI.create("http://localhost/section/page/index.html");
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> opts = new HashMap<>();
+		for (String arg : args) {
+			String[] split = arg.substring(2).split("=", 2);
+			opts.put(split[0], split.length > 1 ? split[1] : "");
+		}
+		BenchmarkRunner runner = new BenchmarkRunner(
+			Integer.parseInt(opts.getOrDefault("warmup", "3")),
+			Integer.parseInt(opts.getOrDefault("iterations", "5")),
+			Long.parseLong(opts.getOrDefault("time-ms", "1000"))
+		);
+		Pattern filter = Pattern.compile(opts.getOrDefault("filter", ".*"));
+
+		byte[] smallPage = generatePage(20);
+		byte[] hugePage = generatePage(20_000);
+		if (filter.matcher("extract.jsoup.small").matches()) {
+			runner.run("extract.jsoup.small", "pages/s", extract(new HtmlExtractor(logger), smallPage));
+		}
+		if (filter.matcher("extract.jsoup.huge").matches()) {
+			runner.run("extract.jsoup.huge", "pages/s", extract(new HtmlExtractor(logger), hugePage));
+		}
+		if (filter.matcher("extract.streaming.small").matches()) {
+			runner.run("extract.streaming.small", "pages/s", extract(new StreamingHtmlExtractor(logger, Long.MAX_VALUE), smallPage));
+		}
+		if (filter.matcher("extract.streaming.huge").matches()) {
+			runner.run("extract.streaming.huge", "pages/s", extract(new StreamingHtmlExtractor(logger, Long.MAX_VALUE), hugePage));
+		}
+
+		List<String> links = generateLinks(1000);
+		if (filter.matcher("resolveUri").matches()) {
+			URIResolver resolver = new URIResolver(logger);
+			runner.run("resolveUri", "links/s", () -> {
+				URIResolver.Base base = resolver.base(page);
+				for (String link : links) {
+					resolver.resolveUri(base, link);
+				}
+				return links.size();
+			});
+		}
+		if (filter.matcher("resolveUri.legacy").matches()) {
+			runner.run("resolveUri.legacy", "links/s", () -> {
+				for (String link : links) {
+					URIResolverBaseTest.resolve(page, link);
+				}
+				return links.size();
+			});
+		}
+
+		List<URI> urls = new ArrayList<>();
+		URIResolver resolver = new URIResolver(logger);
+		for (String link : links) {
+			urls.add(resolver.resolveUri(page, link));
+		}
+		List<String> ignore = new ArrayList<>(List.of(".*\\.pdf"));
+		for (int i = 0; i < 200; i++) {
+			ignore.add("https?://social" + i + "\\.example\\.com/.*");
+			ignore.add(".*/tag/[0-9]+/item-" + i);
+		}
+		if (filter.matcher("shouldFollowLinks").matches()) {
+			RunConfig config = new RunConfig(logger, "--ignore=" + String.join(",", ignore), "http://localhost/");
+			runner.run("shouldFollowLinks", "links/s", () -> {
+				for (URI url : urls) {
+					config.shouldFollowLinks(page, url);
+				}
+				return urls.size();
+			});
+		}
+		if (filter.matcher("shouldFollowLinks.legacy").matches()) {
+			runner.run("shouldFollowLinks.legacy", "links/s", () -> {
+				for (URI url : urls) {
+					follow(ignore, url);
+				}
+				return urls.size();
+			});
+		}
+
+		if (filter.matcher("status.add.inMemory").matches()) {
+			RunConfig config = new RunConfig(logger, "--reset", "--follow-local", "http://localhost/");
+			runner.run("status.add.inMemory", "pages/s", add(() -> new InMemory(logger, config), urls));
+		}
+		if (filter.matcher("status.add.redis").matches()) {
+			RunConfig config = new RunConfig(logger, "--reset", "--follow-local", "http://localhost/");
+			try (Redis.Managed redis = config.connect()) {
+				runner.run("status.add.redis", "pages/s", add(() -> config.createStatus(redis), urls));
+			} catch (IOException e) {
+				System.out.printf("%-40s skipped, no Redis at %s:%d (%s)%n", "status.add.redis", config.getRedisHost(), config.getRedisPort(), e.getMessage());
+			}
+		}
+
+		int regressions = 0;
+		if (opts.containsKey("baseline")) {
+			// before writing the result, which may be the same file
+			regressions = runner.compare(
+				BenchmarkRunner.readCsv(Paths.get(opts.get("baseline"))),
+				Double.parseDouble(opts.getOrDefault("max-regression", "10"))
+			);
+		}
+		if (opts.containsKey("result")) {
+			runner.writeCsv(Paths.get(opts.get("result")));
+		}
+		if (regressions > 0) {
+			System.exit(1);
+		}
+	}
+
+	private static BenchmarkRunner.Benchmark extract(HtmlExtractor extractor, byte[] html) {
+		return () -> {
+			extractor.extractLinks(page, new ByteArrayInputStream(html), new HashSet<>());
+			return 1;
+		};
+	}
+
+	private static boolean follow(List<String> ignore, URI url) {
+		for (String pattern : ignore) {
+			if (url.toString().matches(pattern)) {
+				return false;
+			}
+		}
+		return url.getHost().equals("localhost");
+	}
+
+	private interface StatusFactory {
+		Status create() throws IOException;
+	}
+
+	/**
+	 * Adds pages that link to the given urls and some urls of their own, to a backend that's reset every iteration
+	 * (with --reset, which only clears the keys of the link checker in Redis).
+	 */
+	private static BenchmarkRunner.Benchmark add(StatusFactory factory, List<URI> urls) {
+		return new BenchmarkRunner.Benchmark() {
+			private Status status;
+			private int numPages;
+
+			@Override
+			public void setUp() throws Exception {
+				status = factory.create();
+				numPages = 0;
+			}
+
+			@Override
+			public int run() {
+				Set<URI> links = new LinkedHashSet<>();
+				for (int i = numPages % 20; i < urls.size(); i += 20) {
+					links.add(urls.get(i));
+				}
+				for (int i = 0; i < 10; i++) {
+					links.add(URI.create("http://localhost/page/" + numPages + "/" + i));
+				}
+				status.add(new Result(URI.create("http://localhost/page/" + numPages), 200, links, new LinkedHashSet<>()));
+				numPages++;
+				return 1;
+			}
+
+			@Override
+			public void tearDown() {
+				status.flush();
+			}
+		};
+	}
+
+	private static byte[] generatePage(int numLinks) {
+		StringBuilder html = new StringBuilder("<!DOCTYPE html><html><head><title>Benchmark</title>");
+		html.append("<style>body { font-family: sans-serif; }</style><script>var a = '<a href=\"x\">';</script></head><body>");
+		for (int i = 0; i < numLinks; i++) {
+			html.append("<div class=\"item\"><p>Lorem ipsum dolor sit amet, <em>consectetur</em> adipiscing elit.</p>");
+			html.append("<a class=\"link\" href=\"/page/").append(i % 100).append("/item-").append(i).append(".html?a=1&amp;b=2\">item ").append(i).append("</a>");
+			if (i % 10 == 0) {
+				html.append("<!-- <a href=\"/commented/").append(i).append("\"> -->");
+			}
+			html.append("</div>\n");
+		}
+		html.append("</body></html>");
+		return html.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * The links found on a typical page: site navigation, relative links, fragments, queries and external links.
+	 */
+	private static List<String> generateLinks(int numLinks) {
+		List<String> links = new ArrayList<>();
+		for (int i = 0; i < numLinks; i++) {
+			switch (i % 8) {
+				case 0 -> links.add("/nav/" + i % 20);
+				case 1 -> links.add("item-" + i + ".html");
+				case 2 -> links.add("#section-" + i);
+				case 3 -> links.add("?page=" + i);
+				case 4 -> links.add("https://social" + i % 300 + ".example.com/share?u=" + i);
+				case 5 -> links.add("/tag/" + i + "/item-" + i % 300);
+				case 6 -> links.add("../other/item-" + i + ".html");
+				default -> links.add("https://example" + i % 50 + ".org/path/" + i + ".pdf");
+			}
+		}
+		return links;
+	}
+}
@@ -1,15 +1,22 @@
 package nl.melp.linkchecker;
 
 import nl.melp.linkchecker.Fetcher.Result;
+import nl.melp.linkchecker.Fetcher.Validators;
+import nl.melp.linkchecker.backend.CompactInMemory;
 import nl.melp.linkchecker.backend.InMemory;
+import nl.melp.linkchecker.backend.OnDisk;
 import nl.melp.redis.Redis;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.URI;
 import java.security.KeyManagementException;
 import java.security.KeyStoreException;
@@ -20,10 +27,14 @@ import java.util.Map;
 import java.util.Random;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 
 public class LinkCheckerTest {
 	private static Logger logger = LoggerFactory.getLogger(LinkCheckerTest.class);
 
+	@Rule
+	public TemporaryFolder dataDir = new TemporaryFolder();
+
 	private static class MockStatus extends InMemory {
 		public MockStatus(RunConfig config) {
 			super(logger, config);
@@ -35,8 +46,9 @@ public class LinkCheckerTest {
 				config,
 				previousStatus.statuses,
 				previousStatus.urls,
-				previousStatus.reverseLinks,
-				previousStatus.invalidUrls
+				previousStatus.invalidUrls,
+				previousStatus.validators,
+				previousStatus.outlinks
 			);
 		}
 
@@ -56,7 +68,7 @@ public class LinkCheckerTest {
 		private final Map<String, Result> stubs;
 		private final long sleep;
 		private final Map<URI, AtomicInteger> fetchCounts = new HashMap<>();
-
+		private final Set<URI> notModified = new HashSet<>();
 
 		public MockFetcher(long sleep, Logger logger, Map<String, Result> stubs) {
 			super(logger, null, null, null);
@@ -86,6 +98,18 @@ public class LinkCheckerTest {
 			return stubs.get(url.toString());
 		}
 
+		@Override
+		public Result fetch(CloseableHttpClient httpClient, URI url, Validators validators) {
+			Result result = fetch(httpClient, url);
+			if (result.getValidators() != null && result.getValidators().getEtag().equals(validators.getEtag())) {
+				synchronized (notModified) {
+					notModified.add(url);
+				}
+				return Result.notModified(url);
+			}
+			return result;
+		}
+
 		public MockFetcher setStatus(URI s, int statusCode) {
 			final String strUrl = s.toString();
 			stubs.put(strUrl, new Fetcher.Result(s, statusCode, stubs.get(strUrl).getReferredLinks(), stubs.get(strUrl).getInvalidLinks()));
@@ -103,6 +127,10 @@ public class LinkCheckerTest {
 		public Map<URI, AtomicInteger> getFetchCounts() {
 			return fetchCounts;
 		}
+
+		public boolean wasNotModified(URI uri) {
+			return notModified.contains(uri);
+		}
 	}
 
 	@Test
@@ -113,6 +141,22 @@ public class LinkCheckerTest {
 		testRunWithInitialState(initialState);
 	}
 
+	@Test
+	public void testRunInCompactMemory() throws NoSuchAlgorithmException, KeyStoreException, KeyManagementException, InterruptedException {
+		Status initialState = new CompactInMemory(logger, new MockRunConfig());
+
+		testRunWithInitialState(initialState);
+		testRunWithInitialState(initialState);
+	}
+
+	@Test
+	public void testRunOnDisk() throws NoSuchAlgorithmException, KeyStoreException, KeyManagementException, InterruptedException, IOException {
+		try (OnDisk initialState = new OnDisk(logger, new MockRunConfig(), dataDir.getRoot().toPath())) {
+			testRunWithInitialState(initialState);
+			testRunWithInitialState(initialState);
+		}
+	}
+
 	@Test
 	public void testRunInRedis() throws NoSuchAlgorithmException, KeyStoreException, KeyManagementException, InterruptedException, IOException {
 		try (Redis.Managed redis = Redis.connect("localhost", 6379)) {
@@ -401,6 +445,189 @@ public class LinkCheckerTest {
 		Assert.assertEquals(200, (int)status.statuses.get(URI.create("http://anotherhost/somelink")));
 	}
 
+	@Test
+	public void testRevalidateInMemory() throws NoSuchAlgorithmException, KeyStoreException, KeyManagementException, InterruptedException {
+		MockStatus initialState = new MockStatus(new MockRunConfig());
+		testRevalidate(config -> new MockStatus(config, initialState));
+	}
+
+	@Test
+	public void testRevalidateInCompactMemory() throws NoSuchAlgorithmException, KeyStoreException, KeyManagementException, InterruptedException {
+		Status initialState = new CompactInMemory(logger, new MockRunConfig());
+		testRevalidate(config -> new MockStatus(config, initialState));
+	}
+
+	@Test
+	public void testRevalidateOnDisk() throws NoSuchAlgorithmException, KeyStoreException, KeyManagementException, InterruptedException, IOException {
+		try (OnDisk initialState = new OnDisk(logger, new MockRunConfig(), dataDir.getRoot().toPath())) {
+			testRevalidate(config -> new MockStatus(config, initialState));
+		}
+	}
+
+	@Test
+	public void testRevalidateInRedis() throws NoSuchAlgorithmException, KeyStoreException, KeyManagementException, InterruptedException, IOException {
+		try (Redis.Managed redis = Redis.connect("localhost", 6379)) {
+			testRevalidate(config -> {
+				try {
+					return config.createStatus(redis);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+		}
+	}
+
+	private void testRevalidate(Function<RunConfig, Status> createStatus) throws KeyStoreException, NoSuchAlgorithmException, KeyManagementException, InterruptedException {
+		URI home = URI.create("http://localhost:8080/");
+		URI about = URI.create("http://localhost:8080/about");
+		URI missing = URI.create("http://localhost:8080/missing");
+		final MockFetcher fetcher = new MockFetcher(
+			0L,
+			logger,
+			new HashMap<>() {{
+				put(home.toString(), new Result(home, 200, new HashSet<>(Set.of(about, missing)), new HashSet<>(), new Validators("\"v1\"", null)));
+				put(about.toString(), new Result(about, 200, new HashSet<>(Set.of(home)), new HashSet<>()));
+				put(missing.toString(), new Result(missing, 404, null, null));
+			}}
+		);
+
+		MockRunConfig config = new MockRunConfig("--reset", "http://localhost:8080");
+		Status status = createStatus.apply(config);
+		new LinkChecker(config, status, fetcher).run();
+
+		Assert.assertEquals(3, status.statuses.size());
+		Assert.assertEquals(404, (int)status.statuses.get(missing));
+		Assert.assertFalse(fetcher.wasNotModified(home));
+
+		// the page referring to the missing link didn't change; its stored links are rechecked
+		config = new MockRunConfig("--recheck", "http://localhost:8080");
+		status = createStatus.apply(config);
+		Assert.assertEquals(Set.of(home), new HashSet<>(status.urls));
+		new LinkChecker(config, status, fetcher).run();
+
+		Assert.assertTrue(fetcher.wasNotModified(home));
+		Assert.assertEquals(1, status.numNotModified());
+		Assert.assertEquals(2, fetcher.getFetchCount(missing));
+		Assert.assertEquals(1, fetcher.getFetchCount(about));
+		Assert.assertEquals(404, (int)status.statuses.get(missing));
+		Assert.assertEquals(Set.of(home), status.getReferers(missing));
+
+		// the stored links survive a page that wasn't modified, so they can be used again
+		fetcher.setStatus(missing, 200);
+		config = new MockRunConfig("--recheck", "http://localhost:8080");
+		status = createStatus.apply(config);
+		new LinkChecker(config, status, fetcher).run();
+
+		Assert.assertEquals(1, status.numNotModified());
+		Assert.assertEquals(3, fetcher.getFetchCount(missing));
+		Assert.assertEquals(200, (int)status.statuses.get(missing));
+		Assert.assertEquals(3, status.statuses.size());
+
+		// without revalidation, the page is fetched in full
+		fetcher.setStatus(missing, 500);
+		config = new MockRunConfig("--reset", "http://localhost:8080");
+		status = createStatus.apply(config);
+		new LinkChecker(config, status, fetcher).run();
+		config = new MockRunConfig("--recheck", "--no-revalidate", "http://localhost:8080");
+		status = createStatus.apply(config);
+		Assert.assertNull(status.getValidators(home));
+		new LinkChecker(config, status, fetcher).run();
+
+		Assert.assertEquals(0, status.numNotModified());
+		Assert.assertEquals(5, fetcher.getFetchCount(home));
+		Assert.assertEquals(500, (int)status.statuses.get(missing));
+	}
+
+	@Test
+	public void testExternalResultCacheOnDisk() throws NoSuchAlgorithmException, KeyStoreException, KeyManagementException, InterruptedException, IOException {
+		// each run opens the directory again, like separate processes would
+		OnDisk[] opened = new OnDisk[1];
+		try {
+			testExternalResultCache(config -> {
+				try {
+					if (opened[0] != null) {
+						opened[0].close();
+					}
+					opened[0] = new OnDisk(logger, config, dataDir.getRoot().toPath());
+					return opened[0];
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+		} finally {
+			opened[0].close();
+		}
+	}
+
+	@Test
+	public void testExternalResultCacheInRedis() throws NoSuchAlgorithmException, KeyStoreException, KeyManagementException, InterruptedException, IOException {
+		try (Redis.Managed redis = Redis.connect("localhost", 6379)) {
+			testExternalResultCache(config -> {
+				try {
+					return config.createStatus(redis);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+		}
+	}
+
+	private void testExternalResultCache(Function<RunConfig, Status> openStatus) throws KeyStoreException, NoSuchAlgorithmException, KeyManagementException, InterruptedException {
+		URI home = URI.create("http://localhost:8080/");
+		URI working = URI.create("http://external/working");
+		URI broken = URI.create("http://external/broken");
+		final MockFetcher fetcher = new MockFetcher(
+			0L,
+			logger,
+			new HashMap<>() {{
+				put(home.toString(), new Result(home, 200, new HashSet<>(Set.of(working, broken)), new HashSet<>()));
+				put(working.toString(), new Result(working, 200, null, null));
+				put(broken.toString(), new Result(broken, 404, null, null));
+			}}
+		);
+
+		Status status = run(openStatus, fetcher, "--reset", "--clear-cache", "--cache-ttl=60", "--follow-from-local", "http://localhost:8080");
+		Assert.assertEquals(2, status.externalResults.numLookups());
+		Assert.assertEquals(0, status.externalResults.numHits());
+		Assert.assertEquals(1, fetcher.getFetchCount(working));
+		Assert.assertEquals(1, fetcher.getFetchCount(broken));
+
+		// both are reused; errors expire sooner, but not within the TTL of successes
+		status = run(openStatus, fetcher, "--reset", "--cache-ttl=60", "--follow-from-local", "http://localhost:8080");
+		Assert.assertEquals(2, status.externalResults.numHits());
+		Assert.assertEquals(100f, status.externalResults.getHitRate(), 0.1f);
+		Assert.assertEquals(2, fetcher.getFetchCount(home));
+		Assert.assertEquals(1, fetcher.getFetchCount(working));
+		Assert.assertEquals(1, fetcher.getFetchCount(broken));
+		Assert.assertEquals(200, (int)status.statuses.get(working));
+		Assert.assertEquals(404, (int)status.statuses.get(broken));
+		Assert.assertEquals(Set.of(home), status.getReferers(broken));
+
+		// a recheck doesn't take the failure from the cache
+		fetcher.setStatus(broken, 200);
+		status = run(openStatus, fetcher, "--recheck", "--cache-ttl=60", "--follow-from-local", "http://localhost:8080");
+		Assert.assertEquals(2, fetcher.getFetchCount(broken));
+		Assert.assertEquals(200, (int)status.statuses.get(broken));
+
+		status = run(openStatus, fetcher, "--reset", "--cache-ttl=60", "--follow-from-local", "http://localhost:8080");
+		Assert.assertEquals(2, status.externalResults.numHits());
+		Assert.assertEquals(2, fetcher.getFetchCount(broken));
+		Assert.assertEquals(200, (int)status.statuses.get(broken));
+
+		// without a TTL, the cache isn't used
+		status = run(openStatus, fetcher, "--reset", "--follow-from-local", "http://localhost:8080");
+		Assert.assertNull(status.externalResults);
+		Assert.assertEquals(2, fetcher.getFetchCount(working));
+		Assert.assertEquals(3, fetcher.getFetchCount(broken));
+	}
+
+	private static Status run(Function<RunConfig, Status> openStatus, Fetcher fetcher, String... args) throws KeyStoreException, NoSuchAlgorithmException, KeyManagementException, InterruptedException {
+		MockRunConfig config = new MockRunConfig(args);
+		Status status = openStatus.apply(config);
+		new LinkChecker(config, status, fetcher).run();
+		return status;
+	}
+
 	@Test
 	public void testRunConcurrent() throws NoSuchAlgorithmException, KeyStoreException, KeyManagementException, InterruptedException {
 		final MockRunConfig config = new MockRunConfig("--reset", "http://localhost:8080");
@@ -429,6 +656,111 @@ public class LinkCheckerTest {
 		Assert.assertEquals(urls.size() + 1, status.statuses.size());
 	}
 
+	/**
+	 * A page with a large number of links shouldn't turn all of them into scheduled tasks at once.
+	 */
+	@Test
+	public void testScheduledIsBounded() throws Exception {
+		final MockRunConfig config = new MockRunConfig("--reset", "--threads=2", "http://localhost:8080");
+		final Status status = new CompactInMemory(logger, config);
+
+		HashMap<String, Result> stubs = new HashMap<>();
+		Set<URI> urls = new HashSet<>();
+		for (int i = 0; i < 20_000; i++) {
+			URI url = URI.create("http://localhost:8080/page/" + i);
+			urls.add(url);
+			stubs.put(url.toString(), new Result(url, 200, new HashSet<>(), new HashSet<>()));
+		}
+		stubs.put("http://localhost:8080/", new Result(URI.create("http://localhost:8080/"), 200, urls, new HashSet<>()));
+
+		LinkChecker[] checker = new LinkChecker[1];
+		AtomicInteger maxScheduled = new AtomicInteger();
+		checker[0] = new LinkChecker(config, status, new MockFetcher(0L, logger, stubs) {
+			@Override
+			public Result fetch(CloseableHttpClient httpClient, URI url) {
+				maxScheduled.accumulateAndGet(checker[0].scheduler.size(), Math::max);
+				return super.fetch(httpClient, url);
+			}
+		});
+		checker[0].run();
+
+		Assert.assertEquals(urls.size() + 1, status.statuses.size());
+		Assert.assertTrue(maxScheduled.get() > 2);
+		Assert.assertTrue(maxScheduled.get() + " scheduled", maxScheduled.get() <= checker[0].getMaxScheduled());
+	}
+
+	@Test
+	public void testRunConcurrentInCompactMemory() throws NoSuchAlgorithmException, KeyStoreException, KeyManagementException, InterruptedException {
+		final MockRunConfig config = new MockRunConfig("--reset", "http://localhost:8080");
+		final Status status = new CompactInMemory(logger, config);
+
+		Set<URI> urls = new HashSet<>();
+		for (int i = 0; i < 1500; i ++) {
+			urls.add(URI.create("http://localhost:8080/" + randomString()));
+		}
+
+		new LinkChecker(config, status, new MockFetcher(0L, logger, getStubs(urls))).run();
+
+		Assert.assertTrue(status.statuses.keySet().containsAll(urls));
+		Assert.assertEquals(urls.size() + 1, status.statuses.size());
+		Map<URI, Set<URI>> referers = status.getReferers(urls);
+		for (URI url : urls) {
+			Assert.assertEquals(urls.size() + 1, referers.get(url).size());
+		}
+	}
+
+	@Test
+	public void testRunConcurrentWithVirtualThreads() throws NoSuchAlgorithmException, KeyStoreException, KeyManagementException, InterruptedException {
+		Assume.assumeTrue(Runtime.version().feature() >= 21);
+
+		final MockRunConfig config = new MockRunConfig("--reset", "--virtual-threads", "--max-in-flight=200", "http://localhost:8080");
+		final MockStatus status = new MockStatus(config);
+
+		Set<URI> urls = new HashSet<>();
+		for (int i = 0; i < 1500; i ++) {
+			urls.add(URI.create("http://localhost:8080/" + randomString()));
+		}
+
+		LinkChecker c = new LinkChecker(
+			config,
+			status,
+			new MockFetcher(1L, logger, getStubs(urls))
+		);
+
+		c.run();
+
+		Assert.assertTrue(status.statuses.keySet().containsAll(urls));
+		Assert.assertEquals(urls.size() + 1, status.statuses.size());
+	}
+
+	@Test
+	public void testRetry() throws NoSuchAlgorithmException, KeyStoreException, KeyManagementException, InterruptedException {
+		final MockRunConfig config = new MockRunConfig("--reset", "--retry-delay-ms=10", "--max-retries=5xx:3", "http://localhost:8080");
+		final MockStatus status = new MockStatus(config);
+		URI flaky = URI.create("http://localhost:8080/flaky");
+		URI down = URI.create("http://localhost:8080/down");
+		URI missing = URI.create("http://localhost:8080/missing");
+
+		HashMap<String, Result> stubs = getStubs(Set.of(flaky, down, missing));
+		stubs.put(down.toString(), new Result(down, 503, null, null));
+		stubs.put(missing.toString(), new Result(missing, 404, null, null));
+		MockFetcher fetcher = new MockFetcher(0L, logger, stubs) {
+			@Override
+			public Result fetch(CloseableHttpClient httpClient, URI url) {
+				Result result = super.fetch(httpClient, url);
+				return url.equals(flaky) && getFetchCount(url) <= 2 ? new Result(url, 502, null, null) : result;
+			}
+		};
+		new LinkChecker(config, status, fetcher).run();
+
+		Assert.assertEquals(Integer.valueOf(200), status.statuses.get(flaky));
+		Assert.assertEquals(3, fetcher.getFetchCount(flaky));
+		Assert.assertEquals(Integer.valueOf(503), status.statuses.get(down));
+		Assert.assertEquals(4, fetcher.getFetchCount(down));
+		Assert.assertEquals(Integer.valueOf(404), status.statuses.get(missing));
+		Assert.assertEquals(1, fetcher.getFetchCount(missing));
+	}
+
 	private HashMap<String, Result> getStubs(Set<URI> urls) {
 		return new HashMap<>() {{
 			put(
@@ -0,0 +1,185 @@
+package nl.melp.linkchecker;
+
+import nl.melp.linkchecker.Fetcher.Result;
+import nl.melp.linkchecker.Fetcher.Validators;
+import nl.melp.redis.Redis;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Checks a SyntheticSite end to end with LinkChecker, and reports the pages and urls per second, the fetch latencies
+ * and the peak heap usage. The options of the site are given as --site-*; all other arguments are passed on to the link
+ * checker, along with --reset and the url of the site. Without a backend option, --in-memory is used, and without a
+ * --follow-* option, --follow-from-local. Use --redis-host=localhost for Redis; other host names don't resolve.
+ *
+ * Usage: java -cp 'lib/*:bin' nl.melp.linkchecker.LoadHarness [--site-pages=N] [--site-fan-out=N]
+ *     [--site-external-ratio=R] [--site-broken-ratio=R] [--site-external-hosts=N] [--site-slow-hosts=N]
+ *     [--site-slow-ms=MS] [--site-timeout-hosts=N] [--site-latency-ms=MS] [--site-seed=N] [LINKCHECKER OPTIONS...]
+ *
+ * E.g. a site with some 300K links: --site-pages=20000 --site-fan-out=15 --threads=80
+ */
+public class LoadHarness {
+	private static final Logger logger = LoggerFactory.getLogger(LoadHarness.class);
+
+	/**
+	 * The durations of all fetches, in nanoseconds.
+	 */
+	private static class Latencies {
+		private long[] samples = new long[1024];
+		private int size = 0;
+
+		synchronized void add(long nanos) {
+			if (size == samples.length) {
+				samples = Arrays.copyOf(samples, size * 2);
+			}
+			samples[size++] = nanos;
+		}
+
+		synchronized long percentile(double p) {
+			if (size == 0) {
+				return 0;
+			}
+			long[] sorted = Arrays.copyOf(samples, size);
+			Arrays.sort(sorted);
+			return sorted[(int)Math.min(size - 1, Math.ceil(p / 100 * size) - 1)];
+		}
+
+		synchronized int size() {
+			return size;
+		}
+	}
+
+	private static class TimedFetcher extends Fetcher {
+		private final Latencies latencies;
+
+		TimedFetcher(RunConfig config, Latencies latencies) {
+			super(logger, config, config.createExtractor(), new URIResolver(logger));
+			this.latencies = latencies;
+		}
+
+		@Override
+		public Result fetch(CloseableHttpClient httpClient, URI url, Validators validators) {
+			long start = System.nanoTime();
+			try {
+				return super.fetch(httpClient, url, validators);
+			} finally {
+				latencies.add(System.nanoTime() - start);
+			}
+		}
+	}
+
+	private static class TimedAsyncFetcher extends AsyncFetcher {
+		private final Latencies latencies;
+
+		TimedAsyncFetcher(RunConfig config, Latencies latencies) {
+			super(logger, config, config.createExtractor(), new URIResolver(logger));
+			this.latencies = latencies;
+		}
+
+		@Override
+		public CompletableFuture<Result> fetchAsync(URI url, Validators validators) {
+			long start = System.nanoTime();
+			return super.fetchAsync(url, validators).whenComplete((result, e) -> latencies.add(System.nanoTime() - start));
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		SyntheticSite.Shape shape = new SyntheticSite.Shape();
+		List<String> checkerArgs = new ArrayList<>(List.of("--reset"));
+		for (String arg : args) {
+			if (!arg.startsWith("--site-")) {
+				checkerArgs.add(arg);
+				continue;
+			}
+			String[] split = arg.substring(7).split("=", 2);
+			switch (split[0]) {
+				case "pages" -> shape.pages = Integer.parseInt(split[1]);
+				case "fan-out" -> shape.fanOut = Integer.parseInt(split[1]);
+				case "external-ratio" -> shape.externalRatio = Double.parseDouble(split[1]);
+				case "broken-ratio" -> shape.brokenRatio = Double.parseDouble(split[1]);
+				case "external-hosts" -> shape.externalHosts = Integer.parseInt(split[1]);
+				case "slow-hosts" -> shape.slowHosts = Integer.parseInt(split[1]);
+				case "slow-ms" -> shape.slowMs = Long.parseLong(split[1]);
+				case "timeout-hosts" -> shape.timeoutHosts = Integer.parseInt(split[1]);
+				case "latency-ms" -> shape.latencyMs = Long.parseLong(split[1]);
+				case "seed" -> shape.seed = Long.parseLong(split[1]);
+				default -> throw new IllegalArgumentException("Unknown option " + arg);
+			}
+		}
+		if (checkerArgs.stream().noneMatch(a -> a.startsWith("--in-memory") || a.startsWith("--data-dir") || a.startsWith("--redis-"))) {
+			checkerArgs.add("--in-memory");
+		}
+		if (checkerArgs.stream().noneMatch(a -> a.startsWith("--follow-") || a.equals("--no-follow"))) {
+			// like run.sh, so the external links are checked too
+			checkerArgs.add("--follow-from-local");
+		}
+
+		try (SyntheticSite site = new SyntheticSite(shape)) {
+			checkerArgs.add(site.getStartUrl());
+			RunConfig config = new RunConfig(logger, checkerArgs.toArray(new String[0]));
+			Latencies latencies = new Latencies();
+
+			System.out.println(shape);
+			System.out.println(String.join(" ", checkerArgs));
+			for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+				pool.resetPeakUsage();
+			}
+
+			long start = System.nanoTime();
+			Status status;
+			Redis.Managed redis = config.useRedisBackend() ? config.connect() : null;
+			try {
+				status = config.createStatus(redis);
+				Fetcher fetcher = config.useAsyncFetcher() ? new TimedAsyncFetcher(config, latencies) : new TimedFetcher(config, latencies);
+				new LinkChecker(config, status, fetcher).run();
+				long elapsed = System.nanoTime() - start;
+
+				long errors = status.statuses.values().stream().filter(LinkChecker::isErrorStatus).count();
+				double seconds = elapsed / 1_000_000_000.0;
+				System.out.printf("%d pages, %d urls checked (%d errors) in %.1fs%n", site.numPageRequests(), status.numChecked(), errors, seconds);
+				System.out.printf("%.1f pages/s, %.1f urls/s%n", site.numPageRequests() / seconds, status.numChecked() / seconds);
+				System.out.printf(
+					"fetch latency: p50 %.1f ms, p99 %.1f ms, max %.1f ms (%d fetches)%n",
+					latencies.percentile(50) / 1_000_000.0,
+					latencies.percentile(99) / 1_000_000.0,
+					latencies.percentile(100) / 1_000_000.0,
+					latencies.size()
+				);
+				System.out.printf("peak heap: %d MB%n", peakHeap() / 1024 / 1024);
+
+				if (status instanceof Closeable) {
+					((Closeable)status).close();
+				}
+			} finally {
+				if (redis != null) {
+					redis.close();
+				}
+			}
+		}
+		System.exit(0);
+	}
+
+	/**
+	 * The sum of the peak usage of the heap pools since the run started, which is a bit more than the actual peak.
+	 */
+	private static long peakHeap() {
+		long peak = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) {
+				peak += pool.getPeakUsage().getUsed();
+			}
+		}
+		return peak;
+	}
+}
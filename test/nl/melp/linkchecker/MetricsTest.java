@@ -0,0 +1,106 @@
+package nl.melp.linkchecker;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+public class MetricsTest {
+	@Test
+	public void testHistogram() {
+		Metrics metrics = new Metrics();
+		for (int i = 0; i < 98; i++) {
+			metrics.record(Metrics.Phase.TTFB, 3_000_000);
+		}
+		metrics.record(Metrics.Phase.TTFB, 200_000_000);
+		metrics.record(Metrics.Phase.TTFB, 120_000_000_000L);
+
+		Metrics.Histogram histogram = metrics.get(Metrics.Phase.TTFB);
+		Assert.assertEquals(100, histogram.getCount());
+		Assert.assertEquals((98 * 3 + 200 + 120_000) / 100.0, histogram.getMeanMs(), 0.001);
+		Assert.assertEquals(5, histogram.getQuantileMs(0.5), 0.001);
+		Assert.assertEquals(250, histogram.getQuantileMs(0.99), 0.001);
+		Assert.assertEquals(Double.POSITIVE_INFINITY, histogram.getQuantileMs(1), 0.001);
+		Assert.assertEquals(0, metrics.get(Metrics.Phase.DNS).getQuantileMs(0.5), 0.001);
+		Assert.assertEquals("mean ms per phase: ttfb 1204.9", metrics.summary());
+	}
+
+	@Test
+	public void testPrometheus() throws Exception {
+		Metrics metrics = new Metrics();
+		metrics.record(Metrics.Phase.CONNECT, 2_000_000);
+		metrics.record(Metrics.Phase.CONNECT, 40_000_000);
+		metrics.countResponse(URI.create("http://example.org/a"), 200);
+		metrics.countResponse(URI.create("http://example.org/b"), 404);
+		metrics.countResponse(URI.create("http://other.example.org/"), 0);
+
+		String text = metrics.toPrometheus();
+		Assert.assertTrue(text.contains("linkchecker_phase_seconds_bucket{phase=\"connect\",le=\"0.001\"} 0\n"));
+		Assert.assertTrue(text.contains("linkchecker_phase_seconds_bucket{phase=\"connect\",le=\"0.0025\"} 1\n"));
+		Assert.assertTrue(text.contains("linkchecker_phase_seconds_bucket{phase=\"connect\",le=\"0.05\"} 2\n"));
+		Assert.assertTrue(text.contains("linkchecker_phase_seconds_bucket{phase=\"connect\",le=\"+Inf\"} 2\n"));
+		Assert.assertTrue(text.contains("linkchecker_phase_seconds_sum{phase=\"connect\"} 0.042\n"));
+		Assert.assertTrue(text.contains("linkchecker_phase_seconds_count{phase=\"dns\"} 0\n"));
+		Assert.assertTrue(text.contains("linkchecker_responses_total{class=\"2xx\"} 1\n"));
+		Assert.assertTrue(text.contains("linkchecker_responses_total{class=\"4xx\"} 1\n"));
+		Assert.assertTrue(text.contains("linkchecker_responses_total{class=\"none\"} 1\n"));
+		Assert.assertTrue(text.contains("linkchecker_host_responses_total{host=\"example.org\",result=\"ok\"} 1\n"));
+		Assert.assertTrue(text.contains("linkchecker_host_responses_total{host=\"example.org\",result=\"error\"} 1\n"));
+		Assert.assertTrue(text.contains("linkchecker_host_responses_total{host=\"other.example.org\",result=\"error\"} 1\n"));
+
+		HttpServer server = metrics.serve(0);
+		try (InputStream in = new URL("http://localhost:" + server.getAddress().getPort() + "/metrics").openStream()) {
+			Assert.assertEquals(text, new String(in.readAllBytes(), StandardCharsets.UTF_8));
+		} finally {
+			server.stop(0);
+		}
+	}
+
+	@Test
+	public void testJmx() throws Exception {
+		Metrics metrics = new Metrics();
+		metrics.register();
+		try {
+			metrics.countResponse(URI.create("http://example.org/"), 500);
+			ObjectName name = new ObjectName("nl.melp.linkchecker:type=Metrics");
+			Assert.assertEquals(1L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "responses.5xx"));
+			Assert.assertEquals(1L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "host.example.org.errors"));
+
+			// read only, without operations
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			try {
+				server.getAttribute(name, "missing");
+				Assert.fail();
+			} catch (AttributeNotFoundException e) {
+				// expected
+			}
+			try {
+				server.setAttribute(name, new Attribute("responses.5xx", 0L));
+				Assert.fail();
+			} catch (AttributeNotFoundException e) {
+				// expected
+			}
+			Assert.assertEquals(0, server.setAttributes(name, new AttributeList(List.of(new Attribute("responses.5xx", 0L)))).size());
+			try {
+				server.invoke(name, "reset", null, null);
+				Assert.fail();
+			} catch (ReflectionException e) {
+				// expected
+			}
+		} finally {
+			metrics.unregister();
+		}
+	}
+}
@@ -0,0 +1,103 @@
+package nl.melp.linkchecker;
+
+import nl.melp.linkchecker.Fetcher.Result;
+import nl.melp.linkchecker.backend.CompactInMemory;
+import nl.melp.redis.Redis;
+import org.junit.Assert;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.StringWriter;
+import java.net.URI;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+public class ReportTest {
+	private static final Logger logger = LoggerFactory.getLogger(ReportTest.class);
+
+	private static URI url(String path) {
+		return URI.create("http://localhost" + path);
+	}
+
+	private static Status crawled(Status status) {
+		status.add(new Result(url("/"), 200, Set.of(url("/a"), url("/b")), Set.of()));
+		status.add(new Result(url("/b"), 200, Set.of(url("/a")), Set.of("http://\"bad, url")));
+		status.add(new Result(url("/a"), 404, Set.of(), Set.of()));
+		status.flush();
+		return status;
+	}
+
+	private static String report(Status status, Report.Format format, boolean all) throws Exception {
+		StringWriter out = new StringWriter();
+		try (Report report = format.create(out)) {
+			status.report(report, all);
+		}
+		return out.toString();
+	}
+
+	@Test
+	public void testFormats() throws Exception {
+		Status status = crawled(new CompactInMemory(logger, new RunConfig(logger, "--reset", "http://localhost/")));
+
+		String text = report(status, Report.Format.TEXT, false);
+		Assert.assertTrue(text, text.contains("INVALID url ocurred at: http://localhost/b - referred by following urls\n + http://\"bad, url\n"));
+		Assert.assertTrue(text, text.contains("[404] at http://localhost/a (referred by following urls:)\n"));
+		Assert.assertTrue(text, text.contains(" + http://localhost/b\n"));
+		Assert.assertFalse(text, text.contains("[OK]"));
+		Assert.assertTrue(text, text.endsWith(String.format("Success: 2, Errors: 1, Invalids: 1%nTotal number of resolved statuses: 3%n")));
+		Assert.assertTrue(report(status, Report.Format.TEXT, true).contains("[OK] at http://localhost/b"));
+
+		List<String> lines = report(status, Report.Format.JSONL, true).lines().toList();
+		Assert.assertEquals(5, lines.size());
+		Assert.assertEquals("{\"type\":\"invalid\",\"url\":\"http://localhost/b\",\"links\":[\"http://\\\"bad, url\"]}", lines.get(0));
+		Assert.assertTrue(lines.toString(), lines.contains("{\"type\":\"status\",\"url\":\"http://localhost/\",\"status\":200}"));
+		Assert.assertTrue(lines.toString(), lines.stream().anyMatch(l -> l.startsWith("{\"type\":\"status\",\"url\":\"http://localhost/a\",\"status\":404,\"error\":true,\"referers\":[")));
+		Assert.assertEquals("{\"type\":\"summary\",\"success\":2,\"errors\":1,\"invalids\":1,\"checked\":3}", lines.get(4));
+
+		List<String> rows = report(status, Report.Format.CSV, false).lines().toList();
+		Assert.assertEquals("type,url,status,referer", rows.get(0));
+		Assert.assertEquals("invalid,\"http://\"\"bad, url\",,http://localhost/b", rows.get(1));
+		Assert.assertEquals(Set.of("error,http://localhost/a,404,http://localhost/", "error,http://localhost/a,404,http://localhost/b"), new HashSet<>(rows.subList(2, 4)));
+		Assert.assertEquals(4, rows.size());
+
+		String xml = report(status, Report.Format.JUNIT, true);
+		Assert.assertTrue(xml, xml.startsWith("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<testsuite name=\"linkchecker\">\n"));
+		Assert.assertTrue(xml, xml.contains("<testcase classname=\"localhost\" name=\"http://&quot;bad, url\">\n    <failure message=\"invalid url\">at http://localhost/b</failure>"));
+		Assert.assertTrue(xml, xml.contains("<testcase classname=\"localhost\" name=\"http://localhost/a\">\n    <failure message=\"404\">referred by:"));
+		Assert.assertTrue(xml, xml.contains("<testcase classname=\"localhost\" name=\"http://localhost/\"/>"));
+		Assert.assertTrue(xml, xml.endsWith("<system-out>Success: 2, Errors: 1, Invalids: 1, Checked: 3</system-out>\n</testsuite>\n"));
+	}
+
+	@Test
+	public void testRedis() throws Exception {
+		RunConfig config = new RunConfig(logger, "--reset", "--report", "http://localhost/");
+		try (Redis.Managed redis = config.connect()) {
+			Status status = crawled(config.createStatus(redis));
+			// more than a page of the scan
+			for (int i = 0; i < 2500; i++) {
+				status.add(new Result(url("/" + i), i % 500 == 0 ? 500 : 200, Set.of(), Set.of()));
+			}
+			status.flush();
+
+			StringWriter out = new StringWriter();
+			try (Report report = new ReportKeys(redis, Report.Format.JSONL.create(out))) {
+				status.report(report, false);
+			}
+			List<String> lines = out.toString().lines().toList();
+			Assert.assertEquals(1 + 1 + 5 + 1, lines.size());
+			Assert.assertEquals("{\"type\":\"summary\",\"success\":2497,\"errors\":6,\"invalids\":1,\"checked\":2503}", lines.get(lines.size() - 1));
+
+			Assert.assertEquals(7L, (long)redis.<Long>call("HLEN", ReportKeys.STATUSES));
+			Assert.assertEquals("404", new String(redis.<byte[]>call("HGET", ReportKeys.STATUSES, "http://localhost/a")));
+			Assert.assertEquals("0", new String(redis.<byte[]>call("HGET", ReportKeys.STATUSES, "http://\"bad, url")));
+			Assert.assertEquals("http://localhost/b", new String(redis.<byte[]>call("HGET", ReportKeys.REFERERS, "http://\"bad, url")));
+			Assert.assertEquals(
+				Set.of("http://localhost/", "http://localhost/b"),
+				Set.of(new String(redis.<byte[]>call("HGET", ReportKeys.REFERERS, "http://localhost/a")).split("\n"))
+			);
+			Assert.assertEquals("", new String(redis.<byte[]>call("HGET", ReportKeys.REFERERS, "http://localhost/1000")));
+		}
+	}
+}
@@ -0,0 +1,70 @@
+package nl.melp.linkchecker;
+
+import nl.melp.linkchecker.Fetcher.Result;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.Assert;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.URI;
+import java.util.Date;
+import java.util.Map;
+
+public class RetryPolicyTest {
+	private static final Logger logger = LoggerFactory.getLogger(RetryPolicyTest.class);
+	private static final URI url = URI.create("http://example.org/");
+
+	@Test
+	public void testBackoff() {
+		RetryPolicy policy = new RetryPolicy(Map.of(RetryPolicy.NO_RESPONSE, 1, RetryPolicy.SERVER_ERROR, 3), 1000, 3000);
+
+		long delay = policy.getDelayMs(new Result(url, 503, null, null), 0);
+		Assert.assertTrue(String.valueOf(delay), delay >= 500 && delay <= 1000);
+		delay = policy.getDelayMs(new Result(url, 503, null, null), 1);
+		Assert.assertTrue(String.valueOf(delay), delay >= 1000 && delay <= 2000);
+		delay = policy.getDelayMs(new Result(url, 503, null, null), 2);
+		Assert.assertTrue(String.valueOf(delay), delay >= 1500 && delay <= 3000);
+		Assert.assertEquals(-1, policy.getDelayMs(new Result(url, 503, null, null), 3));
+
+		Assert.assertTrue(policy.getDelayMs(new Result(url, 0, null, null), 0) >= 0);
+		Assert.assertEquals(-1, policy.getDelayMs(new Result(url, 0, null, null), 1));
+		Assert.assertEquals(-1, policy.getDelayMs(new Result(url, 429, null, null), 0));
+		Assert.assertEquals(-1, policy.getDelayMs(new Result(url, 500, null, null), 0));
+		Assert.assertEquals(-1, policy.getDelayMs(new Result(url, 404, null, null), 0));
+		Assert.assertEquals(-1, policy.getDelayMs(Result.cached(url, 503), 0));
+	}
+
+	@Test
+	public void testRetryAfter() throws Exception {
+		BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 429, null);
+		Assert.assertEquals(-1, Fetcher.retryAfterMs(response));
+		response.setHeader("Retry-After", " 120 ");
+		Assert.assertEquals(120_000, Fetcher.retryAfterMs(response));
+		response.setHeader("Retry-After", DateUtils.formatDate(new Date(System.currentTimeMillis() + 60_000)));
+		Assert.assertTrue(Math.abs(Fetcher.retryAfterMs(response) - 60_000) < 2_000);
+		response.setHeader("Retry-After", DateUtils.formatDate(new Date(System.currentTimeMillis() - 60_000)));
+		Assert.assertEquals(0, Fetcher.retryAfterMs(response));
+		response.setHeader("Retry-After", "soon");
+		Assert.assertEquals(-1, Fetcher.retryAfterMs(response));
+
+		RetryPolicy policy = new RetryPolicy(Map.of(RetryPolicy.TOO_MANY_REQUESTS, 3), 1000, 60_000);
+		Fetcher fetcher = new Fetcher(logger, new RunConfig(logger, "http://example.org/"), null, null);
+		fetcher.setProbeRetryAfter(url, 5000);
+		Assert.assertEquals(5000, policy.getDelayMs(fetcher.createProbeResult(url, 429), 2));
+		Assert.assertEquals(-1, fetcher.createProbeResult(url, 429).getRetryAfterMs());
+		fetcher.setProbeRetryAfter(url, 120_000);
+		Assert.assertEquals(-1, policy.getDelayMs(fetcher.createProbeResult(url, 429), 0));
+	}
+
+	@Test
+	public void testConfig() throws Exception {
+		RetryPolicy policy = new RunConfig(logger, "--max-retries=0,429:1", "http://example.org/").createRetryPolicy();
+		Assert.assertEquals(-1, policy.getDelayMs(new Result(url, 0, null, null), 0));
+		Assert.assertEquals(-1, policy.getDelayMs(new Result(url, 503, null, null), 0));
+		Assert.assertTrue(policy.getDelayMs(new Result(url, 429, null, null), 0) >= 0);
+		Assert.assertEquals(-1, policy.getDelayMs(new Result(url, 429, null, null), 1));
+	}
+}
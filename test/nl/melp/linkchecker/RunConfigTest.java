@@ -18,4 +18,13 @@ public class RunConfigTest {
 		Assert.assertFalse(r.shouldFollowLinks(URI.create("http://localhost:8080"), URI.create("http://anotherhost")));
 		Assert.assertTrue(r.shouldExtractLinks(URI.create("http://localhost:8080")));
 	}
+
+	@Test
+	public void testCacheErrorTtl() throws Exception {
+		Assert.assertEquals(0, new RunConfig(logger, "--cache-error-ttl=60", "http://localhost/").getCacheErrorTtlMs());
+		Assert.assertEquals(60_000, new RunConfig(logger, "--cache-ttl=60", "http://localhost/").getCacheErrorTtlMs());
+		Assert.assertEquals(3_600_000, new RunConfig(logger, "--cache-ttl=86400", "http://localhost/").getCacheErrorTtlMs());
+		Assert.assertEquals(600_000, new RunConfig(logger, "--cache-ttl=86400", "--cache-error-ttl=600", "http://localhost/").getCacheErrorTtlMs());
+		Assert.assertEquals(60_000, new RunConfig(logger, "--cache-ttl=60", "--cache-error-ttl=600", "http://localhost/").getCacheErrorTtlMs());
+	}
 }
@@ -0,0 +1,193 @@
+package nl.melp.linkchecker;
+
+import com.sun.net.httpserver.HttpServer;
+import nl.melp.linkchecker.Fetcher.Result;
+import nl.melp.linkchecker.backend.CompactInMemory;
+import nl.melp.linkchecker.backend.OnDisk;
+import nl.melp.redis.Redis;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPOutputStream;
+
+public class SitemapsTest {
+	private static final Logger logger = LoggerFactory.getLogger(SitemapsTest.class);
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final Map<String, byte[]> files = new HashMap<>();
+	private HttpServer server;
+
+	private String serve() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/", exchange -> {
+			byte[] body = files.get(exchange.getRequestURI().getPath());
+			exchange.sendResponseHeaders(body == null ? 404 : 200, body == null ? -1 : body.length);
+			if (body != null) {
+				try (OutputStream out = exchange.getResponseBody()) {
+					out.write(body);
+				}
+			}
+			exchange.close();
+		});
+		server.start();
+		return "http://localhost:" + server.getAddress().getPort();
+	}
+
+	@After
+	public void stopServer() {
+		if (server != null) {
+			server.stop(0);
+		}
+	}
+
+	private static byte[] gzip(String s) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (GZIPOutputStream out = new GZIPOutputStream(bytes)) {
+			out.write(s.getBytes(StandardCharsets.UTF_8));
+		}
+		return bytes.toByteArray();
+	}
+
+	private static String urlset(String... urls) {
+		return "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+			+ "<urlset xmlns=\"http://www.sitemaps.org/schemas/sitemap/0.9\" xmlns:image=\"http://www.google.com/schemas/sitemap-image/1.1\">\n"
+			+ String.join("\n", urls)
+			+ "\n</urlset>\n";
+	}
+
+	private static String url(String loc, String lastmod) {
+		return "  <url><loc>" + loc + "</loc>" + (lastmod == null ? "" : "<lastmod>" + lastmod + "</lastmod>") + "</url>";
+	}
+
+	private static Set<URI> queued(Status status) {
+		Set<URI> urls = new HashSet<>();
+		status.urls.forEach(urls::add);
+		return urls;
+	}
+
+	@Test
+	public void testSeed() throws Exception {
+		String base = serve();
+		files.put("/sitemap.xml", (
+			"<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<sitemapindex xmlns=\"http://www.sitemaps.org/schemas/sitemap/0.9\">\n"
+				+ "  <sitemap><loc>" + base + "/pages.xml.gz</loc><lastmod>2020-01-01</lastmod></sitemap>\n"
+				+ "  <sitemap><loc>/posts.xml</loc></sitemap>\n"
+				+ "  <sitemap><loc>" + base + "/sitemap.xml</loc></sitemap>\n"
+				+ "</sitemapindex>\n"
+		).getBytes(StandardCharsets.UTF_8));
+		files.put("/pages.xml.gz", gzip(urlset(
+			url(base, null),
+			url(base + "/a?x=1&amp;y=2", null),
+			"  <url><loc>\n    " + base + "/b\n  </loc><image:image><image:loc>" + base + "/b.png</image:loc></image:image></url>"
+		)));
+		files.put("/posts.xml", urlset(url(base + "/c", "2020-01-01T10:00:00+01:00"), url("http://elsewhere.example.org/", null)).getBytes(StandardCharsets.UTF_8));
+
+		RunConfig config = new RunConfig(logger, "--reset", "--follow-local", "--sitemap", base + "/");
+		Assert.assertEquals(List.of(URI.create(base + "/sitemap.xml")), config.getSitemaps());
+		Status status = new CompactInMemory(logger, config);
+		Assert.assertTrue(new Sitemaps(logger, config, status).seed(config.createHttpClient(), config.getSitemaps()));
+		Assert.assertEquals(
+			Set.of(URI.create(base + "/"), URI.create(base + "/a?x=1&y=2"), URI.create(base + "/b"), URI.create(base + "/c")),
+			queued(status)
+		);
+
+		files.remove("/posts.xml");
+		Assert.assertFalse(new Sitemaps(logger, config, status).seed(config.createHttpClient(), config.getSitemaps()));
+	}
+
+	@Test
+	public void testParseLastmod() {
+		Assert.assertEquals(-1, Sitemaps.parseLastmod(null));
+		Assert.assertEquals(-1, Sitemaps.parseLastmod("2020-01"));
+		Assert.assertEquals(1577869200000L, Sitemaps.parseLastmod("2020-01-01T10:00:00+01:00"));
+		Assert.assertEquals(1577869200000L, Sitemaps.parseLastmod("2020-01-01T10:00+01:00"));
+		Assert.assertEquals(1577869200500L, Sitemaps.parseLastmod("2020-01-01T09:00:00.5Z"));
+		// the end of the day anywhere
+		Assert.assertEquals(1577966400000L, Sitemaps.parseLastmod("2020-01-01"));
+	}
+
+	/**
+	 * Checks all urls of the sitemap, then changes it and seeds a recheck, which should only queue the pages that
+	 * are new or have a lastmod after the first read.
+	 */
+	private void testLastmod(Backend backend) throws Exception {
+		String base = serve();
+		files.put("/sitemap.xml", urlset(url(base + "/old", "2000-01-01"), url(base + "/changed", "2000-01-01"), url(base + "/unknown", null)).getBytes(StandardCharsets.UTF_8));
+
+		RunConfig config = new RunConfig(logger, "--reset", "--sitemap", base + "/");
+		Status status = backend.open(config);
+		Assert.assertTrue(new Sitemaps(logger, config, status).seed(config.createHttpClient(), config.getSitemaps()));
+		Assert.assertTrue(status.getSitemapReadMs() > 0);
+		for (String path : List.of("/", "/old", "/changed", "/unknown")) {
+			status.add(new Result(URI.create(base + path), 200, Set.of(), Set.of()));
+		}
+		status.flush();
+		backend.close(status);
+
+		files.put("/sitemap.xml", urlset(url(base + "/old", "2000-01-01"), url(base + "/changed", "2100-01-01T00:00:00Z"), url(base + "/unknown", null), url(base + "/new", "2000-01-01")).getBytes(StandardCharsets.UTF_8));
+		config = new RunConfig(logger, "--recheck", "--sitemap", base + "/");
+		status = backend.open(config);
+		Assert.assertTrue(new Sitemaps(logger, config, status).seed(config.createHttpClient(), config.getSitemaps()));
+		Assert.assertEquals(Set.of(URI.create(base + "/changed"), URI.create(base + "/new")), queued(status));
+		Assert.assertEquals(3, status.numChecked());
+		Assert.assertFalse(status.statuses.containsKey(URI.create(base + "/changed")));
+		backend.close(status);
+	}
+
+	private interface Backend {
+		Status open(RunConfig config) throws Exception;
+
+		void close(Status status) throws Exception;
+	}
+
+	@Test
+	public void testLastmodOnDisk() throws Exception {
+		Path dir = folder.getRoot().toPath();
+		testLastmod(new Backend() {
+			@Override
+			public Status open(RunConfig config) throws Exception {
+				return new OnDisk(logger, config, dir);
+			}
+
+			@Override
+			public void close(Status status) throws Exception {
+				((OnDisk)status).close();
+			}
+		});
+	}
+
+	@Test
+	public void testLastmodRedis() throws Exception {
+		try (Redis.Managed redis = new RunConfig(logger).connect()) {
+			testLastmod(new Backend() {
+				@Override
+				public Status open(RunConfig config) throws Exception {
+					return config.createStatus(redis);
+				}
+
+				@Override
+				public void close(Status status) {
+				}
+			});
+		}
+	}
+}
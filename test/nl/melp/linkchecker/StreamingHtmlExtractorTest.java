@@ -0,0 +1,122 @@
+package nl.melp.linkchecker;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+public class StreamingHtmlExtractorTest {
+	private static Logger logger = LoggerFactory.getLogger(StreamingHtmlExtractorTest.class);
+	private static final URI url = URI.create("http://localhost/foo/index.html");
+
+	private final StreamingHtmlExtractor extractor = new StreamingHtmlExtractor(logger, 1024 * 1024);
+
+	/**
+	 * Reads one byte at a time, so every state transition happens on a buffer boundary.
+	 */
+	private static class TricklingInputStream extends FilterInputStream {
+		TricklingInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			return super.read(b, off, Math.min(len, 1));
+		}
+	}
+
+	private Set<String> extract(StreamingHtmlExtractor extractor, String html) throws IOException {
+		Set<String> referred = new LinkedHashSet<>();
+		extractor.extractLinks(url, new ByteArrayInputStream(html.getBytes(StandardCharsets.UTF_8)), referred);
+
+		Set<String> trickled = new LinkedHashSet<>();
+		extractor.extractLinks(url, new TricklingInputStream(new ByteArrayInputStream(html.getBytes(StandardCharsets.UTF_8))), trickled);
+		Assert.assertEquals(referred, trickled);
+
+		return referred;
+	}
+
+	private Set<String> extract(String html) throws IOException {
+		return extract(extractor, html);
+	}
+
+	@Test
+	public void testSameLinksAsJsoup() throws IOException {
+		HtmlExtractor jsoup = new HtmlExtractor(logger);
+
+		List<Path> pages;
+		try (Stream<Path> files = Files.walk(Paths.get("resources"))) {
+			pages = files.filter(p -> p.toString().endsWith(".html")).collect(Collectors.toList());
+		}
+		Assert.assertFalse(pages.isEmpty());
+
+		for (Path page : pages) {
+			Set<String> expected = new LinkedHashSet<>();
+			jsoup.extractLinks(url, Files.newInputStream(page), expected);
+
+			Assert.assertEquals(page.toString(), expected, extract(Files.readString(page)));
+		}
+	}
+
+	@Test
+	public void testTokenizer() throws IOException {
+		Assert.assertEquals(Set.of("a.html", "b.html", "c.html", "d.html", ""), extract(
+			"<A HREF=\"a.html\">a</A><a class=x href='b.html'>b</a><a href=c.html>c</a><a\nid=\"x\"\nhref = \"d.html\"/><a href>e</a><a name=\"f\">f</a>"
+		));
+		Assert.assertEquals(Set.of("?a=1&b=2", "?copy=1&lang=en", "\u00e9\u00e9.html"), extract(
+			"<a href=\"?a=1&amp;b=2\"></a><a href=\"?copy=1&lang=en\"></a><a href=\"&#233;&#xE9;.html\"></a>"
+		));
+		Assert.assertEquals(Set.of("first.html"), extract(
+			"<a href=\"first.html\" href=\"second.html\"></a>"
+		));
+		Assert.assertEquals(Set.of("visible.html"), extract(
+			"<!-- <a href=\"comment.html\"> -- > still a comment --><a href=\"visible.html\"></a>"
+		));
+		// comments that end as they start
+		Assert.assertEquals(Set.of("/a", "/b"), extract(
+			"<!--><a href=\"/a\">a</a><!-- x --><a href=\"/b\">b</a>"
+		));
+		Assert.assertEquals(Set.of("/c"), extract(
+			"<!---><a href=\"/c\">c</a>"
+		));
+		Assert.assertEquals(Set.of("/d"), extract(
+			"<!----><!---x--><a href=\"/d\">d</a>"
+		));
+		Assert.assertEquals(Set.of("after.html"), extract(
+			"<script>document.write('<a href=\"script.html\"></a>'); if (a </b) {}</script ><a href=\"after.html\"></a>"
+		));
+		Assert.assertEquals(Set.of("after.html"), extract(
+			"<template><a href=\"template.html\"></a><template><a href=\"nested.html\"></a></template></template><a href=\"after.html\"></a>"
+		));
+		Assert.assertEquals(Set.of("after.html"), extract(
+			"<title><a href=\"title.html\"></title><style>a[href=\"<a href='style.html'>\"] {}</style><a href=\"after.html\"></a>"
+		));
+		Assert.assertEquals(Set.of("http://example.org/base/x.html", "http://other.org/"), extract(
+			"<head><base href=\"http://example.org/base/\"><base href=\"http://ignored.org/\"></head><a href=\"x.html\"></a><a href=\"http://other.org/\"></a>"
+		));
+		Assert.assertEquals(Set.of("http://localhost/bar/x.html"), extract(
+			"<base href=\"/bar/\"><a href=\"x.html\"></a>"
+		));
+	}
+
+	@Test
+	public void testMaxDocumentSize() throws IOException {
+		StreamingHtmlExtractor limited = new StreamingHtmlExtractor(logger, 30);
+		Assert.assertEquals(Set.of("a.html"), extract(limited, "<a href=\"a.html\"></a><a href=\"b.html\"></a>"));
+	}
+}
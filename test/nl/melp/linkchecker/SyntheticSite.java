@@ -0,0 +1,199 @@
+package nl.melp.linkchecker;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A generated site with a configurable shape, served by an in-JVM HTTP server. Page i links to the home page, to pages
+ * 2i+1 and 2i+2, so every page can be reached, and to random pages, missing pages and urls on external hosts. The
+ * site and the external hosts are all served by the same server, and told apart by their name, which resolves to the
+ * loopback address through a hosts file; some of the external hosts respond slowly, or not at all.
+ *
+ * The hosts file is only read when the JVM resolves its first host name, so the site must be created before anything
+ * else connects.
+ */
+public class SyntheticSite implements Closeable {
+	public static final String DOMAIN = "synthetic.test";
+	public static final String SITE_HOST = "site." + DOMAIN;
+
+	public static class Shape {
+		int pages = 1000;
+		int fanOut = 10;
+		double externalRatio = 0.1;
+		double brokenRatio = 0.01;
+		int externalHosts = 20;
+		int slowHosts = 2;
+		long slowMs = 500;
+		int timeoutHosts = 0;
+		long latencyMs = 0;
+		long seed = 1;
+
+		@Override
+		public String toString() {
+			return String.format(
+				"%d pages, fan-out %d, %.0f%% external on %d hosts (%d slow at %d ms, %d timing out), %.1f%% broken, %d ms latency",
+				pages, fanOut, externalRatio * 100, externalHosts, slowHosts, slowMs, timeoutHosts, brokenRatio * 100, latencyMs
+			);
+		}
+	}
+
+	private final Shape shape;
+	private final HttpServer server;
+	private final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+		Thread t = new Thread(runnable);
+		t.setDaemon(true);
+		return t;
+	});
+	private final int port;
+	private final AtomicInteger pageRequests = new AtomicInteger();
+	private final AtomicInteger requests = new AtomicInteger();
+
+	public SyntheticSite(Shape shape) throws IOException {
+		this.shape = shape;
+
+		List<String> hosts = new ArrayList<>(List.of("127.0.0.1 localhost", "127.0.0.1 " + SITE_HOST));
+		for (int i = 0; i < shape.externalHosts; i++) {
+			hosts.add("127.0.0.1 " + externalHost(i));
+		}
+		Path hostsFile = Files.createTempFile("synthetic-hosts", "");
+		hostsFile.toFile().deleteOnExit();
+		Files.write(hostsFile, hosts);
+		System.setProperty("jdk.net.hosts.file", hostsFile.toString());
+		try {
+			InetAddress.getByName(SITE_HOST);
+		} catch (UnknownHostException e) {
+			throw new IllegalStateException("Host names were resolved before the site was created; start the JVM with -Djdk.net.hosts.file=" + hostsFile, e);
+		}
+
+		// the headers and the body are written separately, which otherwise waits for the delayed ack of the headers
+		System.setProperty("sun.net.httpserver.nodelay", "true");
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1000);
+		server.setExecutor(executor);
+		server.createContext("/", this::handle);
+		server.start();
+		port = server.getAddress().getPort();
+	}
+
+	public String getStartUrl() {
+		return "http://" + SITE_HOST + ":" + port + "/page/0";
+	}
+
+	/**
+	 * The number of pages of the site that were requested, with any method.
+	 */
+	public int numPageRequests() {
+		return pageRequests.get();
+	}
+
+	public int numRequests() {
+		return requests.get();
+	}
+
+	private static String externalHost(int i) {
+		return "ext-" + i + "." + DOMAIN;
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		requests.incrementAndGet();
+		try {
+			String host = exchange.getRequestHeaders().getFirst("Host");
+			host = host == null ? "" : host.replaceFirst(":[0-9]+$", "");
+			String path = exchange.getRequestURI().getPath();
+
+			long delay = shape.latencyMs;
+			int status = 200;
+			byte[] body = new byte[0];
+			if (host.equals(SITE_HOST)) {
+				if (path.startsWith("/page/")) {
+					pageRequests.incrementAndGet();
+					int page = Integer.parseInt(path.substring(6));
+					if (page < shape.pages) {
+						body = page(page);
+					} else {
+						status = 404;
+					}
+				} else {
+					status = 404;
+				}
+			} else if (host.startsWith("ext-")) {
+				int i = Integer.parseInt(host.substring(4, host.indexOf('.')));
+				if (i < shape.slowHosts) {
+					delay += shape.slowMs;
+				} else if (i < shape.slowHosts + shape.timeoutHosts) {
+					// longer than any client waits; the server interrupts this when it stops
+					delay = Long.MAX_VALUE;
+				}
+			} else {
+				status = 404;
+			}
+
+			if (delay > 0) {
+				Thread.sleep(delay);
+			}
+			if (body.length > 0) {
+				exchange.getResponseHeaders().add("Content-Type", "text/html; charset=utf-8");
+			}
+			if (exchange.getRequestMethod().equals("HEAD") || body.length == 0) {
+				exchange.sendResponseHeaders(status, -1);
+			} else {
+				exchange.sendResponseHeaders(status, body.length);
+				try (OutputStream out = exchange.getResponseBody()) {
+					out.write(body);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			exchange.close();
+		}
+	}
+
+	/**
+	 * The html of the page, which is the same every time for the same shape.
+	 */
+	byte[] page(int page) {
+		Random random = new Random(shape.seed * 31 + page);
+		StringBuilder html = new StringBuilder("<!DOCTYPE html><html><head><title>Page ").append(page).append("</title></head><body>");
+		html.append("<nav><a href=\"/page/0\">home</a></nav>");
+		for (int child = 2 * page + 1; child <= 2 * page + 2 && child < shape.pages; child++) {
+			html.append("<p><a href=\"/page/").append(child).append("\">page ").append(child).append("</a></p>");
+		}
+		for (int i = 3; i < shape.fanOut; i++) {
+			double roll = random.nextDouble();
+			html.append("<p>Lorem ipsum dolor sit amet, <a href=\"");
+			if (roll < shape.externalRatio && shape.externalHosts > 0) {
+				html.append("http://").append(externalHost(random.nextInt(shape.externalHosts))).append(':').append(port)
+					.append("/ext/").append(random.nextInt(shape.pages));
+			} else if (roll < shape.externalRatio + shape.brokenRatio) {
+				html.append("/missing/").append(page).append('-').append(i);
+			} else {
+				html.append("/page/").append(random.nextInt(shape.pages));
+			}
+			html.append("\">link ").append(i).append("</a> consectetur adipiscing elit.</p>\n");
+		}
+		html.append("</body></html>");
+		return html.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	@Override
+	public void close() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+}
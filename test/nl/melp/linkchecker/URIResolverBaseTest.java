@@ -0,0 +1,84 @@
+package nl.melp.linkchecker;
+
+import nl.melp.linkchecker.URIResolver.InvalidURIException;
+import org.junit.Assert;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+import java.net.URI;
+
+/**
+ * Checks that the links resolved against a Base come out the same as with resolving every link with URI.resolve().
+ */
+public class URIResolverBaseTest {
+	private static final String[] contexts = {
+		"http://localhost", "http://localhost/", "https://example.org/a/b.html", "http://localhost:8080/a/b.html?x=1",
+		"http://localhost/a/b.html#top", "http://localhost/a//b", "http://localhost/a/./b/", "http://user@localhost/a/"
+	};
+
+	private static final String[] links = {
+		"", " ", "/", "/index.html", "bar.html", "x/bar.html", "../bar.html", "./bar.html", ".", "..", "x/../y", "x//y",
+		"/a//b", "/a/../b", "?q", "?q=1&r=2#f", "#", "#asdf", "#a#b", "foo.html#", "foo.html#asdf", "foo.html?a=1#b",
+		"//example.org", "//example.org/x", "http://example.org", "http://example.org/x#y", "https://example.org/a/../b",
+		"HTTP://EXAMPLE.ORG/", "http://example.org:abc/", "http:relative", "mailto:foo", "javascript:void(0)",
+		"tel:+31", " abc ", "a b", "%20", "%zz", "%2", "caf\u00e9.html", "a[1].html", "a:b", "a?b:c", "~user/", "a;b=c"
+	};
+
+	@Test
+	public void testSameAsResolve() throws Exception {
+		URIResolver resolver = new URIResolver(LoggerFactory.getLogger(URIResolverBaseTest.class));
+		for (String context : contexts) {
+			URIResolver.Base base = resolver.base(URI.create(context));
+			for (String link : links) {
+				String expected;
+				try {
+					expected = String.valueOf(resolve(URI.create(context), link));
+				} catch (InvalidURIException | IllegalArgumentException e) {
+					expected = "error";
+				}
+				String actual;
+				try {
+					actual = String.valueOf(resolver.resolveUri(base, link));
+				} catch (InvalidURIException | IllegalArgumentException e) {
+					actual = "error";
+				}
+				Assert.assertEquals(context + " + '" + link + "'", expected, actual);
+			}
+		}
+	}
+
+	/**
+	 * How every link was resolved before the fast path.
+	 */
+	static URI resolve(URI context, String linkedUrl) throws InvalidURIException {
+		URI uri;
+		if (linkedUrl.isBlank()) {
+			uri = context;
+		} else {
+			try {
+				uri = context.resolve(linkedUrl);
+			} catch (IllegalArgumentException e) {
+				throw new InvalidURIException(context, linkedUrl, e.getMessage());
+			}
+		}
+		if (!"".equals(uri.getFragment()) && uri.getFragment() != null) {
+			uri = URI.create(uri.toString().replace("#" + uri.getRawFragment(), ""));
+		}
+		if (uri.getPath() == null && uri.getScheme() == null) {
+			throw new InvalidURIException(context, linkedUrl, "Ignoring uri without path: " + linkedUrl);
+		}
+		if (uri.getScheme() != null && !uri.getScheme().equals("https") && !uri.getScheme().equals("http")) {
+			return null;
+		}
+		if (uri.getHost() == null || uri.getScheme() == null) {
+			uri = URI.create(context.getScheme() + "://" + context.getHost() + (context.getPort() > 0 ? ":" + context.getPort() : "") + linkedUrl);
+		}
+		if (uri.getHost() == null) {
+			throw new InvalidURIException(context, linkedUrl, "Could not extract host");
+		}
+		if (uri.getPath() == null) {
+			return null;
+		}
+		return uri;
+	}
+}
@@ -0,0 +1,102 @@
+package nl.melp.linkchecker;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.URI;
+import java.util.List;
+
+public class UrlFilterTest {
+	private static final Logger logger = LoggerFactory.getLogger(UrlFilterTest.class);
+	private static final List<String> patterns = List.of(
+		"https?://(www\\.)?facebook\\.com/.*",
+		"https?://twitter\\.com/.*",
+		"^http://example\\.org/private/.*$",
+		"http://example\\.org/exact",
+		"https://cdn\\.example\\.org.*",
+		".*\\.pdf",
+		".*/tag/[0-9]+",
+		"http://(a|b)\\.example\\.com/.*",
+		"(?i)HTTP://SHOUTING\\.EXAMPLE\\.ORG/.*",
+		"http://([a-z]+)\\.repeat\\.org/\\1/.*",
+		"http://example\\.org/(?!public).*\\.html"
+	);
+
+	private static final List<String> urls = List.of(
+		"http://facebook.com/share",
+		"https://www.facebook.com/",
+		"https://www.facebook.com",
+		"http://facebook.com.evil.org/",
+		"https://twitter.com/intent?text=a",
+		"http://twitter.com",
+		"http://example.org/private/a",
+		"http://example.org/private",
+		"http://example.org/exact",
+		"http://example.org/exact/not",
+		"https://cdn.example.org",
+		"https://cdn.example.org.evil.org/",
+		"http://cdn.example.org/",
+		"http://example.org/files/report.pdf",
+		"http://example.org/files/report.pdf?download",
+		"http://example.org/tag/123",
+		"http://example.org/tag/abc",
+		"http://a.example.com/x",
+		"http://c.example.com/x",
+		"http://shouting.example.org/x",
+		"http://foo.repeat.org/foo/x",
+		"http://foo.repeat.org/bar/x",
+		"http://example.org/index.html",
+		"http://example.org/public/index.html",
+		"mailto:someone@example.org",
+		"/relative/file.pdf"
+	);
+
+	private static boolean matchesAny(String s) {
+		return patterns.stream().anyMatch(s::matches);
+	}
+
+	@Test
+	public void testMatchesLikeStringMatches() {
+		UrlFilter filter = new UrlFilter(patterns);
+		// twice, so the second round uses the rules cached per host
+		for (int i = 0; i < 2; i++) {
+			for (String url : urls) {
+				Assert.assertEquals(url, matchesAny(url), filter.matches(url));
+				Assert.assertEquals(url, matchesAny(url), filter.matches(URI.create(url)));
+			}
+		}
+	}
+
+	@Test
+	public void testLiteral() {
+		Assert.assertEquals("http://example.org/", UrlFilter.literal("http://example\\.org/"));
+		Assert.assertEquals("a\\b", UrlFilter.literal("a\\\\b"));
+		Assert.assertNull(UrlFilter.literal("a.b"));
+		Assert.assertNull(UrlFilter.literal("\\d+"));
+		Assert.assertNull(UrlFilter.literal("trailing\\"));
+	}
+
+	@Test
+	public void testLineTerminators() {
+		UrlFilter filter = new UrlFilter(List.of("/docs/.*", ".*\\.pdf"));
+		Assert.assertTrue(filter.matches("/docs/a"));
+		Assert.assertTrue(filter.matches("/files/a.pdf"));
+		Assert.assertFalse(filter.matches("/docs/a\nb"));
+		Assert.assertFalse(filter.matches("/files\n/a.pdf"));
+	}
+
+	@Test
+	public void testFollowLinks() throws Exception {
+		RunConfig config = new RunConfig(logger, "--ignore=.*\\.pdf,https?://localhost:8080/private/.*", "http://localhost:8080");
+		URI context = URI.create("http://localhost:8080/");
+		Assert.assertTrue(config.shouldFollowLinks(context, URI.create("http://localhost:8080/a.html")));
+		Assert.assertFalse(config.shouldFollowLinks(context, URI.create("http://localhost:8080/a.pdf")));
+		Assert.assertFalse(config.shouldFollowLinks(context, URI.create("http://localhost:8080/private/a.html")));
+
+		RunConfig including = new RunConfig(logger, "--include=/docs/.*", "http://localhost:8080");
+		Assert.assertTrue(including.shouldFollowLinks(context, URI.create("http://elsewhere/docs/a.html")));
+		Assert.assertFalse(including.shouldFollowLinks(context, URI.create("http://localhost:8080/a.html")));
+	}
+}
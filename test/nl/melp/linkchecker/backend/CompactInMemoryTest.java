@@ -0,0 +1,69 @@
+package nl.melp.linkchecker.backend;
+
+import nl.melp.linkchecker.Fetcher.Result;
+import nl.melp.linkchecker.RunConfig;
+import nl.melp.linkchecker.Status;
+import org.junit.Assert;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+public class CompactInMemoryTest {
+	private static Logger logger = LoggerFactory.getLogger(CompactInMemoryTest.class);
+
+	private static URI url(String path) {
+		return URI.create("http://localhost" + path);
+	}
+
+	@Test
+	public void testViews() throws Exception {
+		Status status = new CompactInMemory(logger, new RunConfig(logger, "--reset", "http://localhost/"));
+		Assert.assertEquals(List.of(url("/")), new ArrayList<>(status.urls));
+
+		status.add(new Result(url("/"), 200, Set.of(url("/a")), Set.of()));
+		status.add(new Result(url("/b"), 200, Set.of(url("/a"), url("/")), Set.of("(invalid)")));
+		status.add(new Result(url("/a"), 404, Set.of(), Set.of()));
+		// fetched again, e.g. on recheck; must not duplicate the referrers
+		status.add(new Result(url("/"), 200, Set.of(url("/a")), Set.of()));
+
+		Assert.assertEquals(List.of(url("/"), url("/a")), new ArrayList<>(status.urls));
+		Assert.assertTrue(status.urls.contains(url("/a")));
+		Assert.assertFalse(status.urls.contains(url("/b")));
+
+		Assert.assertEquals(3, status.statuses.size());
+		Assert.assertEquals(404, (int)status.statuses.get(url("/a")));
+		Assert.assertNull(status.statuses.get(url("/c")));
+		Assert.assertEquals(Map.of(url("/"), 200, url("/a"), 404, url("/b"), 200), Map.copyOf(status.statuses));
+
+		Assert.assertEquals(Set.of(url("/a")), Set.copyOf(status.outlinks.get(url("/"))));
+		Assert.assertEquals(Set.of(url("/a"), url("/")), Set.copyOf(status.outlinks.get(url("/b"))));
+		Assert.assertTrue(status.outlinks.get(url("/a")).isEmpty());
+		Assert.assertEquals(2, status.outlinks.size());
+
+		// whichever link was added last, adding one that is present already changes nothing
+		Set<URI> links = status.outlinks.get(url("/b"));
+		Assert.assertFalse(links.add(url("/a")));
+		Assert.assertFalse(links.add(url("/")));
+		Assert.assertTrue(links.add(url("/c")));
+		Assert.assertFalse(links.add(url("/c")));
+		status.outlinks.put(url("/b"), Set.of(url("/a"), url("/")));
+
+		Map<URI, Set<URI>> referers = status.getReferers(Set.of(url("/"), url("/a"), url("/b")));
+		Assert.assertEquals(Set.of(url("/"), url("/b")), referers.get(url("/a")));
+		Assert.assertEquals(Set.of(url("/b")), referers.get(url("/")));
+		Assert.assertFalse(referers.containsKey(url("/b")));
+		Assert.assertEquals(Set.of(url("/b")), status.getReferers(url("/")));
+
+		Assert.assertEquals(Set.of("(invalid)"), status.invalidUrls.get(url("/b")));
+
+		Assert.assertEquals(404, (int)status.statuses.remove(url("/a")));
+		Assert.assertFalse(status.statuses.containsKey(url("/a")));
+		Assert.assertEquals(2, status.statuses.size());
+	}
+}
@@ -0,0 +1,93 @@
+package nl.melp.linkchecker.backend;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+public class ConcurrentSetQueueTest {
+	@Test
+	public void testOrderAndUniqueness() {
+		ConcurrentSetQueue<String> queue = new ConcurrentSetQueue<>();
+		Assert.assertTrue(queue.add("a"));
+		Assert.assertTrue(queue.add("b"));
+		Assert.assertFalse(queue.add("a"));
+		Assert.assertTrue(queue.add("c"));
+
+		Assert.assertEquals(3, queue.size());
+		Assert.assertTrue(queue.contains("b"));
+		Assert.assertFalse(queue.contains("d"));
+		Assert.assertEquals(List.of("a", "b", "c"), new ArrayList<>(queue));
+
+		queue.clear();
+		Assert.assertEquals(0, queue.size());
+		Assert.assertFalse(queue.iterator().hasNext());
+		Assert.assertTrue(queue.add("a"));
+	}
+
+	@Test
+	public void testIteratorSeesGrowth() {
+		ConcurrentSetQueue<Integer> queue = new ConcurrentSetQueue<>();
+		queue.add(0);
+
+		List<Integer> seen = new ArrayList<>();
+		Iterator<Integer> iterator = queue.iterator();
+		while (iterator.hasNext()) {
+			int i = iterator.next();
+			seen.add(i);
+			// cross a few chunk boundaries
+			if (i < 10_000) {
+				queue.add(i * 2 + 1);
+				queue.add(i * 2 + 2);
+			}
+		}
+		Assert.assertEquals(20_001, seen.size());
+		for (int i = 0; i < seen.size(); i++) {
+			Assert.assertEquals(i, (int)seen.get(i));
+		}
+	}
+
+	@Test
+	public void testConcurrentAdd() throws InterruptedException {
+		ConcurrentSetQueue<Integer> queue = new ConcurrentSetQueue<>();
+		int numThreads = 4;
+		int perThread = 50_000;
+		CountDownLatch start = new CountDownLatch(1);
+
+		List<Thread> threads = new ArrayList<>();
+		for (int t = 0; t < numThreads; t++) {
+			Thread thread = new Thread(() -> {
+				try {
+					start.await();
+				} catch (InterruptedException e) {
+					return;
+				}
+				// every thread adds the same values, so only one add of each may succeed
+				for (int i = 0; i < perThread; i++) {
+					queue.add(i);
+				}
+			});
+			thread.start();
+			threads.add(thread);
+		}
+
+		Set<Integer> seen = new HashSet<>();
+		start.countDown();
+		Iterator<Integer> iterator = queue.iterator();
+		while (seen.size() < perThread) {
+			if (iterator.hasNext()) {
+				Assert.assertTrue(seen.add(iterator.next()));
+			}
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		Assert.assertFalse(iterator.hasNext());
+		Assert.assertEquals(perThread, queue.size());
+	}
+}
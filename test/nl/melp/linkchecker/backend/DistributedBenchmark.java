@@ -0,0 +1,108 @@
+package nl.melp.linkchecker.backend;
+
+import com.sun.net.httpserver.HttpServer;
+import nl.melp.linkchecker.RunConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Crawls a generated site with 1, 2, ... NUM_WORKERS worker JVMs running with --distributed against a local Redis,
+ * and reports the pages per second and the number of pages that were fetched more than once. Every response is
+ * delayed, so the workers wait on the network like they would on a real site.
+ *
+ * Usage: java -cp 'lib/*:bin' nl.melp.linkchecker.backend.DistributedBenchmark [NUM_WORKERS [NUM_PAGES [THREADS [LATENCY_MS]]]]
+ */
+public class DistributedBenchmark {
+	private static final Logger logger = LoggerFactory.getLogger(DistributedBenchmark.class);
+
+	public static void main(String[] args) throws Exception {
+		int maxWorkers = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+		int numPages = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+		int threads = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+		int latencyMs = args.length > 3 ? Integer.parseInt(args[3]) : 20;
+
+		Map<String, AtomicInteger> hits = new ConcurrentHashMap<>();
+		HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.createContext("/", exchange -> {
+			String path = exchange.getRequestURI().getPath();
+			hits.computeIfAbsent(path, k -> new AtomicInteger()).incrementAndGet();
+			try {
+				Thread.sleep(latencyMs);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			int n = Integer.parseInt(path.substring(path.lastIndexOf('/') + 1));
+			byte[] body = String.format(
+				"<html><body><a href=\"/page/%d\">next</a> <a href=\"/page/%d\">other</a> <a href=\"/page/0\">home</a></body></html>",
+				(n * 2 + 1) % numPages,
+				(n * 2 + 2) % numPages
+			).getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().add("Content-Type", "text/html");
+			exchange.sendResponseHeaders(200, body.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(body);
+			}
+		});
+		server.start();
+		String startUrl = "http://localhost:" + server.getAddress().getPort() + "/page/0";
+
+		System.out.printf("%d pages, %d threads per worker, %d ms latency%n", numPages, threads, latencyMs);
+		try {
+			for (int workers = 1; workers <= maxWorkers; workers *= 2) {
+				hits.clear();
+				long elapsed = run(workers, startUrl, threads);
+				long duplicates = hits.values().stream().filter(c -> c.get() > 1).count();
+				System.out.printf(
+					"%d worker(s): %8.1f pages/s, %d pages fetched, %d fetched more than once%n",
+					workers,
+					hits.size() / (elapsed / 1_000_000_000.0),
+					hits.size(),
+					duplicates
+				);
+			}
+		} finally {
+			server.stop(0);
+			System.exit(0);
+		}
+	}
+
+	private static long run(int numWorkers, String startUrl, int threads) throws Exception {
+		RunConfig config = new RunConfig(logger, "--reset", "--distributed", startUrl);
+		try (nl.melp.redis.Redis.Managed redis = config.connect(); DistributedRedis status = new DistributedRedis(redis, logger, config)) {
+			status.flush();
+		}
+
+		String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		List<Process> processes = new ArrayList<>();
+		long start = System.nanoTime();
+		for (int i = 0; i < numWorkers; i++) {
+			File log = Files.createTempFile("linkchecker-worker-", ".log").toFile();
+			processes.add(
+				new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), "nl.melp.linkchecker.LinkChecker", "--resume", "--distributed", "--threads=" + threads, "--max-per-host=" + threads, startUrl)
+					.redirectErrorStream(true)
+					.redirectOutput(log)
+					.start()
+			);
+		}
+		for (Process process : processes) {
+			if (process.waitFor() != 0) {
+				throw new IOException("Worker exited with " + process.exitValue());
+			}
+		}
+		return System.nanoTime() - start;
+	}
+}
@@ -0,0 +1,173 @@
+package nl.melp.linkchecker.backend;
+
+import nl.melp.linkchecker.Fetcher;
+import nl.melp.linkchecker.Fetcher.Result;
+import nl.melp.linkchecker.LinkChecker;
+import nl.melp.linkchecker.RunConfig;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.junit.Assert;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class DistributedRedisTest {
+	private static final Logger logger = LoggerFactory.getLogger(DistributedRedisTest.class);
+
+	private static Result page(String url, String... links) {
+		Set<URI> referred = new LinkedHashSet<>();
+		for (String link : links) {
+			referred.add(URI.create(link));
+		}
+		return new Result(URI.create(url), 200, referred, new HashSet<>());
+	}
+
+	@Test
+	public void testClaimIsExclusive() throws Exception {
+		RunConfig config = new RunConfig(logger, "--reset", "--distributed", "http://localhost/");
+		try (
+			nl.melp.redis.Redis.Managed redis1 = config.connect();
+			nl.melp.redis.Redis.Managed redis2 = config.connect();
+			DistributedRedis worker1 = new DistributedRedis(redis1, logger, config);
+			DistributedRedis worker2 = new DistributedRedis(redis2, logger, new RunConfig(logger, "--resume", "--distributed", "http://localhost/"))
+		) {
+			Assert.assertEquals(List.of(URI.create("http://localhost/")), worker1.claim(10));
+			Assert.assertEquals(List.of(), worker2.claim(10));
+			Assert.assertFalse(worker2.isDrained());
+
+			List<String> links = new ArrayList<>();
+			for (int i = 0; i < 20; i++) {
+				links.add("http://localhost/" + i);
+			}
+			worker1.add(page("http://localhost/", links.toArray(new String[0])));
+			worker1.flush();
+
+			List<URI> claimed1 = worker1.claim(7);
+			List<URI> claimed2 = worker2.claim(100);
+			Set<URI> claimed = new HashSet<>(claimed1);
+			claimed.addAll(claimed2);
+			Assert.assertEquals(7, claimed1.size());
+			Assert.assertEquals(20, claimed.size());
+			Assert.assertFalse(worker1.isDrained());
+
+			for (URI url : claimed1) {
+				worker1.add(page(url.toString(), "http://localhost/"));
+			}
+			for (URI url : claimed2) {
+				worker2.add(page(url.toString(), "http://localhost/"));
+			}
+			worker1.flush();
+			Assert.assertFalse(worker1.isDrained());
+			worker2.flush();
+			Assert.assertTrue(worker1.isDrained());
+			Assert.assertEquals(21, worker1.numChecked());
+		}
+	}
+
+	@Test
+	public void testExpiredLeaseIsRequeued() throws Exception {
+		RunConfig config = new RunConfig(logger, "--reset", "--distributed", "--lease-ms=300", "http://localhost/");
+		try (
+			nl.melp.redis.Redis.Managed redis1 = config.connect();
+			nl.melp.redis.Redis.Managed redis2 = config.connect()
+		) {
+			// closed right after claiming, so it no longer renews its lease, like a worker that crashed
+			DistributedRedis crashed = new DistributedRedis(redis1, logger, config);
+			try {
+				Assert.assertEquals(1, crashed.claim(10).size());
+			} finally {
+				crashed.close();
+			}
+
+			try (DistributedRedis worker = new DistributedRedis(redis2, logger, new RunConfig(logger, "--resume", "--distributed", "--lease-ms=300", "http://localhost/"))) {
+				Thread.sleep(500);
+				Assert.assertEquals(List.of(URI.create("http://localhost/")), worker.claim(10));
+
+				// a late result of the crashed worker doesn't release the lease it lost
+				crashed.add(page("http://localhost/"));
+				crashed.flush();
+				Assert.assertFalse(worker.isDrained());
+
+				worker.add(page("http://localhost/"));
+				worker.flush();
+				Assert.assertTrue(worker.isDrained());
+			}
+		}
+	}
+
+	@Test
+	public void testLeaseIsRenewed() throws Exception {
+		RunConfig config = new RunConfig(logger, "--reset", "--distributed", "--lease-ms=300", "http://localhost/");
+		try (
+			nl.melp.redis.Redis.Managed redis1 = config.connect();
+			nl.melp.redis.Redis.Managed redis2 = config.connect();
+			DistributedRedis worker1 = new DistributedRedis(redis1, logger, config);
+			DistributedRedis worker2 = new DistributedRedis(redis2, logger, new RunConfig(logger, "--resume", "--distributed", "--lease-ms=300", "http://localhost/"))
+		) {
+			Assert.assertEquals(1, worker1.claim(10).size());
+			Thread.sleep(1000);
+			Assert.assertEquals(List.of(), worker2.claim(10));
+
+			// abandoned urls are no longer renewed
+			worker1.abandon(URI.create("http://localhost/"));
+			Thread.sleep(500);
+			Assert.assertEquals(List.of(URI.create("http://localhost/")), worker2.claim(10));
+		}
+	}
+
+	@Test
+	public void testConcurrentWorkers() throws Exception {
+		int numPages = 300;
+		Map<URI, AtomicInteger> fetchCounts = new ConcurrentHashMap<>();
+		Fetcher fetcher = new Fetcher(logger, null, null, null) {
+			@Override
+			public Result fetch(CloseableHttpClient httpClient, URI url) {
+				fetchCounts.computeIfAbsent(url, k -> new AtomicInteger()).incrementAndGet();
+				int n = Integer.parseInt(url.getPath().substring(1));
+				return page(url.toString(), "http://localhost/" + (n * 2 + 1) % numPages, "http://localhost/" + (n * 2 + 2) % numPages);
+			}
+		};
+
+		RunConfig seed = new RunConfig(logger, "--reset", "--distributed", "--threads=4", "--redis-batch-size=20", "http://localhost/0");
+		try (nl.melp.redis.Redis.Managed redis = seed.connect(); DistributedRedis status = new DistributedRedis(redis, logger, seed)) {
+			Assert.assertEquals(1, status.numQueueud());
+		}
+
+		List<Thread> workers = new ArrayList<>();
+		List<Throwable> errors = new ArrayList<>();
+		for (int i = 0; i < 3; i++) {
+			Thread worker = new Thread(() -> {
+				try {
+					RunConfig config = new RunConfig(logger, "--resume", "--distributed", "--threads=4", "--redis-batch-size=20", "http://localhost/0");
+					try (nl.melp.redis.Redis.Managed redis = config.connect(); DistributedRedis status = new DistributedRedis(redis, logger, config)) {
+						new LinkChecker(config, status, fetcher).run();
+					}
+				} catch (Throwable e) {
+					synchronized (errors) {
+						errors.add(e);
+					}
+				}
+			});
+			worker.start();
+			workers.add(worker);
+		}
+		for (Thread worker : workers) {
+			worker.join();
+		}
+
+		Assert.assertEquals(List.of(), errors);
+		Assert.assertEquals(numPages, fetchCounts.size());
+		for (Map.Entry<URI, AtomicInteger> e : fetchCounts.entrySet()) {
+			Assert.assertEquals(e.getKey().toString(), 1, e.getValue().get());
+		}
+	}
+}
@@ -0,0 +1,95 @@
+package nl.melp.linkchecker.backend;
+
+import java.net.URI;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Simulates walking the frontier of an in-memory crawl: every url that is visited adds links, half of which were seen
+ * before, until the crawl has found the requested number of urls. Compares ConcurrentSetQueue with the LinkedList
+ * based queue it replaced; the latter is quadratic, so it's only run up to LEGACY_MAX urls.
+ *
+ * Usage: java -cp 'lib/*:bin' nl.melp.linkchecker.backend.FrontierBenchmark [LEGACY_MAX [SIZES...]]
+ */
+public class FrontierBenchmark {
+	private static final int LINKS_PER_PAGE = 20;
+
+	private static class LinkedListSetQueue<K> extends AbstractSet<K> {
+		private final List<K> list = new LinkedList<>();
+		private final Set<K> s = new LinkedHashSet<>();
+
+		@Override
+		public Iterator<K> iterator() {
+			AtomicInteger i = new AtomicInteger(0);
+			return new Iterator<>() {
+				@Override
+				public boolean hasNext() {
+					return i.get() < list.size();
+				}
+
+				@Override
+				public K next() {
+					return list.get(i.getAndIncrement());
+				}
+			};
+		}
+
+		@Override
+		public int size() {
+			return list.size();
+		}
+
+		@Override
+		public boolean add(K k) {
+			if (s.add(k)) {
+				return list.add(k);
+			}
+			return false;
+		}
+	}
+
+	public static void main(String[] args) {
+		int legacyMax = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+		int[] sizes = {10_000, 100_000, 300_000, 1_000_000};
+		if (args.length > 1) {
+			sizes = new int[args.length - 1];
+			for (int i = 1; i < args.length; i++) {
+				sizes[i - 1] = Integer.parseInt(args[i]);
+			}
+		}
+
+		// warm up
+		crawl(new ConcurrentSetQueue<>(), 100_000);
+		crawl(new LinkedListSetQueue<>(), Math.min(legacyMax, 10_000));
+
+		System.out.printf("%10s %22s %22s%n", "urls", "ConcurrentSetQueue", "LinkedList SetQueue");
+		for (int size : sizes) {
+			String legacy = size <= legacyMax ? String.format("%19d ms", crawl(new LinkedListSetQueue<>(), size)) : String.format("%22s", "skipped");
+			System.out.printf("%10d %19d ms %s%n", size, crawl(new ConcurrentSetQueue<>(), size), legacy);
+		}
+	}
+
+	private static long crawl(Set<URI> urls, int numUrls) {
+		long start = System.nanoTime();
+
+		urls.add(URI.create("http://localhost/0"));
+		int next = 1;
+		int visited = 0;
+		for (URI url : urls) {
+			visited++;
+			for (int j = 0; j < LINKS_PER_PAGE && next < numUrls; j++) {
+				// every other link is one that was found before
+				urls.add(URI.create("http://localhost/" + (j % 2 == 0 ? next++ : visited / 2)));
+			}
+		}
+		if (visited != numUrls || urls.size() != numUrls) {
+			throw new IllegalStateException("Visited " + visited + " of " + numUrls + " urls");
+		}
+		return (System.nanoTime() - start) / 1_000_000;
+	}
+}
@@ -0,0 +1,63 @@
+package nl.melp.linkchecker.backend;
+
+import nl.melp.linkchecker.Fetcher.Result;
+import nl.melp.linkchecker.RunConfig;
+import nl.melp.linkchecker.Status;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.URI;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Measures the heap used by the in-memory backends after adding a generated site: pages that link to site wide
+ * navigation, to neighbouring pages and to a few external urls.
+ *
+ * Usage: java -Xmx4g -cp 'lib/*:bin' nl.melp.linkchecker.backend.MemoryBenchmark [NUM_PAGES [LINKS_PER_PAGE]]
+ */
+public class MemoryBenchmark {
+	private static final Logger logger = LoggerFactory.getLogger(MemoryBenchmark.class);
+
+	public static void main(String[] args) throws Exception {
+		int numPages = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+		int linksPerPage = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+
+		RunConfig config = new RunConfig(logger, "--reset", "--follow-local", "http://localhost/");
+
+		System.out.printf("%d pages, %d links per page%n", numPages, linksPerPage);
+		System.out.printf("InMemory:        %6d MB%n", measure(new InMemory(logger, config), numPages, linksPerPage));
+		System.out.printf("CompactInMemory: %6d MB%n", measure(new CompactInMemory(logger, config), numPages, linksPerPage));
+	}
+
+	private static long measure(Status status, int numPages, int linksPerPage) {
+		long before = usedMemory();
+		for (int i = 0; i < numPages; i++) {
+			Set<URI> links = new LinkedHashSet<>();
+			for (int j = 0; j < linksPerPage; j++) {
+				if (j < 10) {
+					links.add(URI.create("http://localhost/nav/" + j));
+				} else if (j < linksPerPage - 5) {
+					links.add(URI.create("http://localhost/page/" + ((i + j) % numPages)));
+				} else {
+					links.add(URI.create("https://external-" + (i % 1000) + ".example.org/" + j));
+				}
+			}
+			status.add(new Result(URI.create("http://localhost/page/" + i), 200, links, new LinkedHashSet<>()));
+		}
+		long used = usedMemory() - before;
+
+		if (status.numChecked() != numPages) {
+			throw new IllegalStateException("Expected " + numPages + " statuses, got " + status.numChecked());
+		}
+		return used / 1024 / 1024;
+	}
+
+	private static long usedMemory() {
+		Runtime rt = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		return rt.totalMemory() - rt.freeMemory();
+	}
+}
@@ -0,0 +1,169 @@
+package nl.melp.linkchecker.backend;
+
+import nl.melp.linkchecker.Fetcher.Result;
+import nl.melp.linkchecker.RunConfig;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+public class OnDiskTest {
+	private static Logger logger = LoggerFactory.getLogger(OnDiskTest.class);
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static URI url(String path) {
+		return URI.create("http://localhost" + path);
+	}
+
+	@Test
+	public void testResume() throws Exception {
+		Path dir = folder.getRoot().toPath();
+
+		try (OnDisk status = new OnDisk(logger, new RunConfig(logger, "--reset", "http://localhost/"), dir)) {
+			status.add(new Result(url("/"), 200, Set.of(url("/a"), url("/b")), Set.of("(invalid)")));
+			status.add(new Result(url("/a"), 404, Set.of(url("/")), Set.of()));
+			status.flush();
+		}
+
+		try (OnDisk status = new OnDisk(logger, new RunConfig(logger, "--resume", "http://localhost/"), dir)) {
+			Assert.assertEquals(Set.of(url("/"), url("/a"), url("/b")), Set.copyOf(status.urls));
+			Assert.assertEquals(2, status.statuses.size());
+			Assert.assertEquals(200, (int)status.statuses.get(url("/")));
+			Assert.assertEquals(404, (int)status.statuses.get(url("/a")));
+			Assert.assertFalse(status.statuses.containsKey(url("/b")));
+			Assert.assertEquals(Set.of(url("/")), status.getReferers(url("/a")));
+			Assert.assertEquals(Set.of(url("/a")), status.getReferers(url("/")));
+			Assert.assertEquals(Set.of("(invalid)"), Set.copyOf(status.invalidUrls.get(url("/"))));
+			Assert.assertEquals(1, status.numPending());
+		}
+
+		// a recheck resets the error and queues the page referring to it
+		try (OnDisk status = new OnDisk(logger, new RunConfig(logger, "--recheck", "http://localhost/"), dir)) {
+			Assert.assertFalse(status.statuses.containsKey(url("/a")));
+			Assert.assertFalse(status.statuses.containsKey(url("/")));
+			Assert.assertEquals(List.of(url("/")), new ArrayList<>(status.urls));
+			Assert.assertEquals(0, status.invalidUrls.size());
+		}
+
+		try (OnDisk status = new OnDisk(logger, new RunConfig(logger, "--reset", "http://localhost/"), dir)) {
+			Assert.assertEquals(0, status.statuses.size());
+			Assert.assertEquals(List.of(url("/")), new ArrayList<>(status.urls));
+			Assert.assertEquals(0, status.outlinks.size());
+		}
+	}
+
+	/**
+	 * Earlier versions stored the referrers of every url in stead of the links of every page. A --recheck of such a
+	 * directory should still queue the pages that refer to an error.
+	 */
+	@Test
+	public void testLegacyReferrers() throws Exception {
+		Path dir = folder.getRoot().toPath();
+
+		try (OnDisk status = new OnDisk(logger, new RunConfig(logger, "--reset", "http://localhost/"), dir)) {
+			status.add(new Result(url("/"), 200, Set.of(url("/a"), url("/b")), Set.of()));
+			status.add(new Result(url("/b"), 200, Set.of(url("/a")), Set.of()));
+			status.add(new Result(url("/a"), 404, null, null));
+		}
+
+		// the same links, the other way around
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(dir.resolve("links.log"))));
+			 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(dir.resolve("referrers.log"))))) {
+			while (true) {
+				int id = in.readInt();
+				int link = in.readInt();
+				if (link >= 0) {
+					out.writeInt(link);
+					out.writeInt(id);
+				}
+			}
+		} catch (EOFException e) {
+			// done
+		}
+		Files.delete(dir.resolve("links.log"));
+
+		try (OnDisk status = new OnDisk(logger, new RunConfig(logger, "--recheck", "http://localhost/"), dir)) {
+			Assert.assertFalse(Files.exists(dir.resolve("referrers.log")));
+			Assert.assertEquals(Set.of(url("/"), url("/b")), Set.copyOf(status.urls));
+			Assert.assertFalse(status.statuses.containsKey(url("/a")));
+			Assert.assertEquals(Set.of(url("/a"), url("/b")), status.outlinks.get(url("/")));
+		}
+	}
+
+	/**
+	 * Every run writes the links of the pages it fetches again; the link log shouldn't grow with the number of runs.
+	 */
+	@Test
+	public void testCompactLinks() throws Exception {
+		Path dir = folder.getRoot().toPath();
+		long size = 0;
+		for (int run = 0; run < 5; run++) {
+			try (OnDisk status = new OnDisk(logger, new RunConfig(logger, run == 0 ? "--reset" : "--resume", "http://localhost/"), dir)) {
+				if (run > 0) {
+					Assert.assertTrue(Files.size(dir.resolve("links.log")) <= size * 2);
+					Assert.assertEquals(Set.of(url("/a"), url("/b")), status.outlinks.get(url("/")));
+					Assert.assertEquals(Set.of(url("/")), status.outlinks.get(url("/a")));
+				}
+				status.add(new Result(url("/"), 200, Set.of(url("/a"), url("/b")), Set.of()));
+				status.add(new Result(url("/a"), 200, Set.of(url("/")), Set.of()));
+			}
+			if (run == 0) {
+				size = Files.size(dir.resolve("links.log"));
+			}
+		}
+	}
+
+	@Test
+	public void testGrowth() throws Exception {
+		Path dir = folder.getRoot().toPath();
+		int numPages = 20_000;
+
+		try (OnDisk status = new OnDisk(logger, new RunConfig(logger, "--reset", "http://localhost/"), dir)) {
+			for (int i = 0; i < numPages; i++) {
+				Set<URI> links = new LinkedHashSet<>();
+				links.add(url("/page/" + (i + 1)));
+				links.add(url("/"));
+				status.add(new Result(url("/page/" + i), i % 7 == 0 ? 404 : 200, links, Set.of()));
+			}
+		}
+
+		try (OnDisk status = new OnDisk(logger, new RunConfig(logger, "--resume", "http://localhost/"), dir)) {
+			Assert.assertEquals(numPages, status.statuses.size());
+			for (int i = 0; i < numPages; i++) {
+				Assert.assertEquals(i % 7 == 0 ? 404 : 200, (int)status.statuses.get(url("/page/" + i)));
+			}
+			Map<URI, Set<URI>> referers = status.getReferers(Set.of(url("/"), url("/page/42")));
+			Assert.assertEquals(numPages, referers.get(url("/")).size());
+			Assert.assertEquals(Set.of(url("/page/41")), referers.get(url("/page/42")));
+		}
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testLocked() throws Exception {
+		Path dir = folder.getRoot().toPath();
+		OnDisk status = new OnDisk(logger, new RunConfig(logger, "--reset", "http://localhost/"), dir);
+		try {
+			new OnDisk(logger, new RunConfig(logger, "--resume", "http://localhost/"), dir);
+		} finally {
+			status.close();
+		}
+	}
+}
@@ -0,0 +1,66 @@
+package nl.melp.linkchecker.backend;
+
+import nl.melp.linkchecker.Fetcher.Result;
+import nl.melp.linkchecker.RunConfig;
+import nl.melp.linkchecker.Status;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Measures the number of pages per second Status.add() can process on a local Redis, with and without write batching.
+ *
+ * Usage: java -cp 'lib/*:bin' nl.melp.linkchecker.backend.RedisBenchmark [NUM_PAGES [LINKS_PER_PAGE [BATCH_SIZE]]]
+ */
+public class RedisBenchmark {
+	private static final Logger logger = LoggerFactory.getLogger(RedisBenchmark.class);
+
+	public static void main(String[] args) throws Exception {
+		int numPages = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		int linksPerPage = args.length > 1 ? Integer.parseInt(args[1]) : 300;
+		int batchSize = args.length > 2 ? Integer.parseInt(args[2]) : 500;
+
+		List<Result> pages = generatePages(numPages, linksPerPage);
+
+		System.out.printf("%d pages, %d links per page%n", numPages, linksPerPage);
+		System.out.printf("write through:     %8.1f pages/s%n", run(pages, 1));
+		System.out.printf("batch size %-6d: %8.1f pages/s%n", batchSize, run(pages, batchSize));
+	}
+
+	private static double run(List<Result> pages, int batchSize) throws Exception {
+		RunConfig config = new RunConfig(logger, "--reset", "--redis-batch-size=" + batchSize, "http://localhost/");
+		try (nl.melp.redis.Redis.Managed redis = config.connect()) {
+			Status status = config.createStatus(redis);
+
+			long start = System.nanoTime();
+			for (Result page : pages) {
+				status.add(page);
+			}
+			status.flush();
+			long elapsed = System.nanoTime() - start;
+
+			if (status.numChecked() != pages.size()) {
+				throw new IllegalStateException("Expected " + pages.size() + " statuses, got " + status.numChecked());
+			}
+			return pages.size() / (elapsed / 1_000_000_000.0);
+		}
+	}
+
+	private static List<Result> generatePages(int numPages, int linksPerPage) {
+		List<Result> pages = new ArrayList<>(numPages);
+		for (int i = 0; i < numPages; i++) {
+			Set<URI> links = new LinkedHashSet<>();
+			for (int j = 0; j < linksPerPage; j++) {
+				// a mix of site wide navigation and page specific links
+				links.add(URI.create(j % 3 == 0 ? "http://localhost/nav/" + j : "http://localhost/page/" + i + "/" + j));
+			}
+			pages.add(new Result(URI.create("http://localhost/page/" + i), 200, links, new LinkedHashSet<>()));
+		}
+		return pages;
+	}
+}
@@ -0,0 +1,91 @@
+package nl.melp.linkchecker.backend;
+
+import nl.melp.linkchecker.Fetcher.Result;
+import nl.melp.linkchecker.Fetcher.Validators;
+import nl.melp.linkchecker.RunConfig;
+import nl.melp.linkchecker.Status;
+import org.junit.Assert;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.URI;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+public class RedisTest {
+	private static final Logger logger = LoggerFactory.getLogger(RedisTest.class);
+
+	private static URI url(String path) {
+		return URI.create("http://localhost" + path);
+	}
+
+	@Test
+	public void testOutlinks() throws Exception {
+		RunConfig config = new RunConfig(logger, "--reset", "--redis-batch-size=10", "http://localhost/");
+		try (nl.melp.redis.Redis.Managed redis = config.connect()) {
+			Status status = config.createStatus(redis);
+			status.add(new Result(url("/"), 200, Set.of(url("/a"), url("/b")), Set.of()));
+			status.add(new Result(url("/b"), 200, Set.of(url("/a")), Set.of()));
+			status.add(new Result(url("/a"), 404, null, null));
+			status.flush();
+
+			// one field per page that has links
+			Assert.assertEquals(2L, (long)redis.<Long>call("HLEN", Redis.prefixKeyName("outlinks")));
+			Assert.assertEquals(Set.of(url("/a"), url("/b")), status.outlinks.get(url("/")));
+			Assert.assertEquals(Set.of(url("/"), url("/b")), status.getReferers(url("/a")));
+
+			// a page that no longer has links doesn't keep the old ones
+			status.add(new Result(url("/b"), 200, Set.of(), Set.of()));
+			status.flush();
+			Assert.assertEquals(Set.of(url("/")), status.getReferers(url("/a")));
+
+			// a page that wasn't modified keeps its links, and gets the validators it was sent with
+			status.add(Result.notModified(url("/"), new Validators("\"v2\"", null, "digest")));
+			status.flush();
+			Assert.assertEquals(Set.of(url("/a"), url("/b")), status.outlinks.get(url("/")));
+			Assert.assertEquals("\"v2\"", Validators.decode(status.validators.get(url("/"))).getEtag());
+		}
+	}
+
+	/**
+	 * A --recheck of the data of an earlier version, which stored the referring pages of every url, should still check
+	 * the pages that refer to an error again.
+	 */
+	@Test
+	public void testLegacyLinksAreConverted() throws Exception {
+		RunConfig config = new RunConfig(logger, "--reset", "http://localhost/");
+		try (nl.melp.redis.Redis.Managed redis = config.connect()) {
+			Status status = config.createStatus(redis);
+			status.add(new Result(url("/"), 200, Set.of(), Set.of()));
+			status.add(new Result(url("/b"), 200, Set.of(), Set.of()));
+			status.add(new Result(url("/a"), 404, null, null));
+			status.flush();
+			redis.call("HSET", Redis.prefixKeyName("validators"), "http://localhost/", "etag");
+
+			String outlinks = Redis.prefixKeyName("outlinks");
+			String reverseLinks = Redis.prefixKeyName("reverseLinks");
+			redis.call("DEL", outlinks);
+			redis.call("SADD", outlinks + ":_keys", "http://localhost/");
+			redis.call("SADD", outlinks + ":http://localhost/", "http://localhost/a", "http://localhost/b");
+			redis.call("SADD", reverseLinks + ":_keys", "http://localhost/a", "http://localhost/b");
+			redis.call("SADD", reverseLinks + ":http://localhost/a", "http://localhost/", "http://localhost/b");
+			redis.call("SADD", reverseLinks + ":http://localhost/b", "http://localhost/");
+
+			status = new RunConfig(logger, "--recheck", "http://localhost/").createStatus(redis);
+			for (String key : List.of(outlinks + ":_keys", outlinks + ":http://localhost/", reverseLinks + ":_keys", reverseLinks + ":http://localhost/a", reverseLinks + ":http://localhost/b", Redis.prefixKeyName("legacyLinks:_keys"))) {
+				Assert.assertEquals(key, 0L, (long)redis.<Long>call("EXISTS", key));
+			}
+			Assert.assertEquals(Set.of(url("/a"), url("/b")), status.outlinks.get(url("/")));
+			Assert.assertEquals(Set.of(url("/a")), status.outlinks.get(url("/b")));
+			Assert.assertTrue(status.validators.containsKey(url("/")));
+
+			// the referers of the error are checked again
+			Set<URI> queued = new HashSet<>();
+			status.urls.forEach(queued::add);
+			Assert.assertEquals(Set.of(url("/"), url("/b")), queued);
+			Assert.assertFalse(status.statuses.containsKey(url("/a")));
+		}
+	}
+}